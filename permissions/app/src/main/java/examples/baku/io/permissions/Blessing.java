@@ -5,41 +5,68 @@
 package examples.baku.io.permissions;
 
 import com.google.common.collect.UnmodifiableIterator;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.ValueEventListener;
-
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
 
-import examples.baku.io.permissions.util.Utils;
+import examples.baku.io.permissions.storage.ChildListener;
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.DataRef;
+import examples.baku.io.permissions.storage.ValueListener;
+import examples.baku.io.permissions.util.PathTrie;
 
 /**
  * Created by phamilton on 7/9/16.
  */
-public class Blessing implements Iterable<Blessing.Permission>, ValueEventListener {
+public class Blessing implements Iterable<Blessing.Permission>, ValueListener {
 
     private static final String KEY_PERMISSIONS = "_permissions";
-    private static final String KEY_RULES = "rule";
+    static final String KEY_RULES = "rule";
+    private static final String KEY_ID = "id";
+    private static final String KEY_SOURCE = "source";
+    private static final String KEY_TARGET = "target";
+
+    //rule sync modes
+    public static final int SYNC_SNAPSHOT = 0;  //parse the whole rule tree on every change of the blessing
+    public static final int SYNC_CHILDREN = 1;  //listen to rule nodes only, and apply each one added, changed or removed
 
     private PermissionManager permissionManager;
 
     private String id;
     private String source;
     private String target;
-    private DatabaseReference ref;
-    private DatabaseReference rulesRef;
-    private DataSnapshot snapshot;
+    private DataRef ref;
+    private DataRef rulesRef;
+    private boolean synched;
+    private boolean revoked;
+    private final int syncMode;
+    private RuleListener rulesListener;
+    private boolean rulesChanged;   //rules updated by a child event since listeners were last notified
 
     private Blessing parentBlessing;
+    //blessings whose parent is this one, their lineage is derived from this one's
+    private final Set<Blessing> childBlessings = new HashSet<>();
+    //targets of this blessing and its ancestors, cached once the chain is resolved
+    private Set<String> lineage;
+    private final SettableFuture<Blessing> chainFuture = SettableFuture.create();
     private final Map<String, Integer> permissions = new HashMap<>();
     private final PermissionTree permissionTree = new PermissionTree();
 
@@ -54,18 +81,31 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
 
     private Blessing(PermissionManager permissionManager, String id, String source, String target) {
         this.permissionManager = permissionManager;
+        this.syncMode = permissionManager.getBlessingSyncMode();
         if (id == null) {
 //            setRef(permissionManager.getBlessingsRef().push());
             //TEMP: use a combination of source and target for debugging
-            setRef(permissionManager.getBlessingsRef().child(source + "_" + target));
+            this.ref = permissionManager.getBlessingsRef().child(source + "_" + target);
             id = this.ref.getKey();
 
         } else {
-            setRef(permissionManager.getBlessingsRef().child(id));
+            this.ref = permissionManager.getBlessingsRef().child(id);
+        }
+        this.rulesRef = ref.child(KEY_RULES);
+        this.id = id;
+        this.target = target;
+
+        //write identity in a single update
+        Map<String, Object> values = new HashMap<>();
+        values.put(KEY_ID, id);
+        values.put(KEY_TARGET, target);
+        if (source != null) {
+            values.put(KEY_SOURCE, source);
         }
-        setId(id);
+        ref.updateChildren(values);
         setSource(source);
-        setTarget(target);
+        //stores may deliver data synchronously, so listen once the source is known
+        sync();
     }
 
     public static Blessing create(PermissionManager permissionManager, String id, String source, String target) {
@@ -82,15 +122,17 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
         return create(permissionManager, target, null, target);
     }
 
-    public static Blessing fromSnapshot(PermissionManager permissionManager, DataSnapshot snapshot) {
+    public static Blessing fromSnapshot(PermissionManager permissionManager, DataNode snapshot) {
         String id = snapshot.getKey();
-        String target = snapshot.child("target").getValue(String.class);
-        String source = null;
-        if (snapshot.hasChild("source"))
-            source = snapshot.child("source").getValue(String.class);
+        String target = snapshot.child(KEY_TARGET).getValue(String.class);
+        String source = getSource(snapshot);
         return create(permissionManager, id, source, target);
     }
 
+    static String getSource(DataNode snapshot) {
+        return snapshot.hasChild(KEY_SOURCE) ? snapshot.child(KEY_SOURCE).getValue(String.class) : null;
+    }
+
     public OnBlessingUpdatedListener addListener(OnBlessingUpdatedListener listener) {
         blessingListeners.add(listener);
         listener.onBlessingUpdated(this);
@@ -112,14 +154,16 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
     private final OnBlessingUpdatedListener parentListener = new OnBlessingUpdatedListener() {
         @Override
         public void onBlessingUpdated(Blessing blessing) {
-            permissionTree.parentTree = parentBlessing.permissionTree;
+            permissionTree.setParentTree(parentBlessing.permissionTree);
             notifyListeners();
         }
 
         @Override
         public void onBlessingRemoved(Blessing blessing) {
-            //revoke self
-            revoke();
+            //revoke self, unless already revoked with the rest of the chain
+            if (!revoked) {
+                revoke();
+            }
         }
     };
 
@@ -128,7 +172,16 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
     }
 
     public boolean isSynched() {
-        return snapshot != null;
+        return synched;
+    }
+
+    //completes with this blessing once it and all of its ancestors are synched, fails if the chain is revoked
+    public ListenableFuture<Blessing> getChainFuture() {
+        return chainFuture;
+    }
+
+    public boolean isRevoked() {
+        return revoked;
     }
 
     public String getId() {
@@ -145,35 +198,59 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
 
     public void setId(String id) {
         this.id = id;
-        ref.child("id").setValue(id);
+        ref.child(KEY_ID).setValue(id);
     }
 
     private void setSource(String source) {
         if (this.source == null && source != null) {
             this.source = source;
-            ref.child("source").setValue(source);
-            parentBlessing = permissionManager.getBlessing(source);
-            if (parentBlessing == null) { //retrieve, if manager isn't tracking blessing
-                permissionManager.getBlessingsRef().child(source).addListenerForSingleValueEvent(new ValueEventListener() {
-                    @Override
-                    public void onDataChange(DataSnapshot dataSnapshot) {
-                        if (dataSnapshot.exists()) {
-                            parentBlessing = Blessing.fromSnapshot(permissionManager, dataSnapshot);
-                            parentBlessing.addListener(parentListener);
-                        } else {  //destroy self if source doesn't exist
-                            revoke();
-                        }
-                    }
+            //retrieves the source and its ancestors, if manager isn't tracking them
+            permissionManager.getBlessingResolver().resolve(source, new BlessingResolver.Callback() {
+                @Override
+                public void onResolved(Blessing blessing) {
+                    setParent(blessing);
+                }
 
-                    @Override
-                    public void onCancelled(DatabaseError databaseError) {
+                @Override
+                public void onMissing(String id) {
+                    //destroy self if source doesn't exist
+                    revoke();
+                }
 
-                    }
-                });
-            } else {
-                permissionTree.parentTree = parentBlessing.permissionTree;
-                parentBlessing.addListener(parentListener);
+                @Override
+                public void onCancelled(DataError error) {
+                    chainFuture.setException(error.toException());
+                }
+            });
+        }
+    }
+
+    private void setParent(Blessing parent) {
+        parentBlessing = parent;
+        parent.childBlessings.add(this);
+        invalidateLineage();
+        permissionTree.setParentTree(parent.permissionTree);
+        parent.addListener(parentListener);
+        Futures.addCallback(parent.chainFuture, new FutureCallback<Blessing>() {
+            @Override
+            public void onSuccess(Blessing result) {
+                updateChain();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                chainFuture.setException(t);
             }
+        }, MoreExecutors.directExecutor());
+    }
+
+    //complete the chain future once this blessing and its ancestors are synched
+    private void updateChain() {
+        if (chainFuture.isDone() || !isSynched()) {
+            return;
+        }
+        if (source == null || parentBlessing != null && parentBlessing.chainFuture.isDone()) {
+            chainFuture.set(this);
         }
     }
 
@@ -185,14 +262,15 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
 
     public void setTarget(String target) {
         this.target = target;
-        ref.child("target").setValue(target);
+        invalidateLineage();
+        ref.child(KEY_TARGET).setValue(target);
     }
 
-    private void setSnapshot(DataSnapshot snapshot) {
+    private void setSnapshot(DataNode snapshot) {
         if (!snapshot.exists()) {
             throw new IllegalArgumentException("empty snapshot");
         }
-        this.snapshot = snapshot;
+        this.synched = true;
         if (snapshot.hasChild(KEY_RULES)) {
             this.permissionTree.setRoot(new Permission(snapshot.child(KEY_RULES), null, 0));
         } else {
@@ -200,67 +278,220 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
         }
     }
 
+    //return an editor that writes all of its rule changes in one update
+    public Editor edit() {
+        return new Editor();
+    }
+
     public Blessing setPermissions(String path, int permissions) {
-        this.permissions.put(path, permissions);
-        getRef(path).setPermission(permissions);
-        return this;
+        return edit().setPermissions(path, permissions).commit();
     }
 
     public void setPermissions(Map<String, Integer> permissions) {
+        Editor editor = edit();
         for (Map.Entry<String, Integer> entry : permissions.entrySet()) {
-            setPermissions(entry.getKey(), permissions.get(entry.getValue()));
+            editor.setPermissions(entry.getKey(), entry.getValue());
         }
+        editor.commit();
     }
 
     public Blessing clearPermissions(String path) {
-        getRef(path).clearPermission();
-        this.permissions.remove(path);
-        return this;
+        return edit().clearPermissions(path).commit();
     }
 
+    //revoke this blessing and every blessing delegated from it, see PermissionManager.revokeBlessings
     public Blessing revoke() {
+        permissionManager.revokeBlessing(this);
+        return this;
+    }
+
+    //stop syncing, without deleting any data. Returns false if the blessing was already revoked.
+    boolean markRevoked() {
+        if (revoked) {
+            return false;
+        }
+        revoked = true;
+        chainFuture.setException(new IllegalStateException("Blessing " + id + " was revoked."));
         if (parentBlessing != null) {
             parentBlessing.removeListener(parentListener);
+            parentBlessing.childBlessings.remove(this);
         }
-        for (OnBlessingUpdatedListener listener : blessingListeners) {
+        if (rulesListener != null) {
+            rulesListener.detach();
+        } else {
+            ref.removeListener(this);
+        }
+        return true;
+    }
+
+    void notifyRemoved() {
+        for (OnBlessingUpdatedListener listener : new ArrayList<>(blessingListeners)) {
             listener.onBlessingRemoved(this);
         }
-        ref.removeEventListener(this);
-        rulesRef.removeValue();
-        return this;
     }
 
     //delete all permission above path
     public Blessing revokePermissions(String path) {
         if (path != null) {
-            rulesRef.child(path).removeValue();
-        } else {
-            rulesRef.removeValue();
+            return edit().revokePermissions(path).commit();
         }
+        rulesRef.removeValue();
         return this;
     }
 
-    private PermissionReference getRef(String path) {
-        return new PermissionReference(rulesRef, path);
-    }
+    private void sync() {
+        if (syncMode == SYNC_SNAPSHOT) {
+            ref.addValueListener(this);
+            return;
+        }
+        rulesListener = new RuleListener(null, rulesRef);
+        rulesListener.attach();
+        //raised after the initial child events of the rules, so the blessing is synched once all of them are applied
+        rulesRef.addSingleValueListener(new ValueListener() {
+            @Override
+            public void onDataChange(DataNode dataSnapshot) {
+                if (revoked) {
+                    return;
+                }
+                synched = true;
+                rulesChanged = false;
+                updateChain();
+                notifyListeners();
+            }
 
-    private void setRef(DatabaseReference ref) {
-        this.ref = ref;
-        this.rulesRef = ref.child(KEY_RULES);
+            @Override
+            public void onCancelled(DataError databaseError) {
+                Blessing.this.onCancelled(databaseError);
+            }
+        });
+    }
 
-        ref.addValueEventListener(this);
+    public int getSyncMode() {
+        return syncMode;
     }
 
     @Override
-    public void onDataChange(DataSnapshot dataSnapshot) {
-        if (dataSnapshot.exists()) {
-            setSnapshot(dataSnapshot);
+    public void onDataChange(DataNode dataSnapshot) {
+        if (!dataSnapshot.exists()) {
+            return;
+        }
+        setSnapshot(dataSnapshot);
+        updateChain();
+        notifyListeners();
+    }
+
+    //notify the rule changes of a child event. Batch permission refreshes with PermissionManager.setBatchWindow to
+    //coalesce the events of one update.
+    private void notifyRulesChanged() {
+        if (synched && rulesChanged) {
+            rulesChanged = false;
             notifyListeners();
         }
     }
 
+    private void setRulePermissions(String path, int value) {
+        Permission permission = permissionTree.get(path);
+        if (permission != null && permission.permissions != value) {
+            permission.setPermissions(value);
+            permissionTree.invalidate();
+            rulesChanged = true;
+        }
+    }
+
+    //add the rules of a new subtree
+    private void addRules(String path, DataNode snapshot) {
+        if (permissionTree.get(path) == null) {
+            permissionTree.add(path);
+            rulesChanged = true;
+        }
+        int value = 0;
+        if (snapshot.hasChild(KEY_PERMISSIONS)) {
+            value = snapshot.child(KEY_PERMISSIONS).getValue(Integer.class);
+        }
+        setRulePermissions(path, value);
+        for (DataNode child : snapshot.getChildren()) {
+            if (!child.getKey().startsWith("_")) {
+                addRules(path + "/" + child.getKey(), child);
+            }
+        }
+    }
+
+    //mirrors one rule node: its permissions and child rules. Child rules have their own listeners.
+    private class RuleListener implements ChildListener {
+        private final String path;
+        private final DataRef ref;
+        private final Map<String, RuleListener> children = new HashMap<>();
+
+        RuleListener(String path, DataRef ref) {
+            this.path = path;
+            this.ref = ref;
+        }
+
+        void attach() {
+            ref.addChildListener(this);
+        }
+
+        void detach() {
+            ref.removeListener(this);
+            for (RuleListener child : children.values()) {
+                child.detach();
+            }
+            children.clear();
+        }
+
+        private String childPath(String key) {
+            return path == null ? key : path + "/" + key;
+        }
+
+        @Override
+        public void onChildAdded(DataNode snapshot, String previousChildName) {
+            String key = snapshot.getKey();
+            if (KEY_PERMISSIONS.equals(key)) {
+                setRulePermissions(path, snapshot.getValue(Integer.class));
+            } else if (!key.startsWith("_") && !children.containsKey(key)) {
+                //applied from the snapshot, listeners attached now may only get their initial events after the value event
+                addRules(childPath(key), snapshot);
+                RuleListener child = new RuleListener(childPath(key), ref.child(key));
+                children.put(key, child);
+                child.attach();
+            }
+            notifyRulesChanged();
+        }
+
+        @Override
+        public void onChildChanged(DataNode snapshot, String previousChildName) {
+            if (KEY_PERMISSIONS.equals(snapshot.getKey())) {
+                setRulePermissions(path, snapshot.getValue(Integer.class));
+            }
+            notifyRulesChanged();
+        }
+
+        @Override
+        public void onChildRemoved(DataNode snapshot) {
+            String key = snapshot.getKey();
+            if (KEY_PERMISSIONS.equals(key)) {
+                setRulePermissions(path, 0);
+            } else if (children.containsKey(key)) {
+                children.remove(key).detach();
+                if (permissionTree.remove(childPath(key)) != null) {
+                    rulesChanged = true;
+                }
+            }
+            notifyRulesChanged();
+        }
+
+        @Override
+        public void onChildMoved(DataNode snapshot, String previousChildName) {
+        }
+
+        @Override
+        public void onCancelled(DataError databaseError) {
+            Blessing.this.onCancelled(databaseError);
+        }
+    }
+
     @Override
-    public void onCancelled(DatabaseError databaseError) {
+    public void onCancelled(DataError databaseError) {
         databaseError.toException().printStackTrace();
     }
 
@@ -281,9 +512,42 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
     }
 
     public boolean isDescendantOf(String target) {
+        Set<String> lineage = getLineage();
+        if (lineage != null) {
+            return lineage.contains(target);
+        }
         return this.target.equals(target) || parentBlessing != null && parentBlessing.isDescendantOf(target);
     }
 
+    //null until every ancestor is known. Derived from the parent's lineage and cached until the parent or a target
+    //in the chain changes.
+    private Set<String> getLineage() {
+        if (lineage == null) {
+            if (source == null) {
+                lineage = Collections.singleton(target);
+            } else {
+                Set<String> parent = parentBlessing == null ? null : parentBlessing.getLineage();
+                if (parent == null) {
+                    return null;
+                }
+                Set<String> result = new HashSet<>(parent);
+                result.add(target);
+                lineage = Collections.unmodifiableSet(result);
+            }
+        }
+        return lineage;
+    }
+
+    //a descendant only caches its lineage once this one is cached, so the walk stops at blessings without one
+    private void invalidateLineage() {
+        if (lineage != null) {
+            lineage = null;
+            for (Blessing child : childBlessings) {
+                child.invalidateLineage();
+            }
+        }
+    }
+
     @Override
     public Iterator<Permission> iterator() {
         return isSynched() ? permissionTree.iterator() : null;
@@ -293,18 +557,162 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
         return permissionTree;
     }
 
+    //Batches rule changes into a single multi-location update, so that other devices never see intermediate states
+    public class Editor {
+        //<location relative to rules, value>. Null values delete the location, revoked locations hold the rules
+        //written below them after the revoke, as a nested map.
+        private final Map<String, Object> updates = new HashMap<>();
+        private final Set<String> revoked = new HashSet<>();
+        //local rule changes, applied on commit. Null values clear the rule.
+        private final Map<String, Integer> rules = new HashMap<>();
+        private final List<String> revokedRules = new ArrayList<>();
+
+        private Editor() {
+        }
+
+        public Editor setPermissions(String path, int permissions) {
+            put(permissionsKey(path), permissions);
+            rules.put(path, permissions);
+            return this;
+        }
+
+        public Editor clearPermissions(String path) {
+            put(permissionsKey(path), null);
+            rules.put(path, null);
+            return this;
+        }
+
+        //delete all permission above path. Pending changes below path are dropped.
+        public Editor revokePermissions(String path) {
+            if (path == null) {
+                throw new IllegalArgumentException("Use Blessing.revokePermissions(null) to revoke all rules.");
+            }
+            for (Iterator<String> iterator = rules.keySet().iterator(); iterator.hasNext(); ) {
+                String rule = iterator.next();
+                if (rule != null && isAtOrBelow(rule, path)) {
+                    iterator.remove();
+                }
+            }
+            revokedRules.add(path);
+
+            if (revokedAncestor(path) != null) {
+                put(path, null);
+                return this;
+            }
+            for (Iterator<String> iterator = updates.keySet().iterator(); iterator.hasNext(); ) {
+                if (iterator.next().startsWith(path + "/")) {
+                    iterator.remove();
+                }
+            }
+            for (Iterator<String> iterator = revoked.iterator(); iterator.hasNext(); ) {
+                if (iterator.next().startsWith(path + "/")) {
+                    iterator.remove();
+                }
+            }
+            updates.put(path, null);
+            revoked.add(path);
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return updates.isEmpty();
+        }
+
+        public Blessing commit() {
+            if (!updates.isEmpty()) {
+                rulesRef.updateChildren(new HashMap<>(updates));
+                updates.clear();
+                revoked.clear();
+            }
+            for (String path : revokedRules) {
+                for (Iterator<String> iterator = permissions.keySet().iterator(); iterator.hasNext(); ) {
+                    String rule = iterator.next();
+                    if (rule != null && isAtOrBelow(rule, path)) {
+                        iterator.remove();
+                    }
+                }
+            }
+            for (Map.Entry<String, Integer> entry : rules.entrySet()) {
+                if (entry.getValue() == null) {
+                    permissions.remove(entry.getKey());
+                } else {
+                    permissions.put(entry.getKey(), entry.getValue());
+                }
+            }
+            revokedRules.clear();
+            rules.clear();
+            return Blessing.this;
+        }
+
+        //update locations can't overlap, so writes below a revoked location become part of its new value
+        @SuppressWarnings("unchecked")
+        private void put(String location, Object value) {
+            String ancestor = revokedAncestor(location);
+            if (ancestor == null) {
+                updates.put(location, value);
+                return;
+            }
+            Map<String, Object> root = (Map<String, Object>) updates.get(ancestor);
+            if (root == null) {
+                root = new HashMap<>();
+            }
+            String[] keys = location.substring(ancestor.length() + 1).split("/");
+            Map<String, Object> parent = root;
+            List<Map<String, Object>> parents = new ArrayList<>();
+            for (int i = 0; i < keys.length - 1 && parent != null; i++) {
+                parents.add(parent);
+                Map<String, Object> child = (Map<String, Object>) parent.get(keys[i]);
+                if (child == null && value != null) {
+                    child = new HashMap<>();
+                    parent.put(keys[i], child);
+                }
+                parent = child;
+            }
+            if (parent != null) {
+                if (value == null) {
+                    parent.remove(keys[keys.length - 1]);
+                    //drop emptied maps
+                    for (int i = parents.size() - 1; i >= 0 && parent.isEmpty(); i--) {
+                        parent = parents.get(i);
+                        parent.remove(keys[i]);
+                    }
+                } else {
+                    parent.put(keys[keys.length - 1], value);
+                }
+            }
+            updates.put(ancestor, root.isEmpty() ? null : root);
+        }
+
+        private String revokedAncestor(String location) {
+            for (String path : revoked) {
+                if (location.startsWith(path + "/")) {
+                    return path;
+                }
+            }
+            return null;
+        }
+
+        private boolean isAtOrBelow(String rule, String path) {
+            return rule.equals(path) || rule.startsWith(path + "/");
+        }
+
+        private String permissionsKey(String path) {
+            return path == null ? KEY_PERMISSIONS : path + "/" + KEY_PERMISSIONS;
+        }
+    }
+
     public static class Permission implements Iterable<Permission> {
         String key;
         String path;
         int inherited;
         int permissions;
-        final Map<String, Permission> children = new HashMap();
+        final Map<String, Permission> children = new HashMap<>();
 
 
         public Permission() {
         }
 
-        public Permission(DataSnapshot snapshot, String path, int inherited) {
+        public Permission(DataNode snapshot, String path, int inherited) {
             this.path = path;
             if (path != null) {
                 this.key = snapshot.getKey();
@@ -313,7 +721,7 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
             if (snapshot.hasChild(KEY_PERMISSIONS)) {
                 this.permissions |= snapshot.child(KEY_PERMISSIONS).getValue(Integer.class);
             }
-            for (DataSnapshot child : snapshot.getChildren()) {
+            for (DataNode child : snapshot.getChildren()) {
                 if (child.getKey().startsWith("_")) { //ignore keys with '_' prefix
                     continue;
                 }
@@ -357,6 +765,13 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
             }
         }
 
+        public void setPermissions(int permission) {
+            if (this.permissions != permission) {
+                this.permissions = permission;
+                propagateInherited();
+            }
+        }
+
         public void removePermissions(int permission) {
             this.permissions &= ~(permission);
             propagateInherited();
@@ -371,6 +786,7 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
             for (Permission permission : this) {
                 permission.permissions &= ref.getPermissions(permission.path);
             }
+            ref.invalidate();
             setInherited(inherited & ref.getPermissions(path));
         }
 
@@ -421,11 +837,20 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
 
 
     public static class PermissionTree implements Iterable<Permission> {
+        private static final int MAX_CACHED_PERMISSIONS = 1024;
+
         Permission root;
-        final Map<String, Permission> rules = new HashMap<>();
+        final PathTrie<Permission> rules = new PathTrie<>();
         PermissionTree parentTree;
 
-        public PermissionTree(DataSnapshot snapshot) {
+        //bumped whenever this tree or its parent tree changes
+        private int generation;
+        //<path, effective permissions> valid while the generations of this tree and its parent chain are unchanged
+        private final Map<String, CachedPermissions> cache = new HashMap<>();
+        //entries dropped from a full cache, reused for later misses
+        private final Queue<CachedPermissions> spareEntries = new ArrayDeque<>();
+
+        public PermissionTree(DataNode snapshot) {
             setRoot(new Permission(snapshot, null, 0));
         }
 
@@ -438,10 +863,23 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
             updateRules();
         }
 
+        public void setParentTree(PermissionTree parentTree) {
+            this.parentTree = parentTree;
+            invalidate();
+        }
+
+        //discard cached permissions
+        public void invalidate() {
+            generation++;
+        }
+
+        public int getGeneration() {
+            return generation;
+        }
+
         public void merge(PermissionTree tree) {
             Permission permissionA;
             Permission permissionB = tree.root;
-            permissionB.checkPermissions(tree);   //check no permissions exceed parent
             Queue<Permission> permissionQueue = new LinkedList<>();
             permissionQueue.add(permissionB);
 
@@ -453,36 +891,102 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
                     if (rules.containsKey(child.path)) {
                         permissionQueue.add(child);
                     } else {
-                        Permission childCopy = child.copy();
-                        childCopy.setInherited(permissionA.getPermissions());
-                        permissionA.children.put(childCopy.key, childCopy);
+                        permissionA.children.put(child.key, copyValidated(child, tree, permissionA.getPermissions()));
                     }
                 }
             }
             updateRules();
         }
 
+        //copy a subtree of tree, restricting its permissions to what the parent tree allows. tree isn't modified.
+        private static Permission copyValidated(Permission source, PermissionTree tree, int inherited) {
+            Permission result = new Permission();
+            result.key = source.key;
+            result.path = source.path;
+            result.inherited = inherited;
+            result.permissions = source.permissions & tree.getPermissions(source.path);
+            for (Permission child : source.children.values()) {
+                result.children.put(child.key, copyValidated(child, tree, result.getPermissions()));
+            }
+            return result;
+        }
+
         private void updateRules() {
             rules.clear();
             for (Permission permission : root) {
                 rules.put(permission.path, permission);
             }
+            invalidate();
         }
 
         public Permission get(String path) {
             return rules.get(path);
         }
 
+        //add an empty rule at path, creating any missing ancestors
+        Permission add(String path) {
+            Permission permission = rules.get(path);
+            if (permission != null || path == null) {
+                return permission;
+            }
+            int index = path.lastIndexOf("/");
+            Permission parent = add(index == -1 ? null : path.substring(0, index));
+            permission = new Permission();
+            permission.key = path.substring(index + 1);
+            permission.path = path;
+            permission.inherited = parent.getPermissions();
+            parent.children.put(permission.key, permission);
+            rules.put(path, permission);
+            invalidate();
+            return permission;
+        }
+
+        //remove the rule at path along with its subtree. The default rule can't be removed.
+        Permission remove(String path) {
+            Permission permission = rules.get(path);
+            if (permission == null || path == null) {
+                return null;
+            }
+            int index = path.lastIndexOf("/");
+            Permission parent = rules.get(index == -1 ? null : path.substring(0, index));
+            if (parent != null) {
+                parent.children.remove(permission.key);
+            }
+            rules.removeAll(path);
+            invalidate();
+            return permission;
+        }
+
+        //return the rule nearest to path, i.e. the rule at path or its closest ancestor
+        public Permission getNearest(String path) {
+            return rules.nearestValue(path);
+        }
+
         public int getPermissions(String path) {
-            path = Utils.getNearestCommonAncestor(path, keySet());
-            Permission permission = get(path);
-            if (permission == null) {
-                return 0;
+            CachedPermissions cached = cache.get(path);
+            if (cached != null && cached.isValid(this)) {
+                return cached.permissions;
+            }
+            int result = 0;
+            Permission permission = getNearest(path);
+            if (permission != null) {
+                result = permission.getPermissions();
+                if (parentTree != null) { //validate
+                    result &= parentTree.getPermissions(permission.path);
+                }
             }
-            int result = permission.getPermissions();
-            if (parentTree != null) { //validate
-                result &= parentTree.getPermissions(path);
+            if (cached == null) {
+                if (cache.size() >= MAX_CACHED_PERMISSIONS) {
+                    spareEntries.addAll(cache.values());
+                    cache.clear();
+                }
+                cached = spareEntries.poll();
+                if (cached == null) {
+                    cached = new CachedPermissions();
+                }
+                cache.put(path, cached);
             }
+            cached.set(this, result);
             return result;
         }
 
@@ -498,5 +1002,33 @@ public class Blessing implements Iterable<Blessing.Permission>, ValueEventListen
         public Iterator<Permission> iterator() {
             return root.iterator();
         }
+
+        private static class CachedPermissions {
+            int permissions;
+            //generations of the tree, its parent tree, and so on, when permissions were computed
+            int[] generations = new int[4];
+            int depth;
+
+            boolean isValid(PermissionTree tree) {
+                int i = 0;
+                for (PermissionTree t = tree; t != null; t = t.parentTree, i++) {
+                    if (i == depth || generations[i] != t.generation) {
+                        return false;
+                    }
+                }
+                return i == depth;
+            }
+
+            void set(PermissionTree tree, int permissions) {
+                this.permissions = permissions;
+                depth = 0;
+                for (PermissionTree t = tree; t != null; t = t.parentTree) {
+                    if (depth == generations.length) {
+                        generations = Arrays.copyOf(generations, depth * 2);
+                    }
+                    generations[depth++] = t.generation;
+                }
+            }
+        }
     }
 }
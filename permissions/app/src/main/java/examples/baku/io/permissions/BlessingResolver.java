@@ -0,0 +1,149 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.ValueListener;
+
+/**
+ * Resolves blessings that the manager isn't tracking, together with all of their missing ancestors.
+ * Each missing blessing is read on its own, and its source is requested as soon as it arrives. Ids requested while a
+ * read is pending share it, so concurrent chains with common ancestors read each of them once.
+ */
+class BlessingResolver {
+
+    interface Callback {
+        void onResolved(Blessing blessing);
+
+        //the blessing, or one of its ancestors, doesn't exist
+        void onMissing(String id);
+
+        void onCancelled(DataError error);
+    }
+
+    private final PermissionManager mPermissionManager;
+    //<id, callbacks> waiting for the blessing, which is being read or waiting for its source
+    private final Map<String, List<Callback>> mWaiting = new HashMap<>();
+    //<id, source> of blessings that were read and wait for their source
+    private final Map<String, String> mWaitingFor = new HashMap<>();
+
+    BlessingResolver(PermissionManager permissionManager) {
+        this.mPermissionManager = permissionManager;
+    }
+
+    void resolve(String id, Callback callback) {
+        Blessing blessing = mPermissionManager.getBlessing(id);
+        if (blessing != null) {
+            callback.onResolved(blessing);
+            return;
+        }
+        List<Callback> callbacks = mWaiting.get(id);
+        if (callbacks != null) {
+            callbacks.add(callback);
+            return;
+        }
+        callbacks = new ArrayList<>();
+        callbacks.add(callback);
+        mWaiting.put(id, callbacks);
+        fetch(id);
+    }
+
+    private void fetch(final String id) {
+        mPermissionManager.getBlessingsRef().child(id).addSingleValueListener(new ValueListener() {
+            @Override
+            public void onDataChange(final DataNode dataSnapshot) {
+                if (!dataSnapshot.exists()) {
+                    onMissing(id);
+                    return;
+                }
+                String source = Blessing.getSource(dataSnapshot);
+                if (source == null || mPermissionManager.getBlessing(source) != null) {
+                    onRead(id, dataSnapshot);
+                    return;
+                }
+                if (dependsOn(source, id)) {    //a cycle never resolves
+                    onMissing(id);
+                    return;
+                }
+                mWaitingFor.put(id, source);
+                resolve(source, new Callback() {
+                    @Override
+                    public void onResolved(Blessing blessing) {
+                        mWaitingFor.remove(id);
+                        onRead(id, dataSnapshot);
+                    }
+
+                    @Override
+                    public void onMissing(String missing) {
+                        mWaitingFor.remove(id);
+                        BlessingResolver.this.onMissing(id);
+                    }
+
+                    @Override
+                    public void onCancelled(DataError error) {
+                        mWaitingFor.remove(id);
+                        BlessingResolver.this.onCancelled(id, error);
+                    }
+                });
+            }
+
+            @Override
+            public void onCancelled(DataError databaseError) {
+                BlessingResolver.this.onCancelled(id, databaseError);
+            }
+        });
+    }
+
+    //true if id waits, directly or through its ancestors, for target
+    private boolean dependsOn(String id, String target) {
+        Set<String> visited = new HashSet<>();
+        for (String current = id; current != null && visited.add(current); current = mWaitingFor.get(current)) {
+            if (current.equals(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //the source of the blessing is tracked, so it can be created
+    private void onRead(String id, DataNode snapshot) {
+        Blessing blessing = mPermissionManager.getBlessing(id);
+        if (blessing == null) {
+            blessing = Blessing.fromSnapshot(mPermissionManager, snapshot);
+        }
+        List<Callback> callbacks = mWaiting.remove(id);
+        if (callbacks != null) {
+            for (Callback callback : callbacks) {
+                callback.onResolved(blessing);
+            }
+        }
+    }
+
+    private void onMissing(String id) {
+        List<Callback> callbacks = mWaiting.remove(id);
+        if (callbacks != null) {
+            for (Callback callback : callbacks) {
+                callback.onMissing(id);
+            }
+        }
+    }
+
+    private void onCancelled(String id, DataError error) {
+        List<Callback> callbacks = mWaiting.remove(id);
+        if (callbacks != null) {
+            for (Callback callback : callbacks) {
+                callback.onCancelled(error);
+            }
+        }
+    }
+}
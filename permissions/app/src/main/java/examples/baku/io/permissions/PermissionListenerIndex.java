@@ -0,0 +1,114 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import examples.baku.io.permissions.util.PathTrie;
+
+/**
+ * Index of permission listener paths. Each listened path is associated with the rule that currently governs it,
+ * i.e. the nearest rule at or above the path. Rule changes only touch the listeners below the changed rule.
+ */
+class PermissionListenerIndex {
+
+    private final PathTrie<Subscription> mSubscriptions = new PathTrie<>();
+    //<rule path, subscriptions governed by the rule>
+    private final Multimap<String, Subscription> mGoverned = HashMultimap.create();
+
+    static class Subscription {
+        final String path;
+        String rule;
+        int permissions;    //last value delivered to the listeners
+        final Set<PermissionManager.OnPermissionChangeListener> listeners = new LinkedHashSet<>();
+
+        Subscription(String path, String rule) {
+            this.path = path;
+            this.rule = rule;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getRule() {
+            return rule;
+        }
+
+        public List<PermissionManager.OnPermissionChangeListener> getListeners() {
+            return new ArrayList<>(listeners);
+        }
+    }
+
+    Subscription add(String path, PermissionManager.OnPermissionChangeListener listener, String rule) {
+        Subscription subscription = mSubscriptions.get(path);
+        if (subscription == null) {
+            subscription = new Subscription(path, rule);
+            mSubscriptions.put(path, subscription);
+            mGoverned.put(rule, subscription);
+        }
+        subscription.listeners.add(listener);
+        return subscription;
+    }
+
+    boolean remove(String path, PermissionManager.OnPermissionChangeListener listener) {
+        Subscription subscription = mSubscriptions.get(path);
+        if (subscription == null || !subscription.listeners.remove(listener)) {
+            return false;
+        }
+        if (subscription.listeners.isEmpty()) {
+            mSubscriptions.remove(path);
+            mGoverned.remove(subscription.rule, subscription);
+        }
+        return true;
+    }
+
+    Subscription get(String path) {
+        return mSubscriptions.get(path);
+    }
+
+    Collection<Subscription> getGoverned(String rule) {
+        if (!mGoverned.containsKey(rule)) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(mGoverned.get(rule));
+    }
+
+    //a rule was added at path, re-home the subscriptions below it that were governed by one of its ancestors
+    void onRuleAdded(String path) {
+        PathTrie.Node<Subscription> node = mSubscriptions.find(path);
+        if (node == null) {
+            return;
+        }
+        for (PathTrie.Node<Subscription> subscriptionNode : node.nodes()) {
+            Subscription subscription = subscriptionNode.getValue();
+            //both rules are at or above the subscription path, so the longer one is nearer
+            if (subscription.rule == null || subscription.rule.length() < path.length()) {
+                move(subscription, path);
+            }
+        }
+    }
+
+    //the rule at path was removed, its subscriptions are now governed by the nearest remaining ancestor
+    void onRuleRemoved(String path, String ancestor) {
+        for (Subscription subscription : getGoverned(path)) {
+            move(subscription, ancestor);
+        }
+    }
+
+    private void move(Subscription subscription, String rule) {
+        mGoverned.remove(subscription.rule, subscription);
+        subscription.rule = rule;
+        mGoverned.put(rule, subscription);
+    }
+}
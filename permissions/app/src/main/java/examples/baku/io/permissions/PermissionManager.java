@@ -4,25 +4,33 @@
 
 package examples.baku.io.permissions;
 
+import android.os.Handler;
+import android.os.Looper;
+
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
 import com.google.common.collect.Table;
-import com.google.firebase.database.ChildEventListener;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.ValueEventListener;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import examples.baku.io.permissions.util.Utils;
-
+import examples.baku.io.permissions.storage.ChildListener;
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.DataQuery;
+import examples.baku.io.permissions.storage.DataRef;
+import examples.baku.io.permissions.util.TimerWheel;
 
 /**
  * Created by phamilton on 6/28/16.
@@ -31,9 +39,13 @@ public class PermissionManager {
 
     public static final String EXTRA_TIMEOUT = "extraTimeout";
     public static final String EXTRA_COLOR = "extraColor";
-    private DatabaseReference mDatabaseRef;
-    private DatabaseReference mBlessingsRef;
-    private DatabaseReference mRequestsRef;
+    private DataRef mDatabaseRef;
+    private DataRef mBlessingsRef;
+    private DataRef mRequestsRef;
+    //requests with a timeout are loaded until they expire, the others always. The server filters the first with an
+    //index on expiresAt, see the database rules in the README.
+    private DataQuery mTimedRequestsQuery;
+    private DataQuery mUntimedRequestsQuery;
 
     public static final int FLAG_DEFAULT = 0;
     public static final int FLAG_WRITE = 1 << 0;
@@ -41,12 +53,38 @@ public class PermissionManager {
     public static final int FLAG_SUGGEST = 1 << 2;
     public static final int FLAG_ROOT = Integer.MAX_VALUE;
 
+    //batch windows for permission change notifications
+    public static final long BATCH_DISABLED = -1;    //refresh and notify on every blessing update
+    public static final long BATCH_LOOPER = 0;       //coalesce updates delivered within the same main looper pass
+
     static final String KEY_PERMISSIONS = "_permissions";
     static final String KEY_REQUESTS = "_requests";
+
+    private static final long REQUEST_EXPIRY_TICK = 250;
+    private static final int REQUEST_EXPIRY_SLOTS = 256;
     static final String KEY_BLESSINGS = "_blessings";
 
     private static final String KEY_ROOT = "root";
 
+    //orders paths by depth, default rule first
+    private static final Comparator<String> DEPTH_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            return depth(a) - depth(b);
+        }
+
+        private int depth(String path) {
+            if (path == null) {
+                return -1;
+            }
+            int depth = 0;
+            for (int i = path.indexOf("/"); i != -1; i = path.indexOf("/", i + 1)) {
+                depth++;
+            }
+            return depth;
+        }
+    };
+
     private String mId;
     private Blessing rootBlessing;
 
@@ -55,26 +93,49 @@ public class PermissionManager {
     //<source, target, blessing>
     private final Table<String, String, Blessing> mBlessingsTable = HashBasedTable.create();
     private final Set<String> mBlessingTargets = new HashSet();
+    private final BlessingResolver mBlessingResolver = new BlessingResolver(this);
 
-    private final Map<String, PermissionRequest> mRequests = new HashMap<>();
+    private final RequestIndex mRequests = new RequestIndex();
     private final Table<String, String, PermissionRequest.Builder> mActiveRequests = HashBasedTable.create();
 
-    private final Multimap<String, OnRequestListener> mRequestListeners = HashMultimap.create(); //<path,, >
     private final Multimap<String, OnRequestListener> mSubscribedRequests = HashMultimap.create(); //<requestDialog id, >
+    private final TimerWheel<String> mRequestExpiry = new TimerWheel<>(REQUEST_EXPIRY_TICK, REQUEST_EXPIRY_SLOTS);
+    private Handler mExpiryHandler;
+    private long mNextRequestExpiry = Long.MAX_VALUE; //deadline of the posted expiry callback
 
-    private Blessing.PermissionTree mPermissionTree = new Blessing.PermissionTree();
-    private final Multimap<String, OnPermissionChangeListener> mPermissionValueEventListeners = HashMultimap.create();
-    private final Multimap<String, String> mNearestAncestors = HashMultimap.create();
+    //published on every update, readers on other threads can use it without locking
+    private volatile PersistentPermissionTree mPermissionTree = PersistentPermissionTree.EMPTY;
+    //<blessing, <path, permissions>> rules applied from each received blessing
+    private final Map<Blessing, Map<String, Integer>> mAppliedRules = new HashMap<>();
+    //<path, <blessing, permissions>> blessings contributing to each rule
+    private final Map<String, Map<Blessing, Integer>> mRuleOwners = new HashMap<>();
+    private final PermissionListenerIndex mPermissionListeners = new PermissionListenerIndex();
+
+    private final int mBlessingSyncMode;
+    private long mBatchWindow = BATCH_DISABLED;
+    private int mBatchDepth;
+    private Handler mBatchHandler;
+    private final Set<Blessing> mPendingBlessings = new LinkedHashSet<>();
 
 
     //TODO: replace string ownerId with Auth
-    public PermissionManager(final DatabaseReference databaseReference, String owner) {
+    public PermissionManager(final DataRef databaseReference, String owner) {
+        this(databaseReference, owner, Blessing.SYNC_SNAPSHOT);
+    }
+
+    //Blessing.SYNC_CHILDREN opts in to syncing rules from child events
+    public PermissionManager(final DataRef databaseReference, String owner, int blessingSyncMode) {
         this.mDatabaseRef = databaseReference;
         this.mId = owner;
+        this.mBlessingSyncMode = blessingSyncMode;
 
         mRequestsRef = databaseReference.child(KEY_REQUESTS);
         //TODO: only consider requests from sources within the constellation
-        mRequestsRef.addChildEventListener(requestListener);
+        mTimedRequestsQuery = mRequestsRef.orderByChild(PermissionRequest.KEY_EXPIRES_AT).startAt(System.currentTimeMillis());
+        mTimedRequestsQuery.addChildListener(timedRequestListener);
+        //requests without expiresAt sort before any number
+        mUntimedRequestsQuery = mRequestsRef.orderByChild(PermissionRequest.KEY_EXPIRES_AT).endAt(0);
+        mUntimedRequestsQuery.addChildListener(untimedRequestListener);
         mBlessingsRef = mDatabaseRef.child(KEY_BLESSINGS);
 
         this.mId = owner;
@@ -84,12 +145,13 @@ public class PermissionManager {
     }
 
     public void join(String group) {
-        mBlessingsRef.orderByChild("target").equalTo(group).addChildEventListener(blessingListener);
+        //stores may deliver existing blessings synchronously, so the group has to be a target first
         mBlessingTargets.add(group);
+        mBlessingsRef.orderByChild("target").equalTo(group).addChildListener(blessingListener);
     }
 
     public void leave(String group) {
-        mBlessingsRef.orderByChild("target").equalTo(group).removeEventListener(blessingListener);
+        mBlessingsRef.orderByChild("target").equalTo(group).removeListener(blessingListener);
         mBlessingTargets.remove(group);
     }
 
@@ -97,79 +159,214 @@ public class PermissionManager {
         rootBlessing = Blessing.createRoot(this, mId);
     }
 
-    //TODO: optimize this mess. Currently, recalculating entire permission tree.
-    void refreshPermissions() {
-        Blessing.PermissionTree updatedPermissionTree = new Blessing.PermissionTree();
-        //received blessings
-        for (Blessing blessing : getReceivedBlessings()) {
-            if (blessing.isSynched()) {
-                updatedPermissionTree.merge(blessing.getPermissionTree());
+    //how blessings sync their rules, see Blessing.SYNC_SNAPSHOT and Blessing.SYNC_CHILDREN
+    public int getBlessingSyncMode() {
+        return mBlessingSyncMode;
+    }
+
+    //coalesce blessing updates for the given window (in milliseconds) and notify listeners once per window.
+    //See BATCH_DISABLED and BATCH_LOOPER.
+    public void setBatchWindow(long millis) {
+        mBatchWindow = millis;
+        if (millis < 0) {
+            flushPermissions();
+        } else if (mBatchHandler == null) {
+            mBatchHandler = new Handler(Looper.getMainLooper());
+        }
+    }
+
+    public long getBatchWindow() {
+        return mBatchWindow;
+    }
+
+    //hold permission change notifications until the matching endBatch()
+    public void beginBatch() {
+        mBatchDepth++;
+    }
+
+    public void endBatch() {
+        if (mBatchDepth > 0 && --mBatchDepth == 0) {
+            flushPermissions();
+        }
+    }
+
+    //apply pending blessing updates and deliver one consolidated notification per listener
+    public void flushPermissions() {
+        if (mBatchHandler != null) {
+            mBatchHandler.removeCallbacks(mFlushPermissions);
+        }
+        Set<String> changedPermissions = new HashSet<>();
+        while (!mPendingBlessings.isEmpty()) {
+            List<Blessing> blessings = new ArrayList<>(mPendingBlessings);
+            mPendingBlessings.clear();
+            for (Blessing blessing : blessings) {
+                changedPermissions.addAll(applyBlessing(blessing));
             }
         }
+        notifyPermissionsChanged(changedPermissions);
+    }
 
-        //re-associate listeners with rules
-        mNearestAncestors.clear();
-        for (String path : mPermissionValueEventListeners.keySet()) {
-            String nearestAncestor = Utils.getNearestCommonAncestor(path, updatedPermissionTree.keySet());
-            if (nearestAncestor != null) {
-                mNearestAncestors.put(nearestAncestor, path);
+    private final Runnable mFlushPermissions = new Runnable() {
+        @Override
+        public void run() {
+            if (mBatchDepth == 0) {
+                flushPermissions();
             }
         }
+    };
+
+    private void requestRefresh(Blessing blessing) {
+        if (mBatchWindow < 0 && mBatchDepth == 0) {
+            refreshPermissions(blessing);
+            return;
+        }
+        if (mPendingBlessings.add(blessing) && mPendingBlessings.size() == 1 && mBatchHandler != null) {
+            mBatchHandler.postDelayed(mFlushPermissions, Math.max(mBatchWindow, 0));
+        }
+    }
 
+    //reconcile the permission tree with every received blessing
+    Set<String> refreshPermissions() {
+        Set<Blessing> blessings = new HashSet<>(mAppliedRules.keySet());
+        blessings.addAll(getReceivedBlessings());
         Set<String> changedPermissions = new HashSet<>();
+        for (Blessing blessing : blessings) {
+            changedPermissions.addAll(applyBlessing(blessing));
+        }
+        notifyPermissionsChanged(changedPermissions);
+        return changedPermissions;
+    }
+
+    //apply the rule delta of a single blessing and notify the listeners of changed paths.
+    //Only the subtrees touched by the delta are recalculated.
+    Set<String> refreshPermissions(Blessing blessing) {
+        mPendingBlessings.remove(blessing);
+        Set<String> changedPermissions = applyBlessing(blessing);
+        notifyPermissionsChanged(changedPermissions);
+        return changedPermissions;
+    }
 
-        //determine removed permissions
-        Sets.SetView<String> removedPermissions = Sets.difference(mPermissionTree.keySet(), updatedPermissionTree.keySet());
-        for (String path : removedPermissions) {
-            String newPath = Utils.getNearestCommonAncestor(path, updatedPermissionTree.keySet());
-            int previous = mPermissionTree.getPermissions(path);
-            int current = updatedPermissionTree.getPermissions(newPath);
-            if (previous != current) {
-                changedPermissions.add(newPath);
+    private Set<String> applyBlessing(Blessing blessing) {
+        Map<String, Integer> rules = new HashMap<>();
+        if (blessing.isSynched() && !blessing.isRevoked() && isReceived(blessing)) {
+            for (Blessing.Permission permission : blessing.getPermissionTree().values()) {
+                rules.put(permission.path, blessing.getPermissions(permission.path));
             }
         }
+        return applyRules(blessing, rules);
+    }
+
+    private boolean isReceived(Blessing blessing) {
+        return mBlessingTargets.contains(blessing.getTarget())
+                && getBlessing(blessing.getSource(), blessing.getTarget()) == blessing;
+    }
+
+    private Set<String> applyRules(Blessing blessing, Map<String, Integer> rules) {
+        Map<String, Integer> previousRules = mAppliedRules.remove(blessing);
+        if (previousRules == null) {
+            previousRules = Collections.emptyMap();
+        }
+        if (!rules.isEmpty()) {
+            mAppliedRules.put(blessing, rules);
+        }
 
-        //compare previous tree
-        for (Blessing.Permission permission : updatedPermissionTree.values()) {
-            int previous = mPermissionTree.getPermissions(permission.path);
-            int current = updatedPermissionTree.getPermissions(permission.path);
-            if (previous != current) {
-                changedPermissions.add(permission.path);
+        //determine which rule paths this blessing changed
+        Set<String> delta = new HashSet<>();
+        for (String path : previousRules.keySet()) {
+            if (!rules.containsKey(path)) {
+                Map<Blessing, Integer> owners = mRuleOwners.get(path);
+                owners.remove(blessing);
+                if (owners.isEmpty()) {
+                    mRuleOwners.remove(path);
+                }
+                delta.add(path);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : rules.entrySet()) {
+            String path = entry.getKey();
+            if (!entry.getValue().equals(previousRules.get(path))) {
+                Map<Blessing, Integer> owners = mRuleOwners.get(path);
+                if (owners == null) {
+                    owners = new HashMap<>();
+                    mRuleOwners.put(path, owners);
+                }
+                owners.put(blessing, entry.getValue());
+                delta.add(path);
             }
         }
 
-        mPermissionTree = updatedPermissionTree;
+        if (delta.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return updatePermissionTree(delta);
+    }
 
-        //notify listeners
-        for (String path : changedPermissions) {
-            onPermissionsChange(path);
+    //recalculate the rules at the given paths from their owning blessings and return the paths whose permissions changed
+    private Set<String> updatePermissionTree(Set<String> delta) {
+        List<String> paths = new ArrayList<>(delta);
+        Collections.sort(paths, DEPTH_ORDER);
+
+        PersistentPermissionTree previous = mPermissionTree;
+        PersistentPermissionTree current = previous;
+        for (String path : paths) {
+            Map<Blessing, Integer> owners = mRuleOwners.get(path);
+            if (owners == null) {
+                //rules below this one may still be owned by other blessings
+                current = current.removeRule(path);
+                continue;
+            }
+            int permissions = FLAG_DEFAULT;
+            for (int value : owners.values()) {
+                permissions |= value;
+            }
+            current = current.setPermissions(path, permissions);
         }
+        if (current == previous) {
+            return Collections.emptySet();
+        }
+        mPermissionTree = current;
 
+        //only the subtrees that were copied are compared
+        PersistentPermissionTree.Diff diff = PersistentPermissionTree.diff(previous, current);
 
+        //re-associate listeners with removed rules, then with added rules
+        for (String path : diff.removed) {
+            mPermissionListeners.onRuleRemoved(path, current.getNearest(path));
+        }
+        for (String path : diff.added) {
+            mPermissionListeners.onRuleAdded(path);
+        }
+
+        Set<String> changedPermissions = new HashSet<>();
+        for (String path : diff.changed) {
+            //removed rule, its listeners are now governed by the nearest remaining ancestor
+            changedPermissions.add(current.contains(path) ? path : current.getNearest(path));
+        }
+        return changedPermissions;
+    }
+
+    private void notifyPermissionsChanged(Set<String> paths) {
+        for (String path : paths) {
+            onPermissionsChange(path);
+        }
     }
 
-    //call all the listeners effected by a permission change at this path
+    //call all the listeners effected by a permission change at this path.
+    //Listeners are only called if the permission differs from the last value they received.
     void onPermissionsChange(String path) {
         int permission = getPermissions(path);
-        if (mNearestAncestors.containsKey(path)) {
-            for (String listenerPath : mNearestAncestors.get(path)) {
-                if (mPermissionValueEventListeners.containsKey(listenerPath)) {
-                    for (OnPermissionChangeListener listener : mPermissionValueEventListeners.get(listenerPath)) {
-                        listener.onPermissionChange(permission);
-                    }
+        for (PermissionListenerIndex.Subscription subscription : mPermissionListeners.getGoverned(path)) {
+            if (subscription.permissions != permission) {
+                subscription.permissions = permission;
+                for (OnPermissionChangeListener listener : subscription.getListeners()) {
+                    listener.onPermissionChange(permission);
                 }
             }
         }
     }
 
     public Set<PermissionRequest> getRequests(String path) {
-        Set<PermissionRequest> result = new HashSet<>();
-        for (PermissionRequest request : mRequests.values()) {
-            if (getAllPaths(request.getPath()).contains(path)) {
-                result.add(request);
-            }
-        }
-        return result;
+        return new HashSet<>(mRequests.getMatching(path));
     }
 
     public PermissionRequest getRequest(String rId) {
@@ -228,36 +425,90 @@ public class PermissionManager {
         return rootBlessing.bless(target);
     }
 
-    public DatabaseReference getBlessingsRef() {
+    public void revokeBlessing(Blessing blessing) {
+        revokeBlessings(Collections.singleton(blessing));
+    }
+
+    //revoke blessings along with every blessing delegated from them. The rules of the whole closure are deleted in a
+    //single update, and permissions are refreshed once at the end.
+    public void revokeBlessings(Collection<Blessing> blessings) {
+        Set<Blessing> closure = new LinkedHashSet<>();
+        Deque<Blessing> queue = new ArrayDeque<>(blessings);
+        while (!queue.isEmpty()) {
+            Blessing blessing = queue.poll();
+            if (closure.add(blessing)) {
+                queue.addAll(mBlessingsTable.row(blessing.getId()).values());
+            }
+        }
+        beginBatch();
+        try {
+            //mark the whole closure first, so that listeners don't cascade revocations
+            Map<String, Object> deletes = new HashMap<>();
+            List<Blessing> revoked = new ArrayList<>();
+            for (Blessing blessing : closure) {
+                if (blessing.markRevoked()) {
+                    deletes.put(blessing.getId() + "/" + Blessing.KEY_RULES, null);
+                    revoked.add(blessing);
+                }
+            }
+            for (Blessing blessing : revoked) {
+                blessing.notifyRemoved();
+            }
+            if (!deletes.isEmpty()) {
+                mBlessingsRef.updateChildren(deletes);
+            }
+        } finally {
+            endBatch();
+        }
+    }
+
+    public DataRef getBlessingsRef() {
         return mBlessingsRef;
     }
 
-    private ChildEventListener requestListener = new ChildEventListener() {
+    BlessingResolver getBlessingResolver() {
+        return mBlessingResolver;
+    }
+
+    private final RequestListener timedRequestListener = new RequestListener(true);
+    private final RequestListener untimedRequestListener = new RequestListener(false);
+
+    private class RequestListener implements ChildListener {
+        private final boolean timed;
+
+        RequestListener(boolean timed) {
+            this.timed = timed;
+        }
+
         @Override
-        public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+        public void onChildAdded(DataNode dataSnapshot, String s) {
             onRequestUpdated(dataSnapshot);
         }
 
         @Override
-        public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+        public void onChildChanged(DataNode dataSnapshot, String s) {
             onRequestUpdated(dataSnapshot);
         }
 
         @Override
-        public void onChildRemoved(DataSnapshot dataSnapshot) {
-            onRequestRemoved(dataSnapshot);
+        public void onChildRemoved(DataNode dataSnapshot) {
+            PermissionRequest current = mRequests.get(dataSnapshot.getKey());
+            //a request that gained or lost its timeout moves to the other query, which may have added it first
+            if (current == null || current.isTimed() == timed) {
+                onRequestRemoved(dataSnapshot);
+            }
         }
 
         @Override
-        public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+        public void onChildMoved(DataNode dataSnapshot, String s) {
 
         }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(DataError databaseError) {
 
         }
-    };
+    }
 
     public void finishRequest(String rId) {
         //TODO: notify source entity and ignore instead of removing
@@ -270,7 +521,7 @@ public class PermissionManager {
         finishRequest(request.getId());
     }
 
-    private void onRequestUpdated(DataSnapshot snapshot) {
+    private void onRequestUpdated(DataNode snapshot) {
         if (!snapshot.exists()) {
             return;
         }
@@ -290,6 +541,13 @@ public class PermissionManager {
             return;
         }
 
+        long expiry = request.getExpiry();
+        long now = System.currentTimeMillis();
+        if (expiry != 0 && expiry <= now) {
+            expireRequest(request.getId());
+            return;
+        }
+
         //Check if request permissions can be granted by this instance
         if ((getPermissions(requestPath) & request.getPermissions()) != request.getPermissions()) {
             return;
@@ -297,7 +555,13 @@ public class PermissionManager {
 
         String rId = request.getId();
         String source = request.getSource();
-        mRequests.put(rId, request);
+        mRequests.put(request);
+        if (expiry != 0) {
+            mRequestExpiry.schedule(rId, expiry);
+            scheduleRequestExpiry();
+        } else {
+            mRequestExpiry.cancel(rId);
+        }
 
         if (mSubscribedRequests.containsKey(rId)) {
             for (OnRequestListener listener : new HashSet<>(mSubscribedRequests.get(rId))) {
@@ -307,70 +571,95 @@ public class PermissionManager {
                 }
             }
         } else {
-            for (String path : getAllPaths(request.getPath())) {
-                for (OnRequestListener listener : mRequestListeners.get(path)) {
-                    if (listener.onRequest(request, bless(source))) {
-                        //add subscription
-                        mSubscribedRequests.put(request.getId(), listener);
-                    }
+            for (OnRequestListener listener : mRequests.getListeners(requestPath)) {
+                if (listener.onRequest(request, bless(source))) {
+                    //add subscription
+                    mSubscribedRequests.put(request.getId(), listener);
                 }
             }
         }
     }
 
-    private void onRequestRemoved(DataSnapshot snapshot) {
+    private void onRequestRemoved(DataNode snapshot) {
         mRequests.remove(snapshot.getKey());
+        mRequestExpiry.cancel(snapshot.getKey());
         PermissionRequest request = snapshot.getValue(PermissionRequest.class);
+        if (request != null && !mId.equals(request.getSource())) {    //ignore local requests
+            notifyRequestRemoved(request);
+        }
+    }
+
+    private void notifyRequestRemoved(PermissionRequest request) {
         String source = request.getSource();
-        if (request != null && !mId.equals(source)) {    //ignore local requests
-            for (OnRequestListener listener : mSubscribedRequests.removeAll(request.getId())) {
-                listener.onRequestRemoved(request, bless(source));
-            }
+        for (OnRequestListener listener : mSubscribedRequests.removeAll(request.getId())) {
+            listener.onRequestRemoved(request, bless(source));
         }
     }
 
-    //allows
-    private Set<String> getAllPaths(String path) {
-        Set<String> result = new HashSet<>();
-        result.add(path);
-        result.add("*");
-        String subpath = path;
-        int index;
-        while ((index = subpath.lastIndexOf("/")) != -1) {
-            subpath = subpath.substring(0, index);
-            result.add(subpath + "/*");
+    //drop an expired request locally and from the store
+    private void expireRequest(String rId) {
+        PermissionRequest request = mRequests.remove(rId);
+        mRequestExpiry.cancel(rId);
+        if (request != null) {
+            notifyRequestRemoved(request);
         }
-        return result;
+        finishRequest(rId);
+    }
+
+    //post a single callback at the next deadline. Requests cancelled before it leave the callback in place, it
+    //expires nothing and is posted again for the next deadline.
+    private void scheduleRequestExpiry() {
+        long deadline = mRequestExpiry.nextDeadline();
+        if (deadline >= mNextRequestExpiry) {
+            return;
+        }
+        if (mExpiryHandler == null) {
+            mExpiryHandler = new Handler(Looper.getMainLooper());
+        }
+        mExpiryHandler.removeCallbacks(mExpireRequests);
+        mNextRequestExpiry = deadline;
+        mExpiryHandler.postDelayed(mExpireRequests, Math.max(deadline - System.currentTimeMillis(), 0));
     }
 
-    private ChildEventListener blessingListener = new ChildEventListener() {
+    private final Runnable mExpireRequests = new Runnable() {
         @Override
-        public void onChildAdded(DataSnapshot snapshot, String s) {
+        public void run() {
+            mNextRequestExpiry = Long.MAX_VALUE;
+            for (String rId : mRequestExpiry.advance(System.currentTimeMillis())) {
+                expireRequest(rId);
+            }
+            scheduleRequestExpiry();
+        }
+    };
+
+    private ChildListener blessingListener = new ChildListener() {
+        @Override
+        public void onChildAdded(DataNode snapshot, String s) {
             Blessing receivedBlessing = Blessing.fromSnapshot(PermissionManager.this, snapshot);
             receivedBlessing.addListener(blessingChangedListner);
         }
 
         @Override
-        public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+        public void onChildChanged(DataNode dataSnapshot, String s) {
         }
 
         @Override
-        public void onChildRemoved(DataSnapshot dataSnapshot) {
+        public void onChildRemoved(DataNode dataSnapshot) {
             Blessing removedBlessing = mBlessings.remove(dataSnapshot.getKey());
             if (removedBlessing != null) {
                 removedBlessing.removeListener(blessingChangedListner);
                 mBlessingsTable.remove(removedBlessing.getSource(), removedBlessing.getTarget());
-                refreshPermissions();
+                requestRefresh(removedBlessing);
             }
         }
 
         @Override
-        public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+        public void onChildMoved(DataNode dataSnapshot, String s) {
 
         }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(DataError databaseError) {
 
         }
     };
@@ -378,12 +667,12 @@ public class PermissionManager {
     private Blessing.OnBlessingUpdatedListener blessingChangedListner = new Blessing.OnBlessingUpdatedListener() {
         @Override
         public void onBlessingUpdated(Blessing blessing) {
-            refreshPermissions();
+            requestRefresh(blessing);
         }
 
         @Override
         public void onBlessingRemoved(Blessing blessing) {
-            refreshPermissions();
+            requestRefresh(blessing);
         }
     };
 
@@ -392,57 +681,42 @@ public class PermissionManager {
         return mPermissionTree.getPermissions(path);
     }
 
-    public OnPermissionChangeListener addPermissionEventListener(String path, OnPermissionChangeListener listener) {
-        int current = FLAG_DEFAULT;
-        mPermissionValueEventListeners.put(path, listener);
+    //immutable snapshot of the current permissions
+    public PersistentPermissionTree getPermissionSnapshot() {
+        return mPermissionTree;
+    }
 
-        String nearestAncestor = Utils.getNearestCommonAncestor(path, mPermissionTree.keySet());
-        if (nearestAncestor != null) {
-            current = getPermissions(nearestAncestor);
-            mNearestAncestors.put(nearestAncestor, path);
-        }
-        listener.onPermissionChange(current);
+    public OnPermissionChangeListener addPermissionEventListener(String path, OnPermissionChangeListener listener) {
+        String nearestAncestor = mPermissionTree.getNearest(path);
+        PermissionListenerIndex.Subscription subscription = mPermissionListeners.add(path, listener, nearestAncestor);
+        subscription.permissions = getPermissions(nearestAncestor);
+        listener.onPermissionChange(subscription.permissions);
         return listener;
     }
 
     public void removePermissionEventListener(String path, OnPermissionChangeListener listener) {
-        mPermissionValueEventListeners.remove(path, listener);
-        String nca = Utils.getNearestCommonAncestor(path, mPermissionTree.keySet());
-        mNearestAncestors.remove(nca, path);
-
+        mPermissionListeners.remove(path, listener);
     }
 
 
     public void removeOnRequestListener(String path, OnRequestListener requestListener) {
-        mRequestListeners.remove(path, requestListener);
-        if (mRequestListeners.values().contains(requestListener)) {
+        mRequests.removeListener(path, requestListener);
+        if (mRequests.hasListener(requestListener)) {
             //TODO: this doesn't catch cases where one request listener unsubscribed
-            for (Map.Entry<String, OnRequestListener> entry : mSubscribedRequests.entries()) {
-                if (entry.getValue().equals(requestListener)) {
-                    String rId = entry.getKey();
-                    PermissionRequest request = mRequests.get(rId);
-                    if (getAllPaths(request.getPath()).contains(path)) {
-                        mSubscribedRequests.remove(rId, requestListener);
-                    }
-                }
+            for (PermissionRequest request : mRequests.getMatching(path)) {
+                mSubscribedRequests.remove(request.getId(), requestListener);
             }
-
         } else {
             mSubscribedRequests.values().remove(requestListener);
         }
     }
 
     public OnRequestListener addOnRequestListener(String path, OnRequestListener requestListener) {
-        mRequestListeners.put(path, requestListener);
-        for (Map.Entry<String, PermissionRequest> entry : mRequests.entrySet()) {
-            String rId = entry.getKey();
-            PermissionRequest request = entry.getValue();
-            Set<String> requestPaths = getAllPaths(request.getPath());
-            if (requestPaths.contains(path)) {
-                String source = request.getSource();
-                if (requestListener.onRequest(request, bless(source))) {
-                    mSubscribedRequests.put(rId, requestListener);
-                }
+        mRequests.addListener(path, requestListener);
+        for (PermissionRequest request : mRequests.getMatching(path)) {
+            String source = request.getSource();
+            if (requestListener.onRequest(request, bless(source))) {
+                mSubscribedRequests.put(request.getId(), requestListener);
             }
         }
         return requestListener;
@@ -473,11 +747,18 @@ public class PermissionManager {
     }
 
     public void onDestroy() {
-        mBlessingsRef.removeEventListener(blessingListener);
-        mRequestsRef.removeEventListener(requestListener);
-        for (Blessing blessing : new HashSet<Blessing>(mBlessings.values())) {
-            blessing.revoke();
+        if (mBatchHandler != null) {
+            mBatchHandler.removeCallbacks(mFlushPermissions);
+        }
+        mPendingBlessings.clear();
+        mBlessingsRef.removeListener(blessingListener);
+        if (mExpiryHandler != null) {
+            mExpiryHandler.removeCallbacks(mExpireRequests);
+            mNextRequestExpiry = Long.MAX_VALUE;
         }
+        mTimedRequestsQuery.removeListener(timedRequestListener);
+        mUntimedRequestsQuery.removeListener(untimedRequestListener);
+        revokeBlessings(new ArrayList<>(mBlessings.values()));
     }
 
     public interface OnRequestListener {
@@ -489,6 +770,6 @@ public class PermissionManager {
     public interface OnPermissionChangeListener {
         void onPermissionChange(int current);
 
-        void onCancelled(DatabaseError databaseError);
+        void onCancelled(DataError databaseError);
     }
 }
@@ -4,12 +4,16 @@
 
 package examples.baku.io.permissions;
 
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.ServerValue;
-
 import java.util.HashMap;
 import java.util.Map;
 
+import examples.baku.io.permissions.storage.DataCodec;
+import examples.baku.io.permissions.storage.DataCodecs;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.FieldCodec;
+import examples.baku.io.permissions.storage.DataRef;
+import examples.baku.io.permissions.storage.ServerValues;
+
 /**
  * Created by phamilton on 6/28/16.
  */
@@ -18,6 +22,7 @@ import java.util.Map;
 public class PermissionRequest {
 
     public static final String EXTRA_TITLE = "title";
+    static final String KEY_EXPIRES_AT = "expiresAt";
 
     private String id;
     private String path;
@@ -26,6 +31,8 @@ public class PermissionRequest {
     private int flags;
     private Map<String, String> extras = new HashMap<>();
     private long timeStamp;
+    private long timeout;   //milliseconds after the last update, 0 if the request doesn't expire
+    private Long expiresAt; //by the writer's clock, for the request query. Null if the request doesn't expire
 
     public PermissionRequest() {
     }
@@ -80,13 +87,52 @@ public class PermissionRequest {
     }
 
     public Map<String, String> getTimeStamp() {
-        return ServerValue.TIMESTAMP;
+        return ServerValues.TIMESTAMP;
     }
 
     public void setTimeStamp(long timeStamp) {
         this.timeStamp = timeStamp;
     }
 
+    //server time of the last update, once resolved
+    long getUpdateTime() {
+        return timeStamp;
+    }
+
+    public long getTimeout() {
+        if (timeout == 0 && extras != null && extras.containsKey(PermissionManager.EXTRA_TIMEOUT)) {
+            try {   //requests from older clients only carry the extra
+                return Long.parseLong(extras.get(PermissionManager.EXTRA_TIMEOUT));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public Long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    //whether the request is loaded by the query on expiresAt
+    boolean isTimed() {
+        return expiresAt != null;
+    }
+
+    //time at which the request expires, or 0 if it doesn't. Counted from the server timestamp, unlike expiresAt.
+    long getExpiry() {
+        long timeout = getTimeout();
+        return timeout > 0 && timeStamp > 0 ? timeStamp + timeout : 0;
+    }
+
     //accept suggested permissions
     public void grant(PermissionManager manager) {
         manager.grantRequest(this);
@@ -98,9 +144,9 @@ public class PermissionRequest {
 
     public static class Builder {
         private PermissionRequest request;
-        private DatabaseReference ref;
+        private DataRef ref;
 
-        public Builder(DatabaseReference ref, String path, String source) {
+        public Builder(DataRef ref, String path, String source) {
             this.ref = ref;
             this.request = new PermissionRequest();
             request.setId(ref.getKey());
@@ -113,6 +159,12 @@ public class PermissionRequest {
             return this;
         }
 
+        //the request expires this many milliseconds after its last update
+        public PermissionRequest.Builder setTimeout(long timeout) {
+            request.setTimeout(timeout);
+            return this;
+        }
+
 
         public PermissionRequest.Builder setPermissions(int suggested) {
             request.setPermissions(suggested);
@@ -134,10 +186,56 @@ public class PermissionRequest {
 
         public PermissionRequest udpate() {
             //TODO: check valid
+            long timeout = request.getTimeout();
+            request.setExpiresAt(timeout > 0 ? System.currentTimeMillis() + timeout : null);
             this.ref.setValue(request);
             return request;
         }
 
     }
 
+    public static final DataCodec<PermissionRequest> CODEC = new FieldCodec<PermissionRequest>() {
+        @Override
+        protected PermissionRequest create() {
+            return new PermissionRequest();
+        }
+
+        @Override
+        protected boolean decode(PermissionRequest result, String key, DataNode child) {
+            switch (key) {
+                case "id":
+                    result.setId(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "path":
+                    result.setPath(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "source":
+                    result.setSource(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "permissions":
+                    result.setPermissions(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "flags":
+                    result.setFlags(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "extras":
+                    result.setExtras(DataCodecs.asStringMap(child));
+                    return true;
+                case "timeStamp":
+                    result.setTimeStamp(DataCodecs.asLong(child.getValue()));
+                    return true;
+                case "timeout":
+                    result.setTimeout(DataCodecs.asLong(child.getValue()));
+                    return true;
+                case KEY_EXPIRES_AT:
+                    result.setExpiresAt(DataCodecs.asLong(child.getValue()));
+                    return true;
+            }
+            return false;
+        }
+    };
+
+    static {
+        DataCodecs.register(PermissionRequest.class, CODEC);
+    }
 }
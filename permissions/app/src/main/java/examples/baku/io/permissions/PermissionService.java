@@ -23,7 +23,6 @@ import android.widget.Toast;
 import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseException;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
@@ -33,9 +32,11 @@ import com.joanzapata.iconify.fonts.MaterialIcons;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -45,6 +46,9 @@ import examples.baku.io.permissions.examples.ComposeActivity;
 import examples.baku.io.permissions.examples.EmailActivity;
 import examples.baku.io.permissions.messenger.Message;
 import examples.baku.io.permissions.messenger.Messenger;
+import examples.baku.io.permissions.storage.DataException;
+import examples.baku.io.permissions.storage.FirebaseDataNode;
+import examples.baku.io.permissions.storage.FirebaseDataRef;
 import examples.baku.io.permissions.util.Utils;
 
 public class PermissionService extends Service {
@@ -155,7 +159,8 @@ public class PermissionService extends Service {
         deviceIcon = Utils.iconFromDrawable(new IconDrawable(PermissionService.this, MaterialIcons.md_phone_android));
         castIcon = Utils.iconFromDrawable(new IconDrawable(PermissionService.this, MaterialIcons.md_cast));
 
-        mPermissionManager = new PermissionManager(mFirebaseDB.getReference(), mDeviceId);
+        mPermissionManager = new PermissionManager(new FirebaseDataRef(mFirebaseDB.getReference()), mDeviceId);
+        mPermissionManager.setBatchWindow(PermissionManager.BATCH_LOOPER);
 
         mPermissionManager.getRootBlessing().setPermissions("documents/" + mDeviceId, PermissionManager.FLAG_ROOT);
 
@@ -402,7 +407,7 @@ public class PermissionService extends Service {
 
     public void initMessenger() {
         mMessengerReference = mFirebaseDB.getReference("messages");
-        mMessenger = new Messenger(mDeviceId, mMessengerReference);
+        mMessenger = new Messenger(mDeviceId, new FirebaseDataRef(mMessengerReference));
 
         mMessenger.on("disassociate", new Messenger.Listener() {
             @Override
@@ -449,12 +454,14 @@ public class PermissionService extends Service {
         }
         mConstellation.remove(deviceId);
         //revoke all blessings
+        List<Blessing> granted = new ArrayList<>();
         for (Blessing blessing : mPermissionManager.getReceivedBlessings()) {
-            Blessing granted = blessing.getBlessing(deviceId);
-            if (granted != null) {
-                granted.revoke();
+            Blessing deviceBlessing = blessing.getBlessing(deviceId);
+            if (deviceBlessing != null) {
+                granted.add(deviceBlessing);
             }
         }
+        mPermissionManager.revokeBlessings(granted);
         for (DiscoveryListener listener : mDiscoveryListener) {
             listener.onDisassociate(deviceId);
         }
@@ -541,9 +548,9 @@ public class PermissionService extends Service {
                     resetLocalDevice();
                 } else {
                     try {
-                        mLocalDevice = dataSnapshot.getValue(DeviceData.class);
+                        mLocalDevice = new FirebaseDataNode(dataSnapshot).getValue(DeviceData.class);
 
-                    } catch (DatabaseException e) {
+                    } catch (DataException e) {
                         e.printStackTrace();
                     }
                 }
@@ -605,7 +612,7 @@ public class PermissionService extends Service {
             String key = dataSnapshot.getKey();
             if (!mDeviceId.equals(key)) {
                 try {
-                    DeviceData device = dataSnapshot.getValue(DeviceData.class);
+                    DeviceData device = new FirebaseDataNode(dataSnapshot).getValue(DeviceData.class);
                     if (device != null) {
                         mDiscovered.put(key, device);
                         for (DiscoveryListener listener : mDiscoveryListener) {
@@ -615,7 +622,7 @@ public class PermissionService extends Service {
                             updateConstellationDevice(key);
                         }
                     }
-                } catch (DatabaseException e) {
+                } catch (DataException e) {
                     e.printStackTrace();
                 }
             }
@@ -17,9 +17,11 @@ import android.text.Editable;
 import android.text.InputType;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
+import android.text.Spanned;
 import android.text.TextWatcher;
 import android.text.method.KeyListener;
 import android.text.style.BackgroundColorSpan;
+import android.text.style.CharacterStyle;
 import android.text.style.StrikethroughSpan;
 import android.util.AttributeSet;
 import android.view.Gravity;
@@ -35,7 +37,6 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.google.firebase.database.DatabaseError;
 import com.joanzapata.iconify.IconDrawable;
 import com.joanzapata.iconify.fonts.MaterialIcons;
 
@@ -47,8 +48,11 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.synchronization.SharedText;
 import examples.baku.io.permissions.synchronization.SyncText;
 import examples.baku.io.permissions.synchronization.SyncTextDiff;
+import examples.baku.io.permissions.synchronization.SyncTextRope;
 
 /**
  * Created by phamilton on 7/26/16.
@@ -60,7 +64,7 @@ public class PermissionedTextLayout extends FrameLayout implements PermissionMan
     final Set<PermissionRequest> requests = new HashSet<>();
     private String label;
 
-    private SyncText syncText;
+    private SharedText syncText;
     private TextInputLayout textInputLayout;
     private PermissionedEditText editText;
     private FrameLayout overlay;
@@ -78,6 +82,12 @@ public class PermissionedTextLayout extends FrameLayout implements PermissionMan
 
 
     private int version = -1;
+    //version of the text shown by editText, the base of the operations it reports
+    private int shownVersion;
+    //runs shown by editText: its text, and the operation each character is styled as. Follows local typing.
+    private SyncTextRope shownRuns = SyncTextRope.EMPTY;
+    //true while the watcher reports an edit, texts that apply edits at once notify before it returns
+    private boolean editing;
 
     public void unlink() {
         if (syncText != null) {
@@ -120,6 +130,14 @@ public class PermissionedTextLayout extends FrameLayout implements PermissionMan
         }
         editText = new PermissionedEditText(context);
         editText.setSelectionListener(selectionListener);
+        editText.setOnFocusChangeListener(new OnFocusChangeListener() {
+            @Override
+            public void onFocusChange(View v, boolean hasFocus) {
+                if (!hasFocus && syncText != null) {
+                    syncText.flush();   //don't hold batched edits once the user moves on
+                }
+            }
+        });
         editText.setId(View.generateViewId());
         editText.setLayoutParams(params);
         int inputType = attrs.getAttributeIntValue(ANDROID_NS, "inputType", EditorInfo.TYPE_NULL);
@@ -194,7 +212,7 @@ public class PermissionedTextLayout extends FrameLayout implements PermissionMan
         this.inputType = inputType;
     }
 
-    Spannable diffSpannable(LinkedList<SyncTextDiff> diffs) {
+    Spannable diffSpannable(SyncTextRope diffs) {
         SpannableStringBuilder result = new SpannableStringBuilder();
 
         int start;
@@ -223,14 +241,14 @@ public class PermissionedTextLayout extends FrameLayout implements PermissionMan
         this.permissionedTextListener = permissionedTextListener;
     }
 
-    public void setSyncText(SyncText sync) {
+    public void setSyncText(SharedText sync) {
         this.syncText = sync;
 
         syncText.setOnTextChangeListener(new SyncText.OnTextChangeListener() {
             @Override
-            public void onTextChange(final String currentText, final LinkedList<SyncTextDiff> diffs, int ver) {
+            public void onTextChange(final String currentText, final SyncTextRope diffs, int ver) {
                 if (ver >= version) {
-                    updateText(diffs);
+                    updateText(diffs, ver);
                 }
             }
         });
@@ -290,25 +308,114 @@ public class PermissionedTextLayout extends FrameLayout implements PermissionMan
         return editText.getText().toString();
     }
 
-    private synchronized void updateText(final LinkedList<SyncTextDiff> diffs) {
+    private synchronized void updateText(final SyncTextRope diffs, final int ver) {
         Activity activity = getActivity();
         if (activity != null) {
-            activity.runOnUiThread(new Runnable() {
+            Runnable show = new Runnable() {
                 @Override
                 public void run() {
-                    editText.removeTextChangedListener(watcher);
-                    int prevSel = editText.getSelectionStart();
-                    editText.setText(diffSpannable(diffs));
-                    int sel = Math.min(prevSel, editText.length());
-                    if (sel > -1) {
-                        editText.setSelection(sel);
+                    if (ver < version || syncText.hasQueuedEdits()) {
+                        return; //the text already has the edits, the document notifies again once it has them too
                     }
+                    editText.removeTextChangedListener(watcher);
+                    render(diffs);
+                    shownVersion = ver;
                     editText.addTextChangedListener(watcher);
                 }
-            });
+            };
+            if (editing) {
+                editText.post(show);    //the edit text can't change while it reports a change
+            } else {
+                activity.runOnUiThread(show);
+            }
         }
     }
 
+    //replace only the runs that differ from the shown ones, so the rest of the text keeps its layout and the input
+    //method its state
+    private void render(SyncTextRope diffs) {
+        Editable text = editText.getText();
+        if (text.length() != shownRuns.length()) {   //out of step, e.g. the text was set elsewhere
+            int prevSel = editText.getSelectionStart();
+            editText.setText(diffSpannable(diffs));
+            int sel = Math.min(prevSel, editText.length());
+            if (sel > -1) {
+                editText.setSelection(sel);
+            }
+            shownRuns = diffs;
+            return;
+        }
+        //runs are shown by operation only
+        int head = SyncTextRope.commonHead(shownRuns, diffs, SyncTextRope.SAME_OPERATION);
+        if (head == shownRuns.length() && head == diffs.length()) {
+            shownRuns = diffs;
+            return;
+        }
+        int maxTail = Math.min(shownRuns.length(), diffs.length()) - head;
+        int tail = SyncTextRope.commonTail(shownRuns, diffs, maxTail, SyncTextRope.SAME_OPERATION);
+        int oldEnd = shownRuns.length() - tail;
+        int newEnd = diffs.length() - tail;
+        int selStart = mapOffset(editText.getSelectionStart(), head, oldEnd, newEnd);
+        int selEnd = mapOffset(editText.getSelectionEnd(), head, oldEnd, newEnd);
+        clipSpans(text, head, oldEnd);
+        text.replace(head, oldEnd, diffSpannable(diffs.delete(newEnd, diffs.length()).delete(0, head)));
+        if (selStart > -1 && selEnd > -1) {
+            editText.setSelection(selStart, selEnd);
+        }
+        shownRuns = diffs;
+    }
+
+    //offset after [head, oldEnd) became [head, newEnd). Offsets inside the replaced range move past it.
+    private static int mapOffset(int offset, int head, int oldEnd, int newEnd) {
+        if (offset <= head) {
+            return offset;
+        } else if (offset >= oldEnd) {
+            return offset + newEnd - oldEnd;
+        }
+        return newEnd;
+    }
+
+    //limit the suggestion styling to outside [start, end), the replacement of the range brings its own. A span
+    //around the range would otherwise stretch over the new text.
+    private static void clipSpans(Spannable text, int start, int end) {
+        for (CharacterStyle span : text.getSpans(start, end, CharacterStyle.class)) {
+            if (!(span instanceof BackgroundColorSpan || span instanceof StrikethroughSpan)) {
+                continue;
+            }
+            int spanStart = text.getSpanStart(span);
+            int spanEnd = text.getSpanEnd(span);
+            text.removeSpan(span);
+            if (spanStart < start) {
+                text.setSpan(span, spanStart, start, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            if (spanEnd > end) {
+                CharacterStyle rest = spanStart < start ? copySpan(span) : span;
+                text.setSpan(rest, end, spanEnd, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+    }
+
+    private static CharacterStyle copySpan(CharacterStyle span) {
+        if (span instanceof BackgroundColorSpan) {
+            return new BackgroundColorSpan(((BackgroundColorSpan) span).getBackgroundColor());
+        }
+        return new StrikethroughSpan();
+    }
+
+    //operation typed text at [start, end) is shown as: it takes the styling of a suggestion it's typed into
+    private static int styleAt(CharSequence text, int start, int end) {
+        if (start == end || !(text instanceof Spanned)) {
+            return SyncTextDiff.EQUAL;
+        }
+        Spanned spanned = (Spanned) text;
+        if (spanned.getSpans(start, end, StrikethroughSpan.class).length > 0) {
+            return SyncTextDiff.DELETE;
+        } else if (spanned.getSpans(start, end, BackgroundColorSpan.class).length > 0) {
+            return SyncTextDiff.INSERT;
+        }
+        return SyncTextDiff.EQUAL;
+    }
+
     private TextWatcher watcher = new TextWatcher() {
         @Override
         public void beforeTextChanged(CharSequence s, int start, int count, int after) {
@@ -317,7 +424,20 @@ public class PermissionedTextLayout extends FrameLayout implements PermissionMan
 
         @Override
         public void onTextChanged(CharSequence s, int start, int before, int count) {
-            version = Math.max(version, syncText.update(s.toString()));
+            String inserted = s.subSequence(start, start + count).toString();
+            int at = Math.min(start, shownRuns.length());
+            shownRuns = shownRuns.delete(at, Math.min(start + before, shownRuns.length()))
+                    .insert(at, inserted, styleAt(s, start, start + count), "", 0);
+            editing = true;
+            try {
+                if (syncText instanceof SyncText && ((SyncText) syncText).getSyncMode() != SyncText.SYNC_OPS) {
+                    version = Math.max(version, ((SyncText) syncText).update(s.toString()));
+                } else {
+                    version = Math.max(version, syncText.update(shownVersion, start, before, inserted));
+                }
+            } finally {
+                editing = false;
+            }
         }
 
         @Override
@@ -363,7 +483,7 @@ public class PermissionedTextLayout extends FrameLayout implements PermissionMan
     }
 
     @Override
-    public void onCancelled(DatabaseError databaseError) {
+    public void onCancelled(DataError dataError) {
 
     }
 
@@ -404,7 +524,7 @@ public class PermissionedTextLayout extends FrameLayout implements PermissionMan
 
     public List<SyncTextDiff> getSuggestions() {
         List<SyncTextDiff> result = new LinkedList<>();
-        for (SyncTextDiff diff : syncText.getDiffs()) {
+        for (SyncTextDiff diff : syncText.getDocument()) {
             if (diff.operation != SyncTextDiff.EQUAL && diff.permission == PermissionManager.FLAG_SUGGEST) {
                 result.add(diff);
             }
@@ -413,16 +533,7 @@ public class PermissionedTextLayout extends FrameLayout implements PermissionMan
     }
 
     private SyncTextDiff getDiffAt(int index) {
-        int count = 0;
-        if (syncText != null) {
-            for (SyncTextDiff diff : syncText.getDiffs()) {
-                count += diff.length();
-                if (index < count) {
-                    return diff;
-                }
-            }
-        }
-        return null;
+        return syncText == null ? null : syncText.getDocument().runAt(index);
     }
 
     class ActionItem {
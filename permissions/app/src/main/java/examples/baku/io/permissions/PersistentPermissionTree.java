@@ -0,0 +1,375 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.util.PathSegment;
+import examples.baku.io.permissions.util.PathSegments;
+
+/**
+ * Immutable permission tree. Edits and merges return a new version that shares every unchanged node with the
+ * previous one, so versions can be handed to other threads without locking.
+ * Nodes only hold their own permissions, inherited permissions are accumulated while walking down from the root.
+ * Nodes that were only created as ancestors of rules are placeholders, they are dropped with the last rule below them.
+ * Two versions are compared with diff, which skips shared subtrees.
+ * Unlike {@link Blessing.PermissionTree} there is no parent tree to check against, so lookups need no generation
+ * cache: a version never changes and getPermissions is a single walk over the interned path segments.
+ */
+public final class PersistentPermissionTree {
+
+    public static final PersistentPermissionTree EMPTY = new PersistentPermissionTree(Node.EMPTY);
+
+    private final Node root;
+
+    private PersistentPermissionTree(Node root) {
+        this.root = root;
+    }
+
+    public static PersistentPermissionTree fromSnapshot(DataNode snapshot) {
+        return new PersistentPermissionTree(read(snapshot));
+    }
+
+    private static Node read(DataNode snapshot) {
+        int permissions = 0;
+        boolean rule = snapshot.hasChild(PermissionManager.KEY_PERMISSIONS);
+        if (rule) {
+            permissions = snapshot.child(PermissionManager.KEY_PERMISSIONS).getValue(Integer.class);
+        }
+        Node result = new Node(permissions, rule, Node.NO_SEGMENTS, Node.NO_CHILDREN);
+        for (DataNode child : snapshot.getChildren()) {
+            if (child.getKey().startsWith("_")) { //ignore keys with '_' prefix
+                continue;
+            }
+            result = result.withChild(PathSegments.intern(child.getKey()), read(child));
+        }
+        return result;
+    }
+
+    //effective permissions at path, from the nearest rule at or above it
+    public int getPermissions(String path) {
+        Node node = root;
+        int result = node.permissions;
+        if (path == null) {
+            return result;
+        }
+        int length = path.length();
+        int start = 0;
+        while (start <= length) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = length;
+            }
+            PathSegment segment = PathSegments.find(path, start, end);
+            node = segment == null ? null : node.child(segment);
+            if (node == null) {
+                break;
+            }
+            result |= node.permissions;
+            start = end + 1;
+        }
+        return result;
+    }
+
+    //path of the nearest rule at or above path
+    public String getNearest(String path) {
+        Node node = root;
+        int nearestEnd = -1;
+        if (path == null) {
+            return null;
+        }
+        int length = path.length();
+        int start = 0;
+        while (start <= length) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = length;
+            }
+            PathSegment segment = PathSegments.find(path, start, end);
+            node = segment == null ? null : node.child(segment);
+            if (node == null) {
+                break;
+            }
+            nearestEnd = end;
+            start = end + 1;
+        }
+        return nearestEnd == -1 ? null : path.substring(0, nearestEnd);
+    }
+
+    public boolean contains(String path) {
+        return find(path) != null;
+    }
+
+    //own permissions of the rule at path, or 0
+    public int getOwnPermissions(String path) {
+        Node node = find(path);
+        return node == null ? 0 : node.permissions;
+    }
+
+    private Node find(String path) {
+        Node node = root;
+        if (path == null) {
+            return node;
+        }
+        int length = path.length();
+        int start = 0;
+        while (node != null && start <= length) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = length;
+            }
+            PathSegment segment = PathSegments.find(path, start, end);
+            node = segment == null ? null : node.child(segment);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    public Set<String> keySet() {
+        Set<String> result = new HashSet<>();
+        collectPaths(null, root, result);
+        return result;
+    }
+
+    private static void collectPaths(String path, Node node, Set<String> result) {
+        result.add(path);
+        for (int i = 0; i < node.segments.length; i++) {
+            collectPaths(childPath(path, node.segments[i]), node.children[i], result);
+        }
+    }
+
+    //return a version with the rule at path set, creating any missing ancestors
+    public PersistentPermissionTree setPermissions(String path, int permissions) {
+        Node result = set(root, segments(path), 0, permissions);
+        return result == root ? this : new PersistentPermissionTree(result);
+    }
+
+    private static Node set(Node node, PathSegment[] segments, int index, int permissions) {
+        if (index == segments.length) {
+            return node.rule && node.permissions == permissions ? node : new Node(permissions, true, node.segments, node.children);
+        }
+        Node child = node.child(segments[index]);
+        Node updated = set(child == null ? Node.EMPTY : child, segments, index + 1, permissions);
+        return updated == child ? node : node.withChild(segments[index], updated);
+    }
+
+    //return a version without the rule at path and its subtree. Removing the default rule clears its permissions.
+    public PersistentPermissionTree remove(String path) {
+        if (path == null) {
+            return setPermissions(null, 0);
+        }
+        Node result = remove(root, segments(path), 0, false);
+        return result == root ? this : new PersistentPermissionTree(result);
+    }
+
+    //return a version without the rule at path. Rules below it are kept.
+    public PersistentPermissionTree removeRule(String path) {
+        if (path == null) {
+            return setPermissions(null, 0);
+        }
+        Node result = remove(root, segments(path), 0, true);
+        return result == root ? this : new PersistentPermissionTree(result);
+    }
+
+    private static Node remove(Node node, PathSegment[] segments, int index, boolean keepChildren) {
+        Node child = node.child(segments[index]);
+        if (child == null) {
+            return node;
+        }
+        Node updated;
+        if (index == segments.length - 1) {
+            if (!keepChildren) {
+                updated = null;
+            } else if (!child.rule) {
+                return node;
+            } else {
+                updated = child.segments.length > 0 ? new Node(0, false, child.segments, child.children) : null;
+            }
+        } else {
+            updated = remove(child, segments, index + 1, keepChildren);
+            //drop the placeholder ancestors of removed rules, rules are kept even without permissions
+            if (updated != null && !updated.rule && updated.segments.length == 0) {
+                updated = null;
+            }
+        }
+        if (updated == child) {
+            return node;
+        }
+        return updated == null ? node.withoutChild(segments[index]) : node.withChild(segments[index], updated);
+    }
+
+    //return the union of both trees. Subtrees missing from this tree are shared, not copied.
+    public PersistentPermissionTree merge(PersistentPermissionTree other) {
+        Node result = merge(root, other.root);
+        return result == root ? this : result == other.root ? other : new PersistentPermissionTree(result);
+    }
+
+    private static Node merge(Node a, Node b) {
+        if (a == b || b == Node.EMPTY) {
+            return a;
+        } else if (a == Node.EMPTY) {
+            return b;
+        }
+        Node result = a;
+        if ((a.permissions | b.permissions) != a.permissions || b.rule && !a.rule) {
+            result = new Node(a.permissions | b.permissions, a.rule || b.rule, a.segments, a.children);
+        }
+        for (int i = 0; i < b.segments.length; i++) {
+            Node child = a.child(b.segments[i]);
+            Node merged = child == null ? b.children[i] : merge(child, b.children[i]);
+            if (merged != child) {
+                result = result.withChild(b.segments[i], merged);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Differences between two versions. Rule paths added and removed, and paths whose effective permissions changed.
+     * A removed path whose permissions changed is reported as changed too, with the permissions of its nearest
+     * remaining ancestor.
+     */
+    public static class Diff {
+        public final List<String> added = new ArrayList<>();
+        public final List<String> removed = new ArrayList<>();
+        public final List<String> changed = new ArrayList<>();
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+    }
+
+    public static Diff diff(PersistentPermissionTree previous, PersistentPermissionTree current) {
+        Diff result = new Diff();
+        diff(null, previous.root, 0, current.root, 0, result);
+        return result;
+    }
+
+    private static void diff(String path, Node a, int inheritedA, Node b, int inheritedB, Diff result) {
+        if (a == b && inheritedA == inheritedB) {
+            return; //shared subtree
+        }
+        int permissionsA = a == null ? inheritedA : a.permissions | inheritedA;
+        int permissionsB = b == null ? inheritedB : b.permissions | inheritedB;
+        if (a == null) {
+            result.added.add(path);
+        } else if (b == null) {
+            result.removed.add(path);
+        }
+        if (permissionsA != permissionsB) {
+            result.changed.add(path);
+        }
+        PathSegment[] segmentsA = a == null ? Node.NO_SEGMENTS : a.segments;
+        PathSegment[] segmentsB = b == null ? Node.NO_SEGMENTS : b.segments;
+        int i = 0;
+        int j = 0;
+        while (i < segmentsA.length || j < segmentsB.length) {
+            PathSegment segment;
+            Node childA = null;
+            Node childB = null;
+            if (j == segmentsB.length || i < segmentsA.length && segmentsA[i].compareTo(segmentsB[j]) < 0) {
+                segment = segmentsA[i];
+                childA = a.children[i++];
+            } else if (i == segmentsA.length || segmentsB[j].compareTo(segmentsA[i]) < 0) {
+                segment = segmentsB[j];
+                childB = b.children[j++];
+            } else {
+                segment = segmentsA[i];
+                childA = a.children[i++];
+                childB = b.children[j++];
+            }
+            diff(childPath(path, segment), childA, permissionsA, childB, permissionsB, result);
+        }
+    }
+
+    private static String childPath(String path, PathSegment segment) {
+        String key = segment.getName();
+        return path == null ? key : path + "/" + key;
+    }
+
+    private static PathSegment[] segments(String path) {
+        if (path == null) {
+            return Node.NO_SEGMENTS;
+        }
+        int count = 1;
+        for (int i = path.indexOf('/'); i != -1; i = path.indexOf('/', i + 1)) {
+            count++;
+        }
+        PathSegment[] result = new PathSegment[count];
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = path.length();
+            }
+            result[i] = PathSegments.intern(path, start, end);
+            start = end + 1;
+        }
+        return result;
+    }
+
+    //immutable node. Children are sorted by segment id.
+    private static final class Node {
+        static final PathSegment[] NO_SEGMENTS = new PathSegment[0];
+        static final Node[] NO_CHILDREN = new Node[0];
+        static final Node EMPTY = new Node(0, false, NO_SEGMENTS, NO_CHILDREN);
+
+        final int permissions;
+        //false for placeholder ancestors
+        final boolean rule;
+        final PathSegment[] segments;
+        final Node[] children;
+
+        Node(int permissions, boolean rule, PathSegment[] segments, Node[] children) {
+            this.permissions = permissions;
+            this.rule = rule;
+            this.segments = segments;
+            this.children = children;
+        }
+
+        Node child(PathSegment segment) {
+            int index = Arrays.binarySearch(segments, segment);
+            return index < 0 ? null : children[index];
+        }
+
+        Node withChild(PathSegment segment, Node child) {
+            int index = Arrays.binarySearch(segments, segment);
+            if (index >= 0) {
+                Node[] newChildren = children.clone();
+                newChildren[index] = child;
+                return new Node(permissions, rule, segments, newChildren);
+            }
+            index = -index - 1;
+            PathSegment[] newSegments = new PathSegment[segments.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(segments, 0, newSegments, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newSegments[index] = segment;
+            newChildren[index] = child;
+            System.arraycopy(segments, index, newSegments, index + 1, segments.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            return new Node(permissions, rule, newSegments, newChildren);
+        }
+
+        Node withoutChild(PathSegment segment) {
+            int index = Arrays.binarySearch(segments, segment);
+            if (index < 0) {
+                return this;
+            }
+            PathSegment[] newSegments = new PathSegment[segments.length - 1];
+            Node[] newChildren = new Node[children.length - 1];
+            System.arraycopy(segments, 0, newSegments, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(segments, index + 1, newSegments, index, segments.length - index - 1);
+            System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+            return new Node(permissions, rule, newSegments, newChildren);
+        }
+    }
+}
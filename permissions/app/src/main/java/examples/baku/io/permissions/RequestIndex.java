@@ -0,0 +1,160 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import examples.baku.io.permissions.util.PathSegment;
+import examples.baku.io.permissions.util.PathSegments;
+import examples.baku.io.permissions.util.PathTrie;
+
+/**
+ * Index of pending permission requests and request listeners by path.
+ * Listeners subscribe to an exact path, to "prefix/*" for every request below prefix, or to "*" for every request.
+ * Matching walks the path once, so it costs O(depth + matches) instead of a scan of every request.
+ */
+class RequestIndex {
+
+    static final String WILDCARD = "*";
+    private static final String WILDCARD_SUFFIX = "/" + WILDCARD;
+
+    private final Map<String, PermissionRequest> mRequests = new HashMap<>();
+    //<request path, <request id, request>>
+    private final PathTrie<Map<String, PermissionRequest>> mRequestsByPath = new PathTrie<>();
+    //exact subscriptions by path
+    private final PathTrie<Set<PermissionManager.OnRequestListener>> mListeners = new PathTrie<>();
+    //wildcard subscriptions by prefix, "*" is the null prefix
+    private final PathTrie<Set<PermissionManager.OnRequestListener>> mWildcardListeners = new PathTrie<>();
+    //number of subscriptions of each listener
+    private final Multiset<PermissionManager.OnRequestListener> mSubscriptionCounts = HashMultiset.create();
+
+    PermissionRequest get(String id) {
+        return mRequests.get(id);
+    }
+
+    void put(PermissionRequest request) {
+        PermissionRequest previous = mRequests.put(request.getId(), request);
+        if (previous != null && !previous.getPath().equals(request.getPath())) {
+            removeByPath(previous);
+        }
+        Map<String, PermissionRequest> requests = mRequestsByPath.get(request.getPath());
+        if (requests == null) {
+            requests = new LinkedHashMap<>();
+            mRequestsByPath.put(request.getPath(), requests);
+        }
+        requests.put(request.getId(), request);
+    }
+
+    PermissionRequest remove(String id) {
+        PermissionRequest request = mRequests.remove(id);
+        if (request != null) {
+            removeByPath(request);
+        }
+        return request;
+    }
+
+    private void removeByPath(PermissionRequest request) {
+        Map<String, PermissionRequest> requests = mRequestsByPath.get(request.getPath());
+        if (requests != null) {
+            requests.remove(request.getId());
+            if (requests.isEmpty()) {
+                mRequestsByPath.remove(request.getPath());
+            }
+        }
+    }
+
+    //requests matched by a subscription path
+    List<PermissionRequest> getMatching(String subscription) {
+        if (!isWildcard(subscription)) {
+            Map<String, PermissionRequest> requests = mRequestsByPath.get(subscription);
+            return requests == null ? Collections.<PermissionRequest>emptyList() : new ArrayList<>(requests.values());
+        }
+        //only requests strictly below the prefix
+        PathTrie.Node<Map<String, PermissionRequest>> prefixNode = mRequestsByPath.find(wildcardPrefix(subscription));
+        if (prefixNode == null) {
+            return Collections.emptyList();
+        }
+        List<PermissionRequest> result = new ArrayList<>();
+        for (PathTrie.Node<Map<String, PermissionRequest>> node : prefixNode.nodes()) {
+            if (node != prefixNode) {
+                result.addAll(node.getValue().values());
+            }
+        }
+        return result;
+    }
+
+    void addListener(String subscription, PermissionManager.OnRequestListener listener) {
+        PathTrie<Set<PermissionManager.OnRequestListener>> listeners = isWildcard(subscription) ? mWildcardListeners : mListeners;
+        String path = isWildcard(subscription) ? wildcardPrefix(subscription) : subscription;
+        Set<PermissionManager.OnRequestListener> set = listeners.get(path);
+        if (set == null) {
+            set = new LinkedHashSet<>();
+            listeners.put(path, set);
+        }
+        if (set.add(listener)) {
+            mSubscriptionCounts.add(listener);
+        }
+    }
+
+    boolean removeListener(String subscription, PermissionManager.OnRequestListener listener) {
+        PathTrie<Set<PermissionManager.OnRequestListener>> listeners = isWildcard(subscription) ? mWildcardListeners : mListeners;
+        String path = isWildcard(subscription) ? wildcardPrefix(subscription) : subscription;
+        Set<PermissionManager.OnRequestListener> set = listeners.get(path);
+        if (set == null || !set.remove(listener)) {
+            return false;
+        }
+        if (set.isEmpty()) {
+            listeners.remove(path);
+        }
+        mSubscriptionCounts.remove(listener);
+        return true;
+    }
+
+    boolean hasListener(PermissionManager.OnRequestListener listener) {
+        return mSubscriptionCounts.contains(listener);
+    }
+
+    //listeners subscribed to a request path: exact subscriptions, and wildcards on any of its ancestors
+    Set<PermissionManager.OnRequestListener> getListeners(String requestPath) {
+        Set<PermissionManager.OnRequestListener> result = new LinkedHashSet<>();
+        Set<PermissionManager.OnRequestListener> exact = mListeners.get(requestPath);
+        if (exact != null) {
+            result.addAll(exact);
+        }
+        PathTrie.Node<Set<PermissionManager.OnRequestListener>> node = mWildcardListeners.getRoot();
+        int start = 0;
+        while (node != null) {
+            if (node.getValue() != null) {
+                result.addAll(node.getValue());
+            }
+            int end = requestPath.indexOf('/', start);
+            if (end == -1) {
+                break;  //the request path itself doesn't match its own wildcard
+            }
+            PathSegment segment = PathSegments.find(requestPath, start, end);
+            node = segment == null ? null : node.child(segment);
+            start = end + 1;
+        }
+        return result;
+    }
+
+    static boolean isWildcard(String subscription) {
+        return WILDCARD.equals(subscription) || subscription.endsWith(WILDCARD_SUFFIX);
+    }
+
+    private static String wildcardPrefix(String subscription) {
+        return WILDCARD.equals(subscription) ? null : subscription.substring(0, subscription.length() - WILDCARD_SUFFIX.length());
+    }
+}
@@ -7,6 +7,11 @@ package examples.baku.io.permissions.discovery;
 import java.util.HashMap;
 import java.util.Map;
 
+import examples.baku.io.permissions.storage.DataCodec;
+import examples.baku.io.permissions.storage.DataCodecs;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.FieldCodec;
+
 /**
  * Created by phamilton on 6/19/16.
  */
@@ -55,4 +60,34 @@ public class DeviceData {
     public void setStatus(Map<String, String> status) {
         this.status = status;
     }
+
+    public static final DataCodec<DeviceData> CODEC = new FieldCodec<DeviceData>() {
+        @Override
+        protected DeviceData create() {
+            return new DeviceData();
+        }
+
+        @Override
+        protected boolean decode(DeviceData result, String key, DataNode child) {
+            switch (key) {
+                case "id":
+                    result.setId(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "name":
+                    result.setName(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "active":
+                    result.setActive(DataCodecs.asBoolean(child.getValue()));
+                    return true;
+                case "status":
+                    result.setStatus(DataCodecs.asStringMap(child));
+                    return true;
+            }
+            return false;
+        }
+    };
+
+    static {
+        DataCodecs.register(DeviceData.class, CODEC);
+    }
 }
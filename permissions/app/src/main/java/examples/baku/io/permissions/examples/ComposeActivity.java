@@ -63,6 +63,9 @@ import examples.baku.io.permissions.PermissionedTextLayout;
 import examples.baku.io.permissions.R;
 import examples.baku.io.permissions.discovery.DeviceData;
 import examples.baku.io.permissions.discovery.DevicePickerActivity;
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.storage.FirebaseDataRef;
+import examples.baku.io.permissions.synchronization.CrdtText;
 import examples.baku.io.permissions.synchronization.SyncText;
 import examples.baku.io.permissions.synchronization.SyncTextDiff;
 import examples.baku.io.permissions.util.Utils;
@@ -72,6 +75,9 @@ public class ComposeActivity extends AppCompatActivity implements ServiceConnect
     public final static String EXTRA_MESSAGE_ID = "messageId";
     public final static String EXTRA_MESSAGE_PATH = "messagePath";
     private final static int SELECT_ATTACHMENT = 1232;
+    //sync the body as a CRDT and the other fields as optimistic operations instead of patches. All devices editing a
+    //message have to agree, since the modes store the text differently
+    private final static boolean EXPERIMENTAL_SYNC = false;
 
     private String mPath;
 
@@ -104,7 +110,6 @@ public class ComposeActivity extends AppCompatActivity implements ServiceConnect
     private Multimap<String, PermissionRequest> mRequests = HashMultimap.create();
     private HashMap<String, PermissionedTextLayout> mPermissionedFields = new HashMap<>();
     private HashMap<String, Integer> mPermissions = new HashMap<>();
-    private HashMap<String, SyncText> syncTexts = new HashMap<>();
 
     private ArrayAdapter<String> contactAdapter;
     FloatingActionButton mFab;
@@ -577,7 +582,7 @@ public class ComposeActivity extends AppCompatActivity implements ServiceConnect
         }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(DataError dataError) {
 
         }
     };
@@ -622,7 +627,7 @@ public class ComposeActivity extends AppCompatActivity implements ServiceConnect
         }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(DataError dataError) {
 
         }
     };
@@ -634,7 +639,16 @@ public class ComposeActivity extends AppCompatActivity implements ServiceConnect
     }
 
     void initField(final PermissionedTextLayout edit, final String key) {
-        edit.setSyncText(new SyncText(mDeviceId, PermissionManager.FLAG_SUGGEST, mSyncedMessageRef.child(key), mMessageRef.child(key)));
+        if (!EXPERIMENTAL_SYNC) {
+            edit.setSyncText(new SyncText(mDeviceId, PermissionManager.FLAG_SUGGEST, new FirebaseDataRef(mSyncedMessageRef.child(key)), new FirebaseDataRef(mMessageRef.child(key))));
+        } else if ("message".equals(key)) {
+            //the body is long and edited by several devices at once, so it merges per character without contention
+            edit.setSyncText(new CrdtText(mDeviceId, PermissionManager.FLAG_SUGGEST, new FirebaseDataRef(mSyncedMessageRef.child(key)), new FirebaseDataRef(mMessageRef.child(key))));
+        } else {
+            SyncText syncText = new SyncText(mDeviceId, PermissionManager.FLAG_SUGGEST, new FirebaseDataRef(mSyncedMessageRef.child(key)), new FirebaseDataRef(mMessageRef.child(key)), SyncText.SYNC_OPS);
+            syncText.setOptimistic(true);   //typing shows at once, and is committed one change per round trip
+            edit.setSyncText(syncText);
+        }
         edit.setPermissionedTextListener(new PermissionedTextLayout.PermissionedTextListener() {
             @Override
             public void onSelected(final SyncTextDiff diff, PermissionedTextLayout text) {
@@ -713,7 +727,7 @@ public class ComposeActivity extends AppCompatActivity implements ServiceConnect
             }
 
             @Override
-            public void onCancelled(DatabaseError databaseError) {
+            public void onCancelled(DataError dataError) {
 
             }
         });
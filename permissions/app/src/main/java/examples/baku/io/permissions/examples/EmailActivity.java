@@ -33,7 +33,6 @@ import com.google.common.collect.Iterables;
 import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseException;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.ValueEventListener;
@@ -56,6 +55,8 @@ import examples.baku.io.permissions.PermissionRequest;
 import examples.baku.io.permissions.PermissionService;
 import examples.baku.io.permissions.R;
 import examples.baku.io.permissions.discovery.DevicePickerActivity;
+import examples.baku.io.permissions.storage.DataException;
+import examples.baku.io.permissions.storage.FirebaseDataNode;
 
 public class EmailActivity extends AppCompatActivity implements ServiceConnection {
 
@@ -302,10 +303,10 @@ public class EmailActivity extends AppCompatActivity implements ServiceConnectio
 
     void onMessageUpdated(DataSnapshot snapshot) {
         try {
-            MessageData msg = snapshot.getValue(MessageData.class);
+            MessageData msg = new FirebaseDataNode(snapshot).getValue(MessageData.class);
             String key = msg.getId();
             mMessages.put(key, msg);
-        } catch (DatabaseException e) {
+        } catch (DataException e) {
             e.printStackTrace();
         }
     }
@@ -340,10 +341,11 @@ public class EmailActivity extends AppCompatActivity implements ServiceConnectio
 
 
             if (!mDeviceId.equals(targetDevice)) {
-                mPermissionManager.bless(targetDevice)
+                mPermissionManager.bless(targetDevice).edit()
                         .setPermissions(path + "/to", PermissionManager.FLAG_READ)
                         .setPermissions(path + "/message", PermissionManager.FLAG_SUGGEST)
-                        .setPermissions(path + "/subject", PermissionManager.FLAG_SUGGEST);
+                        .setPermissions(path + "/subject", PermissionManager.FLAG_SUGGEST)
+                        .commit();
             }
             JSONObject castArgs = new JSONObject();
             try {
@@ -8,6 +8,11 @@ import com.google.firebase.database.ServerValue;
 
 import java.util.Map;
 
+import examples.baku.io.permissions.storage.DataCodec;
+import examples.baku.io.permissions.storage.DataCodecs;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.FieldCodec;
+
 /**
  * Created by phamilton on 6/22/16.
  */
@@ -100,4 +105,46 @@ public class MessageData {
     public void setTimeStamp(long timeStamp) {
         this.timeStamp = timeStamp;
     }
+
+    public static final DataCodec<MessageData> CODEC = new FieldCodec<MessageData>() {
+        @Override
+        protected MessageData create() {
+            return new MessageData();
+        }
+
+        @Override
+        protected boolean decode(MessageData result, String key, DataNode child) {
+            switch (key) {
+                case "id":
+                    result.setId(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "to":
+                    result.setTo(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "from":
+                    result.setFrom(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "subject":
+                    result.setSubject(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "message":
+                    result.setMessage(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "group":
+                    result.setGroup(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "attachment":
+                    result.setAttachment(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "timeStamp":
+                    result.setTimeStamp(DataCodecs.asLong(child.getValue()));
+                    return true;
+            }
+            return false;
+        }
+    };
+
+    static {
+        DataCodecs.register(MessageData.class, CODEC);
+    }
 }
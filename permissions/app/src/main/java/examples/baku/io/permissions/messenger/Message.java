@@ -7,11 +7,15 @@ package examples.baku.io.permissions.messenger;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import com.google.firebase.database.ServerValue;
-
 import java.util.Map;
 import java.util.UUID;
 
+import examples.baku.io.permissions.storage.DataCodec;
+import examples.baku.io.permissions.storage.DataCodecs;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.FieldCodec;
+import examples.baku.io.permissions.storage.ServerValues;
+
 /**
  * Created by phamilton on 6/19/16.
  */
@@ -96,7 +100,7 @@ public class Message implements Parcelable{
 
 
     public Map<String,String> getTimeStamp() {
-        return ServerValue.TIMESTAMP;
+        return ServerValues.TIMESTAMP;
     }
 
     public void setTimeStamp(long timeStamp) {
@@ -139,4 +143,46 @@ public class Message implements Parcelable{
         }
 
     };
+
+    public static final DataCodec<Message> CODEC = new FieldCodec<Message>() {
+        @Override
+        protected Message create() {
+            return new Message();
+        }
+
+        @Override
+        protected boolean decode(Message result, String key, DataNode child) {
+            switch (key) {
+                case "id":
+                    result.setId(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "parent":
+                    result.setParent(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "type":
+                    result.setType(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "target":
+                    result.setTarget(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "source":
+                    result.setSource(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "message":
+                    result.setMessage(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "callback":
+                    result.setCallback(DataCodecs.asBoolean(child.getValue()));
+                    return true;
+                case "timeStamp":
+                    result.setTimeStamp(DataCodecs.asLong(child.getValue()));
+                    return true;
+            }
+            return false;
+        }
+    };
+
+    static {
+        DataCodecs.register(Message.class, CODEC);
+    }
 }
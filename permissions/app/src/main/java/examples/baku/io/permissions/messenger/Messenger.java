@@ -7,49 +7,49 @@ package examples.baku.io.permissions.messenger;
 import android.provider.ContactsContract;
 import android.widget.NumberPicker;
 
-import com.google.firebase.database.ChildEventListener;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseException;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.ValueEventListener;
-
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import examples.baku.io.permissions.storage.ChildListener;
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.storage.DataException;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.DataRef;
+import examples.baku.io.permissions.storage.ValueListener;
+
 /**
  * Created by phamilton on 6/28/16.
  *
  * !!!!!!!!!FOR PROTOTYPING ONLY!!!!!!!
- * Messaging on top of Firebase real-time database.
+ * Messaging on top of a realtime data store.
  * Handles single target messaging only.
  * Stand in for something like socket.io.
  */
-public class Messenger implements ChildEventListener {
+public class Messenger implements ChildListener {
 
     static final String KEY_TARGET = "target";
 
     static final String KEY_GROUPS = "_groups";
 
     private String mId;
-    private DatabaseReference mReference;
+    private DataRef mReference;
 
     //hacky client side grouping
-    private DatabaseReference mGroupsReference;
-    private DataSnapshot mGroups;
+    private DataRef mGroupsReference;
+    private DataNode mGroups;
 
     final private Map<String, Listener> mListeners = new HashMap<>();
     final private Map<String, Ack> mCallbacks = new HashMap<>();
 
-    public Messenger(String id, DatabaseReference reference) {
+    public Messenger(String id, DataRef reference) {
         this.mId = id;
         this.mReference = reference;
-        this.mReference.orderByChild(KEY_TARGET).equalTo(mId).addChildEventListener(this);
+        this.mReference.orderByChild(KEY_TARGET).equalTo(mId).addChildListener(this);
 
         this.mGroupsReference = mReference.child(KEY_GROUPS);
-        this.mGroupsReference.addValueEventListener(groupsListener);
+        this.mGroupsReference.addValueListener(groupsListener);
     }
 
     public Emitter to(final String target){
@@ -70,9 +70,9 @@ public class Messenger implements ChildEventListener {
                     message.setTarget(target);
                     mReference.child(message.getId()).setValue(message);
                 }else if(mGroups.exists()){
-//                        DataSnapshot members = mGroups.child(target);
+//                        DataNode members = mGroups.child(target);
 //                        if(members.exists()){
-//                            for(Iterator<DataSnapshot> iterator = members.getChildren().iterator(); iterator.hasNext();){
+//                            for(Iterator<DataNode> iterator = members.getChildren().iterator(); iterator.hasNext();){
 //                                String subTarget = iterator.next().getKey();
 //                                Message childMessage = message.getChildInstance();
 //                                childMessage.setTarget(subTarget);
@@ -106,26 +106,26 @@ public class Messenger implements ChildEventListener {
         mGroupsReference.child(group).child(mId).removeValue();
     }
 
-    ValueEventListener groupsListener = new ValueEventListener() {
+    ValueListener groupsListener = new ValueListener() {
         @Override
-        public void onDataChange(DataSnapshot dataSnapshot) {
+        public void onDataChange(DataNode dataSnapshot) {
 
         }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(DataError databaseError) {
 
         }
     };
 
 
     @Override
-    public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+    public void onChildAdded(DataNode dataSnapshot, String s) {
         Message message = null;
         try{
             message = dataSnapshot.getValue(Message.class);
 
-        }catch(DatabaseException e){
+        }catch(DataException e){
             e.printStackTrace();
         }
 
@@ -163,27 +163,27 @@ public class Messenger implements ChildEventListener {
     }
 
     @Override
-    public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+    public void onChildChanged(DataNode dataSnapshot, String s) {
 
     }
 
     @Override
-    public void onChildRemoved(DataSnapshot dataSnapshot) {
+    public void onChildRemoved(DataNode dataSnapshot) {
 
     }
 
     @Override
-    public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+    public void onChildMoved(DataNode dataSnapshot, String s) {
 
     }
 
     @Override
-    public void onCancelled(DatabaseError databaseError) {
+    public void onCancelled(DataError databaseError) {
         databaseError.toException().printStackTrace();
     }
 
     public void disconnect(){
-        mReference.removeEventListener(this);
+        mReference.removeListener(this);
     }
 
     public abstract class Emitter{
@@ -0,0 +1,18 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+public interface ChildListener {
+
+    void onChildAdded(DataNode node, String previousKey);
+
+    void onChildChanged(DataNode node, String previousKey);
+
+    void onChildRemoved(DataNode node);
+
+    void onChildMoved(DataNode node, String previousKey);
+
+    void onCancelled(DataError error);
+}
@@ -0,0 +1,15 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+/**
+ * Decodes an object directly from the children of a node, without reflective bean mapping.
+ * Register codecs with DataCodecs, DataNode.getValue(Class) uses them when available.
+ */
+public interface DataCodec<T> {
+
+    //node always exists
+    T decode(DataNode node);
+}
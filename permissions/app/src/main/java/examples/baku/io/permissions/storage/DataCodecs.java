@@ -0,0 +1,92 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of DataCodecs by class, and value conversions for writing codecs. Values of the wrong type fail with a
+ * DataException, as they do with bean mapping.
+ * Model classes register their codec in a static initializer. The first lookup of a class initializes it, so
+ * codecs are found without callers having to touch the class first.
+ */
+public final class DataCodecs {
+
+    private static final DataCodec<Object> NONE = new DataCodec<Object>() {
+        @Override
+        public Object decode(DataNode node) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static final Map<Class<?>, DataCodec<?>> sCodecs = new ConcurrentHashMap<>();
+
+    private DataCodecs() {
+    }
+
+    public static <T> void register(Class<T> type, DataCodec<T> codec) {
+        sCodecs.put(type, codec);
+    }
+
+    //return the codec registered for type, or null if it's decoded by bean mapping
+    @SuppressWarnings("unchecked")
+    public static <T> DataCodec<T> get(Class<T> type) {
+        DataCodec<?> codec = sCodecs.get(type);
+        if (codec == null) {
+            try {   //run the static initializer, which may register a codec
+                Class.forName(type.getName(), true, type.getClassLoader());
+            } catch (ClassNotFoundException | LinkageError e) {
+                //no codec
+            }
+            codec = sCodecs.get(type);
+            if (codec == null) {
+                codec = NONE;
+                sCodecs.put(type, codec);
+            }
+        }
+        return codec == NONE ? null : (DataCodec<T>) codec;
+    }
+
+    //null for missing nodes, as with bean mapping
+    public static <T> T decode(DataNode node, DataCodec<T> codec) {
+        return node.exists() ? codec.decode(node) : null;
+    }
+
+    public static String asString(Object value) {
+        return value == null || value instanceof String ? (String) value : String.valueOf(value);
+    }
+
+    public static int asInt(Object value) {
+        return value == null ? 0 : asNumber(value).intValue();
+    }
+
+    public static long asLong(Object value) {
+        return value == null ? 0 : asNumber(value).longValue();
+    }
+
+    public static boolean asBoolean(Object value) {
+        if (value != null && !(value instanceof Boolean)) {
+            throw new DataException("Expected a boolean, found " + value);
+        }
+        return value != null && (Boolean) value;
+    }
+
+    private static Number asNumber(Object value) {
+        if (!(value instanceof Number)) {
+            throw new DataException("Expected a number, found " + value);
+        }
+        return (Number) value;
+    }
+
+    public static Map<String, String> asStringMap(DataNode node) {
+        Map<String, String> result = new HashMap<>();
+        for (DataNode child : node.getChildren()) {
+            result.put(child.getKey(), asString(child.getValue()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,38 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+/**
+ * Error reported by a data store.
+ */
+public class DataError {
+
+    public static final int UNKNOWN = -999;
+
+    private final int code;
+    private final String message;
+
+    public DataError(int code, String message) {
+        this.code = code;
+        this.message = message;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public DataException toException() {
+        return new DataException(code + ": " + message);
+    }
+
+    @Override
+    public String toString() {
+        return "DataError(" + code + ", " + message + ")";
+    }
+}
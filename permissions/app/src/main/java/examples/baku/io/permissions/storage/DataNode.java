@@ -0,0 +1,30 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+/**
+ * Immutable snapshot of the data at a location.
+ */
+public interface DataNode {
+
+    String getKey();
+
+    boolean exists();
+
+    boolean hasChild(String path);
+
+    DataNode child(String path);
+
+    Iterable<DataNode> getChildren();
+
+    long getChildrenCount();
+
+    //raw value: String, Boolean, Long, Double, Map or List
+    Object getValue();
+
+    <T> T getValue(Class<T> type);
+
+    DataRef getRef();
+}
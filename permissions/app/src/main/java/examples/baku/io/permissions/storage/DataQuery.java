@@ -0,0 +1,37 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+/**
+ * A location in a hierarchical data store, optionally filtered and ordered.
+ * Modelled on the subset of the Firebase realtime database API used by the permission and sync engines.
+ */
+public interface DataQuery {
+
+    DataRef getRef();
+
+    DataQuery orderByChild(String key);
+
+    DataQuery orderByKey();
+
+    DataQuery equalTo(String value);
+
+    DataQuery startAt(double value);
+
+    DataQuery startAt(String value);
+
+    DataQuery endAt(double value);
+
+    ValueListener addValueListener(ValueListener listener);
+
+    //called once with the current value, then removed
+    void addSingleValueListener(ValueListener listener);
+
+    ChildListener addChildListener(ChildListener listener);
+
+    void removeListener(ValueListener listener);
+
+    void removeListener(ChildListener listener);
+}
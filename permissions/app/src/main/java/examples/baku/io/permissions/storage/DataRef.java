@@ -0,0 +1,30 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import java.util.Map;
+
+/**
+ * A writable location in a data store.
+ */
+public interface DataRef extends DataQuery {
+
+    //last segment of the location, null for the root
+    String getKey();
+
+    DataRef child(String path);
+
+    //child location with a unique, chronologically ordered key
+    DataRef push();
+
+    void setValue(Object value);
+
+    void removeValue();
+
+    //write several locations, relative to this one, in a single atomic update. Null values delete.
+    void updateChildren(Map<String, Object> values);
+
+    void runTransaction(TransactionHandler handler);
+}
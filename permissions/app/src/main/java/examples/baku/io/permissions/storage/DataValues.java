@@ -0,0 +1,325 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Conversion between Java objects and stored data, following the Firebase bean mapping rules:
+ * data is made of String, Boolean, Long, Double and Map values; lists are stored as maps with index keys
+ * and beans are mapped through their public getters and setters.
+ */
+public final class DataValues {
+
+    //key order of stored maps: index keys numerically, then other keys lexicographically
+    public static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            boolean indexA = isIndex(a);
+            boolean indexB = isIndex(b);
+            if (indexA && indexB) {
+                return a.length() != b.length() ? a.length() - b.length() : a.compareTo(b);
+            } else if (indexA != indexB) {
+                return indexA ? -1 : 1;
+            }
+            return a.compareTo(b);
+        }
+    };
+
+    private DataValues() {
+    }
+
+    //convert a value to its stored representation. Returns null for empty values.
+    public static Object toData(Object value) {
+        if (value == null) {
+            return null;
+        } else if (value instanceof String || value instanceof Boolean) {
+            return value;
+        } else if (value instanceof Double || value instanceof Float) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Character) {
+            return value.toString();
+        } else if (value instanceof Enum) {
+            return ((Enum) value).name();
+        } else if (value instanceof Map) {
+            Map<String, Object> result = new TreeMap<>(KEY_ORDER);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                Object child = toData(entry.getValue());
+                if (child != null) {
+                    result.put(String.valueOf(entry.getKey()), child);
+                }
+            }
+            return result.isEmpty() ? null : result;
+        } else if (value instanceof Collection) {
+            return toData(((Collection) value).toArray());
+        } else if (value.getClass().isArray()) {
+            Map<String, Object> result = new TreeMap<>(KEY_ORDER);
+            for (int i = 0; i < Array.getLength(value); i++) {
+                Object child = toData(Array.get(value, i));
+                if (child != null) {
+                    result.put(String.valueOf(i), child);
+                }
+            }
+            return result.isEmpty() ? null : result;
+        }
+        return toData(beanToMap(value));
+    }
+
+    //convert stored data to the given type
+    @SuppressWarnings("unchecked")
+    public static <T> T fromData(Object data, Class<T> type) {
+        return (T) fromData(data, (Type) type);
+    }
+
+    //values of the wrong type fail with a DataException
+    public static Object fromData(Object data, Type type) {
+        try {
+            return convert(data, type);
+        } catch (ClassCastException e) {
+            throw new DataException("Can't convert " + data + " to " + type, e);
+        }
+    }
+
+    //stored maps are always keyed by strings, see toData
+    @SuppressWarnings("unchecked")
+    private static Object convert(Object data, Type type) {
+        if (data == null) {
+            return null;
+        }
+        Class<?> raw = rawType(type);
+        if (raw == Object.class) {
+            return toPlain(data);
+        } else if (raw == String.class) {
+            return data instanceof String ? data : String.valueOf(data);
+        } else if (raw == Integer.class || raw == int.class) {
+            return ((Number) data).intValue();
+        } else if (raw == Long.class || raw == long.class) {
+            return ((Number) data).longValue();
+        } else if (raw == Double.class || raw == double.class) {
+            return ((Number) data).doubleValue();
+        } else if (raw == Float.class || raw == float.class) {
+            return ((Number) data).floatValue();
+        } else if (raw == Boolean.class || raw == boolean.class) {
+            return (Boolean) data;
+        } else if (raw.isEnum()) {
+            return enumValue(raw, (String) data);
+        } else if (List.class.isAssignableFrom(raw) || Collection.class.isAssignableFrom(raw)) {
+            Type elementType = typeArgument(type, 0);
+            List<Object> result = new ArrayList<>();
+            for (Object child : children(data)) {
+                result.add(fromData(child, elementType));
+            }
+            return result;
+        } else if (Map.class.isAssignableFrom(raw)) {
+            Type valueType = typeArgument(type, 1);
+            Map<String, Object> result = new HashMap<>();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) data).entrySet()) {
+                result.put(entry.getKey(), fromData(entry.getValue(), valueType));
+            }
+            return result;
+        }
+        return mapToBean((Map<String, Object>) data, raw);
+    }
+
+    //plain java representation of stored data: maps with index keys become lists
+    @SuppressWarnings("unchecked")
+    public static Object toPlain(Object data) {
+        if (!(data instanceof Map)) {
+            return data;
+        }
+        Map<String, Object> map = (Map<String, Object>) data;
+        if (isIndexed(map)) {
+            List<Object> result = new ArrayList<>();
+            for (Object child : children(data)) {
+                result.add(toPlain(child));
+            }
+            return result;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            result.put(entry.getKey(), toPlain(entry.getValue()));
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> children(Object data) {
+        List<Object> result = new ArrayList<>();
+        if (data instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) data;
+            if (isIndexed(map)) {
+                int size = 0;
+                for (String key : map.keySet()) {
+                    size = Math.max(size, Integer.parseInt(key) + 1);
+                }
+                for (int i = 0; i < size; i++) {
+                    result.add(map.get(String.valueOf(i)));
+                }
+            } else {
+                result.addAll(map.values());
+            }
+        } else if (data instanceof Collection) {
+            result.addAll((Collection) data);
+        }
+        return result;
+    }
+
+    private static boolean isIndexed(Map<String, Object> map) {
+        if (map.isEmpty()) {
+            return false;
+        }
+        for (String key : map.keySet()) {
+            if (!isIndex(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, Object> beanToMap(Object bean) {
+        Map<String, Object> result = new HashMap<>();
+        for (Method method : bean.getClass().getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || method.getParameterTypes().length != 0
+                    || method.getDeclaringClass() == Object.class) {
+                continue;
+            }
+            String name = method.getName();
+            String property = null;
+            if (name.startsWith("get") && name.length() > 3) {
+                property = name.substring(3);
+            } else if (name.startsWith("is") && name.length() > 2
+                    && (method.getReturnType() == boolean.class || method.getReturnType() == Boolean.class)) {
+                property = name.substring(2);
+            }
+            if (property == null) {
+                continue;
+            }
+            try {
+                result.put(decapitalize(property), method.invoke(bean));
+            } catch (Exception e) {
+                throw new DataException("Failed to read property " + property + " of " + bean.getClass().getName(), e);
+            }
+        }
+        return result;
+    }
+
+    private static Object mapToBean(Map<String, Object> data, Class<?> type) {
+        Object bean;
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            bean = constructor.newInstance();
+        } catch (Exception e) {
+            throw new DataException("Class " + type.getName() + " is missing a no-argument constructor", e);
+        }
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            String property = entry.getKey();
+            String setterName = "set" + Character.toUpperCase(property.charAt(0)) + property.substring(1);
+            try {
+                Method setter = findSetter(type, setterName);
+                if (setter != null) {
+                    setter.invoke(bean, fromData(entry.getValue(), setter.getGenericParameterTypes()[0]));
+                    continue;
+                }
+                Field field = findField(type, property);
+                if (field != null) {
+                    field.setAccessible(true);
+                    field.set(bean, fromData(entry.getValue(), field.getGenericType()));
+                }
+            } catch (DataException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new DataException("Failed to set property " + property + " of " + type.getName(), e);
+            }
+        }
+        return bean;
+    }
+
+    private static Method findSetter(Class<?> type, String name) {
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(name) && method.getParameterTypes().length == 1) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private static Field findField(Class<?> type, String name) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    return field;
+                }
+            } catch (NoSuchFieldException e) {
+                //check superclass
+            }
+        }
+        return null;
+    }
+
+    private static Object enumValue(Class<?> type, String name) {
+        for (Object constant : type.getEnumConstants()) {
+            if (((Enum<?>) constant).name().equals(name)) {
+                return constant;
+            }
+        }
+        throw new DataException("No constant " + name + " in " + type.getName());
+    }
+
+    private static Class<?> rawType(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        } else if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        }
+        return Object.class;
+    }
+
+    private static Type typeArgument(Type type, int index) {
+        if (type instanceof ParameterizedType) {
+            Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+            if (index < arguments.length) {
+                return arguments[index];
+            }
+        }
+        return Object.class;
+    }
+
+    private static String decapitalize(String name) {
+        if (name.length() > 1 && Character.isUpperCase(name.charAt(1))) {
+            return name;
+        }
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static boolean isIndex(String key) {
+        if (key.isEmpty() || key.length() > 9 || key.length() > 1 && key.charAt(0) == '0') {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (!Character.isDigit(key.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+/**
+ * DataCodec for objects stored with one child per field, decoded without bean mapping.
+ * Subclasses create the object and decode each child into its field. A child without a field fails the decode, so a
+ * field the codec misses shows up as an error instead of a default value.
+ */
+public abstract class FieldCodec<T> implements DataCodec<T> {
+
+    protected abstract T create();
+
+    //decode child into the field named key, false if there is no such field
+    protected abstract boolean decode(T result, String key, DataNode child);
+
+    @Override
+    public T decode(DataNode node) {
+        T result = create();
+        for (DataNode child : node.getChildren()) {
+            if (!decode(result, child.getKey(), child)) {
+                throw new DataException("No field " + child.getKey() + " in " + result.getClass().getName());
+            }
+        }
+        return result;
+    }
+}
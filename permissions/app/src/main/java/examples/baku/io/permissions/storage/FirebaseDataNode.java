@@ -0,0 +1,79 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import com.google.firebase.database.DataSnapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DataNode backed by a Firebase snapshot.
+ */
+public class FirebaseDataNode implements DataNode {
+
+    private final DataSnapshot snapshot;
+
+    public FirebaseDataNode(DataSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public DataSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public String getKey() {
+        return snapshot.getKey();
+    }
+
+    @Override
+    public boolean exists() {
+        return snapshot.exists();
+    }
+
+    @Override
+    public boolean hasChild(String path) {
+        return snapshot.hasChild(path);
+    }
+
+    @Override
+    public DataNode child(String path) {
+        return new FirebaseDataNode(snapshot.child(path));
+    }
+
+    @Override
+    public Iterable<DataNode> getChildren() {
+        List<DataNode> result = new ArrayList<>();
+        for (DataSnapshot child : snapshot.getChildren()) {
+            result.add(new FirebaseDataNode(child));
+        }
+        return result;
+    }
+
+    @Override
+    public long getChildrenCount() {
+        return snapshot.getChildrenCount();
+    }
+
+    @Override
+    public Object getValue() {
+        return snapshot.getValue();
+    }
+
+    @Override
+    public <T> T getValue(Class<T> type) {
+        DataCodec<T> codec = DataCodecs.get(type);
+        if (codec != null) {
+            return DataCodecs.decode(this, codec);
+        }
+        return DataValues.fromData(snapshot.getValue(), type);   //same mapping as the memory store
+    }
+
+    @Override
+    public DataRef getRef() {
+        return new FirebaseDataRef(snapshot.getRef());
+    }
+}
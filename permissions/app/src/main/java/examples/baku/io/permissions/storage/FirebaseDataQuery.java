@@ -0,0 +1,199 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * DataQuery backed by a Firebase query.
+ */
+public class FirebaseDataQuery implements DataQuery {
+
+    //one Firebase listener per registered storage listener, so that listeners can be removed from any equivalent
+    //location. Entries are dropped when the last registration of the listener is removed.
+    private static final Map<ValueListener, Registration<ValueEventListener>> valueListeners = new IdentityHashMap<>();
+    private static final Map<ChildListener, Registration<ChildEventListener>> childListeners = new IdentityHashMap<>();
+
+    private static class Registration<T> {
+        final T wrapper;
+        int count;
+
+        Registration(T wrapper) {
+            this.wrapper = wrapper;
+        }
+    }
+
+    private final Query query;
+
+    FirebaseDataQuery(Query query) {
+        this.query = query;
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    @Override
+    public DataRef getRef() {
+        return new FirebaseDataRef(query.getRef());
+    }
+
+    @Override
+    public DataQuery orderByChild(String key) {
+        return new FirebaseDataQuery(query.orderByChild(key));
+    }
+
+    @Override
+    public DataQuery orderByKey() {
+        return new FirebaseDataQuery(query.orderByKey());
+    }
+
+    @Override
+    public DataQuery equalTo(String value) {
+        return new FirebaseDataQuery(query.equalTo(value));
+    }
+
+    @Override
+    public DataQuery startAt(double value) {
+        return new FirebaseDataQuery(query.startAt(value));
+    }
+
+    @Override
+    public DataQuery startAt(String value) {
+        return new FirebaseDataQuery(query.startAt(value));
+    }
+
+    @Override
+    public DataQuery endAt(double value) {
+        return new FirebaseDataQuery(query.endAt(value));
+    }
+
+    @Override
+    public ValueListener addValueListener(ValueListener listener) {
+        query.addValueEventListener(wrap(listener));
+        return listener;
+    }
+
+    @Override
+    public void addSingleValueListener(final ValueListener listener) {
+        query.addListenerForSingleValueEvent(new ValueEventListener() {
+            @Override
+            public void onDataChange(DataSnapshot dataSnapshot) {
+                listener.onDataChange(new FirebaseDataNode(dataSnapshot));
+            }
+
+            @Override
+            public void onCancelled(DatabaseError databaseError) {
+                listener.onCancelled(toDataError(databaseError));
+            }
+        });
+    }
+
+    @Override
+    public ChildListener addChildListener(ChildListener listener) {
+        query.addChildEventListener(wrap(listener));
+        return listener;
+    }
+
+    @Override
+    public void removeListener(ValueListener listener) {
+        ValueEventListener wrapper = release(valueListeners, listener);
+        if (wrapper != null) {
+            query.removeEventListener(wrapper);
+        }
+    }
+
+    @Override
+    public void removeListener(ChildListener listener) {
+        ChildEventListener wrapper = release(childListeners, listener);
+        if (wrapper != null) {
+            query.removeEventListener(wrapper);
+        }
+    }
+
+    //wrapper of a registered listener, forgotten once its registrations are all removed
+    private static <L, T> T release(Map<L, Registration<T>> registrations, L listener) {
+        synchronized (registrations) {
+            Registration<T> registration = registrations.get(listener);
+            if (registration == null) {
+                return null;
+            }
+            if (--registration.count <= 0) {
+                registrations.remove(listener);
+            }
+            return registration.wrapper;
+        }
+    }
+
+    static DataError toDataError(DatabaseError databaseError) {
+        return databaseError == null ? null : new DataError(databaseError.getCode(), databaseError.getMessage());
+    }
+
+    private static ValueEventListener wrap(final ValueListener listener) {
+        synchronized (valueListeners) {
+            Registration<ValueEventListener> registration = valueListeners.get(listener);
+            if (registration == null) {
+                registration = new Registration<ValueEventListener>(new ValueEventListener() {
+                    @Override
+                    public void onDataChange(DataSnapshot dataSnapshot) {
+                        listener.onDataChange(new FirebaseDataNode(dataSnapshot));
+                    }
+
+                    @Override
+                    public void onCancelled(DatabaseError databaseError) {
+                        listener.onCancelled(toDataError(databaseError));
+                    }
+                });
+                valueListeners.put(listener, registration);
+            }
+            registration.count++;
+            return registration.wrapper;
+        }
+    }
+
+    private static ChildEventListener wrap(final ChildListener listener) {
+        synchronized (childListeners) {
+            Registration<ChildEventListener> registration = childListeners.get(listener);
+            if (registration == null) {
+                registration = new Registration<ChildEventListener>(new ChildEventListener() {
+                    @Override
+                    public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+                        listener.onChildAdded(new FirebaseDataNode(dataSnapshot), s);
+                    }
+
+                    @Override
+                    public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+                        listener.onChildChanged(new FirebaseDataNode(dataSnapshot), s);
+                    }
+
+                    @Override
+                    public void onChildRemoved(DataSnapshot dataSnapshot) {
+                        listener.onChildRemoved(new FirebaseDataNode(dataSnapshot));
+                    }
+
+                    @Override
+                    public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+                        listener.onChildMoved(new FirebaseDataNode(dataSnapshot), s);
+                    }
+
+                    @Override
+                    public void onCancelled(DatabaseError databaseError) {
+                        listener.onCancelled(toDataError(databaseError));
+                    }
+                });
+                childListeners.put(listener, registration);
+            }
+            registration.count++;
+            return registration.wrapper;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+
+import java.util.Map;
+
+/**
+ * DataRef backed by a Firebase realtime database reference.
+ */
+public class FirebaseDataRef extends FirebaseDataQuery implements DataRef {
+
+    private final DatabaseReference reference;
+
+    public FirebaseDataRef(DatabaseReference reference) {
+        super(reference);
+        this.reference = reference;
+    }
+
+    public DatabaseReference getReference() {
+        return reference;
+    }
+
+    @Override
+    public DataRef getRef() {
+        return this;
+    }
+
+    @Override
+    public String getKey() {
+        return reference.getKey();
+    }
+
+    @Override
+    public DataRef child(String path) {
+        return new FirebaseDataRef(reference.child(path));
+    }
+
+    @Override
+    public DataRef push() {
+        return new FirebaseDataRef(reference.push());
+    }
+
+    @Override
+    public void setValue(Object value) {
+        reference.setValue(value);
+    }
+
+    @Override
+    public void removeValue() {
+        reference.removeValue();
+    }
+
+    @Override
+    public void updateChildren(Map<String, Object> values) {
+        reference.updateChildren(values);
+    }
+
+    @Override
+    public void runTransaction(final TransactionHandler handler) {
+        reference.runTransaction(new Transaction.Handler() {
+            @Override
+            public Transaction.Result doTransaction(MutableData mutableData) {
+                if (handler.doTransaction(new FirebaseMutableDataNode(mutableData))) {
+                    return Transaction.success(mutableData);
+                }
+                return Transaction.abort();
+            }
+
+            @Override
+            public void onComplete(DatabaseError databaseError, boolean committed, DataSnapshot dataSnapshot) {
+                handler.onComplete(toDataError(databaseError), committed, dataSnapshot == null ? null : new FirebaseDataNode(dataSnapshot));
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return reference.toString();
+    }
+}
@@ -0,0 +1,54 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.MutableData;
+
+/**
+ * MutableDataNode backed by Firebase transaction data.
+ */
+class FirebaseMutableDataNode implements MutableDataNode {
+
+    private final MutableData data;
+
+    FirebaseMutableDataNode(MutableData data) {
+        this.data = data;
+    }
+
+    @Override
+    public String getKey() {
+        return data.getKey();
+    }
+
+    @Override
+    public boolean hasChild(String path) {
+        return data.hasChild(path);
+    }
+
+    @Override
+    public MutableDataNode child(String path) {
+        return new FirebaseMutableDataNode(data.child(path));
+    }
+
+    @Override
+    public Object getValue() {
+        return data.getValue();
+    }
+
+    @Override
+    public <T> T getValue(Class<T> type) {
+        try {
+            return data.getValue(type);
+        } catch (DatabaseException e) {
+            throw new DataException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void setValue(Object value) {
+        data.setValue(value);
+    }
+}
@@ -0,0 +1,87 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of MemoryStore data. Stored data is never modified in place, so the snapshot shares it.
+ */
+public class MemoryDataNode implements DataNode {
+
+    private final MemoryDataRef ref;
+    private final Object data;
+
+    MemoryDataNode(MemoryDataRef ref, Object data) {
+        this.ref = ref;
+        this.data = data;
+    }
+
+    @Override
+    public String getKey() {
+        return ref.getKey();
+    }
+
+    @Override
+    public boolean exists() {
+        return data != null;
+    }
+
+    @Override
+    public boolean hasChild(String path) {
+        return MemoryStore.get(data, MemoryStore.normalizePath(path)) != null;
+    }
+
+    @Override
+    public DataNode child(String path) {
+        return new MemoryDataNode(ref.child(path), MemoryStore.get(data, MemoryStore.normalizePath(path)));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterable<DataNode> getChildren() {
+        if (!(data instanceof Map)) {
+            return Collections.emptyList();
+        }
+        Map<String, Object> map = (Map<String, Object>) data;
+        List<DataNode> result = new ArrayList<>(map.size());
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            result.add(new MemoryDataNode(ref.child(entry.getKey()), entry.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public long getChildrenCount() {
+        return data instanceof Map ? ((Map) data).size() : 0;
+    }
+
+    @Override
+    public Object getValue() {
+        return DataValues.toPlain(data);
+    }
+
+    @Override
+    public <T> T getValue(Class<T> type) {
+        DataCodec<T> codec = DataCodecs.get(type);
+        if (codec != null) {
+            return DataCodecs.decode(this, codec);
+        }
+        return DataValues.fromData(data, type);
+    }
+
+    @Override
+    public MemoryDataRef getRef() {
+        return ref;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryDataNode(" + getKey() + ", " + data + ")";
+    }
+}
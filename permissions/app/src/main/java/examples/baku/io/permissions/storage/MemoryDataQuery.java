@@ -0,0 +1,179 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DataQuery over a MemoryStore.
+ */
+public class MemoryDataQuery implements DataQuery {
+
+    final MemoryStore store;
+    final String path;
+    private final String orderByChild;    //null when ordered by key
+    private final boolean ordered;
+    private final Object equalTo;
+    private final Object startAt;
+    private final Object endAt;
+
+    MemoryDataQuery(MemoryStore store, String path) {
+        this(store, path, null, false, null, null, null);
+    }
+
+    private MemoryDataQuery(MemoryStore store, String path, String orderByChild, boolean ordered, Object equalTo, Object startAt, Object endAt) {
+        this.store = store;
+        this.path = path;
+        this.orderByChild = orderByChild;
+        this.ordered = ordered;
+        this.equalTo = equalTo;
+        this.startAt = startAt;
+        this.endAt = endAt;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    @Override
+    public MemoryDataRef getRef() {
+        return new MemoryDataRef(store, path);
+    }
+
+    @Override
+    public DataQuery orderByChild(String key) {
+        return new MemoryDataQuery(store, path, key, true, equalTo, startAt, endAt);
+    }
+
+    @Override
+    public DataQuery orderByKey() {
+        return new MemoryDataQuery(store, path, null, true, equalTo, startAt, endAt);
+    }
+
+    @Override
+    public DataQuery equalTo(String value) {
+        return new MemoryDataQuery(store, path, orderByChild, ordered, value, startAt, endAt);
+    }
+
+    @Override
+    public DataQuery startAt(double value) {
+        return new MemoryDataQuery(store, path, orderByChild, ordered, equalTo, value, endAt);
+    }
+
+    @Override
+    public DataQuery startAt(String value) {
+        return new MemoryDataQuery(store, path, orderByChild, ordered, equalTo, value, endAt);
+    }
+
+    @Override
+    public DataQuery endAt(double value) {
+        return new MemoryDataQuery(store, path, orderByChild, ordered, equalTo, startAt, value);
+    }
+
+    @Override
+    public ValueListener addValueListener(ValueListener listener) {
+        store.addValueListener(this, listener, false);
+        return listener;
+    }
+
+    @Override
+    public void addSingleValueListener(ValueListener listener) {
+        store.addValueListener(this, listener, true);
+    }
+
+    @Override
+    public ChildListener addChildListener(ChildListener listener) {
+        store.addChildListener(this, listener);
+        return listener;
+    }
+
+    @Override
+    public void removeListener(ValueListener listener) {
+        store.removeListener(this, listener);
+    }
+
+    @Override
+    public void removeListener(ChildListener listener) {
+        store.removeListener(this, listener);
+    }
+
+    //the data seen by this query in the given store root: children are filtered and put in query order
+    @SuppressWarnings("unchecked")
+    Object view(Object root) {
+        Object data = MemoryStore.get(root, path);
+        if (!ordered || !(data instanceof Map)) {
+            return data;
+        }
+        List<Map.Entry<String, Object>> entries = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) data).entrySet()) {
+            Object value = orderValue(entry);
+            if ((equalTo == null || compareValues(value, equalTo) == 0)
+                    && (startAt == null || compareValues(value, startAt) >= 0)
+                    && (endAt == null || compareValues(value, endAt) <= 0)) {
+                entries.add(entry);
+            }
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        if (orderByChild != null) {
+            Collections.sort(entries, new Comparator<Map.Entry<String, Object>>() {
+                @Override
+                public int compare(Map.Entry<String, Object> a, Map.Entry<String, Object> b) {
+                    int result = compareValues(orderValue(a), orderValue(b));
+                    return result != 0 ? result : DataValues.KEY_ORDER.compare(a.getKey(), b.getKey());
+                }
+            });
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : entries) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private Object orderValue(Map.Entry<String, Object> entry) {
+        return orderByChild == null ? entry.getKey() : MemoryStore.get(entry.getValue(), orderByChild);
+    }
+
+    //firebase value order: null, false, true, numbers, strings, maps
+    private static int compareValues(Object a, Object b) {
+        int rankA = rank(a);
+        int rankB = rank(b);
+        if (rankA != rankB) {
+            return rankA - rankB;
+        } else if (a instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        } else if (a instanceof String) {
+            return ((String) a).compareTo((String) b);
+        } else if (a instanceof Boolean) {
+            return ((Boolean) a).compareTo((Boolean) b);
+        }
+        return 0;
+    }
+
+    private static int rank(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Boolean) {
+            return 1;
+        } else if (value instanceof Number) {
+            return 2;
+        } else if (value instanceof String) {
+            return 3;
+        }
+        return 4;
+    }
+
+    @Override
+    public String toString() {
+        return "memory:/" + (path == null ? "" : path);
+    }
+}
@@ -0,0 +1,83 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * DataRef to a location in a MemoryStore.
+ */
+public class MemoryDataRef extends MemoryDataQuery implements DataRef {
+
+    MemoryDataRef(MemoryStore store, String path) {
+        super(store, path);
+    }
+
+    public MemoryStore getStore() {
+        return store;
+    }
+
+    @Override
+    public MemoryDataRef getRef() {
+        return this;
+    }
+
+    @Override
+    public String getKey() {
+        return path == null ? null : path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public MemoryDataRef child(String childPath) {
+        return new MemoryDataRef(store, MemoryStore.normalizePath(absolute(childPath)));
+    }
+
+    @Override
+    public MemoryDataRef push() {
+        return child(store.nextPushKey());
+    }
+
+    @Override
+    public void setValue(Object value) {
+        store.setValue(path, value);
+    }
+
+    @Override
+    public void removeValue() {
+        store.setValue(path, null);
+    }
+
+    @Override
+    public void updateChildren(Map<String, Object> values) {
+        Map<String, Object> update = new HashMap<>();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            update.put(absolute(entry.getKey()), entry.getValue());
+        }
+        store.update(update);
+    }
+
+    @Override
+    public void runTransaction(TransactionHandler handler) {
+        store.runTransaction(this, handler);
+    }
+
+    private String absolute(String childPath) {
+        return path == null ? childPath : path + "/" + childPath;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MemoryDataRef)) return false;
+        MemoryDataRef that = (MemoryDataRef) o;
+        return store == that.store && MemoryStore.equal(path, that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path == null ? 0 : path.hashCode();
+    }
+}
@@ -0,0 +1,61 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+/**
+ * MutableDataNode of a MemoryStore transaction. Writes replace the transaction data copy-on-write.
+ */
+class MemoryMutableDataNode implements MutableDataNode {
+
+    private final Holder holder;
+    private final String path;
+
+    static class Holder {
+        Object data;
+
+        Holder(Object data) {
+            this.data = data;
+        }
+    }
+
+    MemoryMutableDataNode(Holder holder, String path) {
+        this.holder = holder;
+        this.path = path;
+    }
+
+    @Override
+    public String getKey() {
+        return path == null ? null : path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public boolean hasChild(String childPath) {
+        return MemoryStore.get(getData(), MemoryStore.normalizePath(childPath)) != null;
+    }
+
+    @Override
+    public MutableDataNode child(String childPath) {
+        return new MemoryMutableDataNode(holder, MemoryStore.normalizePath(path == null ? childPath : path + "/" + childPath));
+    }
+
+    @Override
+    public Object getValue() {
+        return DataValues.toPlain(getData());
+    }
+
+    @Override
+    public <T> T getValue(Class<T> type) {
+        return DataValues.fromData(getData(), type);
+    }
+
+    @Override
+    public void setValue(Object value) {
+        holder.data = MemoryStore.set(holder.data, path, DataValues.toData(value));
+    }
+
+    private Object getData() {
+        return MemoryStore.get(holder.data, path);
+    }
+}
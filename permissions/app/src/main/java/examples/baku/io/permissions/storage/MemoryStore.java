@@ -0,0 +1,393 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * In-process data store with the same semantics as the Firebase realtime database, for running the permission and
+ * sync engines without a network, e.g. in benchmarks and local sessions.
+ * Data is kept as a copy-on-write tree, so snapshots are never copied. Events are delivered synchronously on the
+ * writing thread, after the write has been applied.
+ */
+public class MemoryStore {
+
+    private static final String PUSH_CHARS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+    private Object root;
+    private final List<Registration> registrations = new ArrayList<>();
+    private final Queue<Runnable> events = new LinkedList<>();
+    private boolean dispatching;
+
+    private final Random random = new Random();
+    private long lastPushTime;
+    private final int[] lastPushRandom = new int[12];
+
+    public MemoryDataRef getReference() {
+        return new MemoryDataRef(this, null);
+    }
+
+    public MemoryDataRef getReference(String path) {
+        return new MemoryDataRef(this, normalizePath(path));
+    }
+
+    synchronized Object get(String path) {
+        return get(root, path);
+    }
+
+    void setValue(String path, Object value) {
+        Map<String, Object> update = new TreeMap<>();
+        update.put(path == null ? "" : path, value);
+        update(update);
+    }
+
+    //apply several writes, keyed by absolute path, as a single change
+    synchronized void update(Map<String, Object> values) {
+        //like Firebase, reject updates whose locations overlap since their order is undefined
+        TreeMap<String, Object> paths = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            String path = normalizePath(entry.getKey());
+            paths.put(path == null ? "" : path, entry.getValue());
+        }
+        for (String path : paths.keySet()) {
+            for (int end = path.lastIndexOf('/'); !path.isEmpty(); end = path.lastIndexOf('/', end - 1)) {
+                String ancestor = end == -1 ? "" : path.substring(0, end);
+                if (paths.containsKey(ancestor)) {
+                    throw new DataException("Path /" + ancestor + " is an ancestor of /" + path + " in an update.");
+                } else if (end == -1) {
+                    break;
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        Object data = root;
+        for (Map.Entry<String, Object> entry : paths.entrySet()) {
+            data = set(data, normalizePath(entry.getKey()), resolve(DataValues.toData(entry.getValue()), now));
+        }
+        root = data;
+        onChange();
+    }
+
+    synchronized void runTransaction(MemoryDataRef ref, final TransactionHandler handler) {
+        final String path = ref.getPath();
+        MemoryMutableDataNode.Holder holder = new MemoryMutableDataNode.Holder(get(root, path));
+        final boolean committed = handler.doTransaction(new MemoryMutableDataNode(holder, null));
+        if (committed) {
+            root = set(root, path, resolve(holder.data, System.currentTimeMillis()));
+            onChange();
+        }
+        final MemoryDataNode node = new MemoryDataNode(ref, get(root, path));
+        post(new Runnable() {
+            @Override
+            public void run() {
+                handler.onComplete(null, committed, node);
+            }
+        });
+        drain();
+    }
+
+    synchronized String nextPushKey() {
+        long now = System.currentTimeMillis();
+        boolean duplicateTime = now <= lastPushTime;
+        if (duplicateTime) {
+            //keep keys monotonic within the same millisecond by incrementing the random part
+            now = lastPushTime;
+            int i = lastPushRandom.length - 1;
+            for (; i >= 0 && lastPushRandom[i] == PUSH_CHARS.length() - 1; i--) {
+                lastPushRandom[i] = 0;
+            }
+            if (i >= 0) {
+                lastPushRandom[i]++;
+            }
+        } else {
+            for (int i = 0; i < lastPushRandom.length; i++) {
+                lastPushRandom[i] = random.nextInt(PUSH_CHARS.length());
+            }
+        }
+        lastPushTime = now;
+
+        char[] key = new char[8 + lastPushRandom.length];
+        for (int i = 7; i >= 0; i--) {
+            key[i] = PUSH_CHARS.charAt((int) (now % PUSH_CHARS.length()));
+            now /= PUSH_CHARS.length();
+        }
+        for (int i = 0; i < lastPushRandom.length; i++) {
+            key[8 + i] = PUSH_CHARS.charAt(lastPushRandom[i]);
+        }
+        return new String(key);
+    }
+
+    synchronized void addValueListener(MemoryDataQuery query, final ValueListener listener, boolean single) {
+        Registration registration = new Registration(query, listener, null);
+        registration.last = query.view(root);
+        if (!single) {
+            register(registration);
+        }
+        final MemoryDataNode node = new MemoryDataNode(query.getRef(), registration.last);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDataChange(node);
+            }
+        });
+        drain();
+    }
+
+    synchronized void addChildListener(MemoryDataQuery query, ChildListener listener) {
+        Registration registration = new Registration(query, null, listener);
+        register(registration);
+        registration.last = query.view(root);
+        postChildEvents(registration, null, registration.last);
+        drain();
+    }
+
+    synchronized void removeListener(MemoryDataQuery query, Object listener) {
+        for (Iterator<Registration> iterator = registrations.iterator(); iterator.hasNext(); ) {
+            Registration registration = iterator.next();
+            if ((registration.valueListener == listener || registration.childListener == listener)
+                    && equal(registration.query.getPath(), query.getPath())) {
+                registration.removed = true;
+                iterator.remove();
+            }
+        }
+    }
+
+    //keep registrations in firebase event order: deeper locations first, and child events before value events
+    private void register(Registration registration) {
+        int index = registrations.size();
+        while (index > 0 && registration.order() < registrations.get(index - 1).order()) {
+            index--;
+        }
+        registrations.add(index, registration);
+    }
+
+    private void onChange() {
+        for (Registration registration : new ArrayList<>(registrations)) {
+            Object previous = registration.last;
+            Object current = registration.query.view(root);
+            if (previous == current || (previous != null && previous.equals(current))) {
+                continue;
+            }
+            registration.last = current;
+            if (registration.valueListener != null) {
+                postValueEvent(registration, current);
+            } else {
+                postChildEvents(registration, previous, current);
+            }
+        }
+        drain();
+    }
+
+    private void postValueEvent(final Registration registration, Object data) {
+        final MemoryDataNode node = new MemoryDataNode(registration.query.getRef(), data);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (!registration.removed) {
+                    registration.valueListener.onDataChange(node);
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void postChildEvents(final Registration registration, Object previous, Object current) {
+        Map<String, Object> before = previous instanceof Map ? (Map<String, Object>) previous : null;
+        Map<String, Object> after = current instanceof Map ? (Map<String, Object>) current : null;
+        final MemoryDataRef ref = registration.query.getRef();
+        final ChildListener listener = registration.childListener;
+        if (before != null) {
+            for (final Map.Entry<String, Object> entry : before.entrySet()) {
+                if (after == null || !after.containsKey(entry.getKey())) {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!registration.removed) {
+                                listener.onChildRemoved(new MemoryDataNode(ref.child(entry.getKey()), entry.getValue()));
+                            }
+                        }
+                    });
+                }
+            }
+        }
+        if (after == null) {
+            return;
+        }
+        String previousKey = null;
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            final String key = entry.getKey();
+            final String previousChildKey = previousKey;
+            final MemoryDataNode node = new MemoryDataNode(ref.child(key), entry.getValue());
+            previousKey = key;
+            if (before == null || !before.containsKey(key)) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!registration.removed) {
+                            listener.onChildAdded(node, previousChildKey);
+                        }
+                    }
+                });
+            } else if (!entry.getValue().equals(before.get(key))) {
+                final boolean moved = !equal(previousChildKey, previousKey(before, key));
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (registration.removed) {
+                            return;
+                        }
+                        listener.onChildChanged(node, previousChildKey);
+                        if (moved) {
+                            listener.onChildMoved(node, previousChildKey);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void post(Runnable event) {
+        events.add(event);
+    }
+
+    //deliver queued events. Writes made by listeners queue their events behind the current ones.
+    private void drain() {
+        if (dispatching) {
+            return;
+        }
+        dispatching = true;
+        try {
+            Runnable event;
+            while ((event = events.poll()) != null) {
+                event.run();
+            }
+        } finally {
+            dispatching = false;
+        }
+    }
+
+    private static String previousKey(Map<String, Object> map, String key) {
+        String previous = null;
+        for (String k : map.keySet()) {
+            if (k.equals(key)) {
+                return previous;
+            }
+            previous = k;
+        }
+        return null;
+    }
+
+    //replace server value placeholders
+    @SuppressWarnings("unchecked")
+    private static Object resolve(Object data, long now) {
+        if (ServerValues.isTimestamp(data)) {
+            return now;
+        } else if (data instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) data;
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                Object value = resolve(entry.getValue(), now);
+                if (value != entry.getValue()) {
+                    entry.setValue(value);
+                }
+            }
+        }
+        return data;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object get(Object data, String path) {
+        if (path == null) {
+            return data;
+        }
+        int start = 0;
+        while (data != null && start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = path.length();
+            }
+            data = data instanceof Map ? ((Map<String, Object>) data).get(path.substring(start, end)) : null;
+            start = end + 1;
+        }
+        return data;
+    }
+
+    //copy the maps along path, sharing everything else. Empty maps are removed.
+    @SuppressWarnings("unchecked")
+    static Object set(Object data, String path, Object value) {
+        if (path == null) {
+            return value;
+        }
+        int end = path.indexOf('/');
+        String key = end == -1 ? path : path.substring(0, end);
+        Map<String, Object> map = data instanceof Map ? (Map<String, Object>) data : null;
+        Object child = map == null ? null : map.get(key);
+        Object updated = set(child, end == -1 ? null : path.substring(end + 1), value);
+        if (updated == child) {
+            return data;
+        }
+        Map<String, Object> result = map == null ? new TreeMap<String, Object>(DataValues.KEY_ORDER)
+                : new TreeMap<>(map);
+        if (updated == null) {
+            result.remove(key);
+        } else {
+            result.put(key, updated);
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    //strip leading, trailing and repeated slashes. Returns null for the root.
+    static String normalizePath(String path) {
+        if (path == null) {
+            return null;
+        }
+        StringBuilder result = new StringBuilder(path.length());
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                if (result.length() > 0) {
+                    result.append('/');
+                }
+                result.append(segment);
+            }
+        }
+        return result.length() == 0 ? null : result.toString();
+    }
+
+    static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static class Registration {
+        final MemoryDataQuery query;
+        final ValueListener valueListener;
+        final ChildListener childListener;
+        Object last;
+        boolean removed;
+
+        Registration(MemoryDataQuery query, ValueListener valueListener, ChildListener childListener) {
+            this.query = query;
+            this.valueListener = valueListener;
+            this.childListener = childListener;
+        }
+
+        int order() {
+            String path = query.getPath();
+            int depth = 0;
+            if (path != null) {
+                depth = 1;
+                for (int i = path.indexOf('/'); i != -1; i = path.indexOf('/', i + 1)) {
+                    depth++;
+                }
+            }
+            return -2 * depth + (valueListener != null ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+/**
+ * Data at a location being modified by a transaction.
+ */
+public interface MutableDataNode {
+
+    String getKey();
+
+    boolean hasChild(String path);
+
+    MutableDataNode child(String path);
+
+    Object getValue();
+
+    <T> T getValue(Class<T> type);
+
+    void setValue(Object value);
+}
@@ -0,0 +1,24 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Placeholder values resolved by the data store when they are written.
+ */
+public final class ServerValues {
+
+    //same representation as Firebase's ServerValue.TIMESTAMP
+    public static final Map<String, String> TIMESTAMP = Collections.singletonMap(".sv", "timestamp");
+
+    private ServerValues() {
+    }
+
+    static boolean isTimestamp(Object value) {
+        return value instanceof Map && "timestamp".equals(((Map) value).get(".sv"));
+    }
+}
@@ -0,0 +1,16 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+/**
+ * Atomic read-modify-write of a location. doTransaction may be called several times if the data changes concurrently.
+ */
+public interface TransactionHandler {
+
+    //modify current in place and return true to commit, or return false to abort
+    boolean doTransaction(MutableDataNode current);
+
+    void onComplete(DataError error, boolean committed, DataNode node);
+}
@@ -0,0 +1,12 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+public interface ValueListener {
+
+    void onDataChange(DataNode node);
+
+    void onCancelled(DataError error);
+}
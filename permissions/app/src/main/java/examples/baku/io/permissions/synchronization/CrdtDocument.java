@@ -0,0 +1,576 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Replicated growable array (RGA) of attributed characters.
+ * Every character has a unique lamport id (counter, site) and is placed after the character it was inserted after,
+ * ahead of concurrent inserts with smaller ids. Removed characters are kept as tombstones. The operation and source of
+ * a character form a last writer wins register, so suggestions can be made, accepted and rejected concurrently.
+ * Replicas that apply the same operations, in any order, hold the same document. Operations whose targets haven't
+ * arrived yet are held back until they do.
+ * Offsets count the characters that aren't removed, including deleted suggestions, like SyncTextRope.
+ * Characters are indexed in blocks that count their visible characters, and the rope is updated with every change,
+ * so edits don't walk the whole document.
+ * Not thread safe.
+ */
+public class CrdtDocument {
+
+    //characters per block of the offset index. Blocks are split in two once they hold twice as many.
+    private static final int BLOCK_SIZE = 128;
+
+    private final String site;
+    private int clock;
+    private final Element head = new Element(new Id(0, ""), null, '\0', SyncTextDiff.EQUAL, null, 0);
+    private final Map<Id, Element> elements = new HashMap<>();
+    private final List<SyncTextOp> pending = new LinkedList<>();
+    //characters in document order
+    private final List<Block> blocks = new ArrayList<>();
+    private int length;
+    private SyncTextRope rope = SyncTextRope.EMPTY;
+
+    public CrdtDocument(String site) {
+        if (site == null) throw new IllegalArgumentException("null site");
+        this.site = site;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    //operations waiting for the characters they refer to
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public SyncTextRope toRope() {
+        return rope;
+    }
+
+    public String getFinalText() {
+        return rope.getFinalText();
+    }
+
+    //insert text at offset, returning the operation to send to other replicas
+    public SyncTextOp insert(int offset, String text, int operation, String source, int permission) {
+        if (text == null || text.isEmpty()) {
+            return null;
+        }
+        Element parent = offset <= 0 ? head : visibleAt(offset - 1);
+        if (parent == null) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+        }
+        SyncTextOp op = newOp(SyncTextOp.TYPE_INSERT);
+        clock += text.length() - 1;    //one counter per character
+        if (parent != head) {
+            op.setParentCounter(parent.id.counter);
+            op.setParentSite(parent.id.site);
+        }
+        op.setText(text);
+        op.setOperation(operation);
+        op.setSource(source);
+        op.setPermission(permission);
+        integrateInsert(op, parent);
+        return op;
+    }
+
+    //remove the characters in [start, end)
+    public SyncTextOp remove(int start, int end) {
+        List<Element> range = visibleRange(start, end);
+        if (range.isEmpty()) {
+            return null;
+        }
+        SyncTextOp op = newOp(SyncTextOp.TYPE_REMOVE);
+        op.setTargets(encode(range));
+        for (Element e : range) {
+            remove(e);
+        }
+        return op;
+    }
+
+    //set the operation and source of the characters in [start, end)
+    public SyncTextOp mark(int start, int end, int operation, String source) {
+        return mark(visibleRange(start, end), operation, source);
+    }
+
+    //suggest deleting [start, end) on behalf of source, the same way as SyncTextRope.suggestDelete
+    public List<SyncTextOp> suggestDelete(int start, int end, String source) {
+        List<Element> retracted = new ArrayList<>();
+        List<Element> marked = new ArrayList<>();
+        for (Element e : visibleRange(start, end)) {
+            if (e.operation == SyncTextDiff.INSERT && Objects.equals(source, e.source)) {
+                retracted.add(e);
+            } else {
+                marked.add(e);
+            }
+        }
+        List<SyncTextOp> result = new ArrayList<>();
+        addIfNotNull(result, mark(marked, SyncTextDiff.DELETE, source));
+        if (!retracted.isEmpty()) {
+            SyncTextOp op = newOp(SyncTextOp.TYPE_REMOVE);
+            op.setTargets(encode(retracted));
+            for (Element e : retracted) {
+                remove(e);
+            }
+            result.add(op);
+        }
+        return result;
+    }
+
+    //accept the suggestions of source: suggested inserts become text and suggested deletions are removed
+    public List<SyncTextOp> acceptSuggestions(String source) {
+        return resolveSuggestions(source, true);
+    }
+
+    public List<SyncTextOp> rejectSuggestions(String source) {
+        return resolveSuggestions(source, false);
+    }
+
+    private List<SyncTextOp> resolveSuggestions(String source, boolean accept) {
+        List<Element> kept = new ArrayList<>();
+        List<Element> removed = new ArrayList<>();
+        for (Element e = head.next; e != null; e = e.next) {
+            if (e.removed || e.operation == SyncTextDiff.EQUAL || !Objects.equals(source, e.source)) {
+                continue;
+            }
+            if ((e.operation == SyncTextDiff.INSERT) == accept) {
+                kept.add(e);
+            } else {
+                removed.add(e);
+            }
+        }
+        List<SyncTextOp> result = new ArrayList<>();
+        addIfNotNull(result, mark(kept, SyncTextDiff.EQUAL, source));
+        if (!removed.isEmpty()) {
+            SyncTextOp op = newOp(SyncTextOp.TYPE_REMOVE);
+            op.setTargets(encode(removed));
+            for (Element e : removed) {
+                remove(e);
+            }
+            result.add(op);
+        }
+        return result;
+    }
+
+    //the whole document, tombstones included, as state operations in document order. Applying them to any replica
+    //brings it up to date with this one, so they can replace the operations this replica has applied.
+    public List<SyncTextOp> getState() {
+        List<SyncTextOp> result = new ArrayList<>();
+        SyncTextOp run = null;
+        StringBuilder text = new StringBuilder();
+        Element last = null;
+        for (Element e = head.next; e != null; e = e.next) {
+            if (run == null || !continuesRun(last, e)) {
+                if (run != null) {
+                    run.setText(text.toString());
+                    text.setLength(0);
+                }
+                run = new SyncTextOp();
+                run.setType(SyncTextOp.TYPE_STATE);
+                run.setCounter(e.id.counter);
+                run.setSite(e.id.site);
+                if (e.parent != null) {
+                    run.setParentCounter(e.parent.counter);
+                    run.setParentSite(e.parent.site);
+                }
+                run.setOperation(e.operation);
+                run.setSource(e.source);
+                run.setPermission(e.permission);
+                run.setAttributeCounter(e.attributeId.counter);
+                run.setAttributeSite(e.attributeId.site);
+                run.setRemoved(e.removed);
+                result.add(run);
+            }
+            text.append(e.value);
+            last = e;
+        }
+        if (run != null) {
+            run.setText(text.toString());
+        }
+        return result;
+    }
+
+    //e was inserted right after last by the same operation, and has the same state
+    private static boolean continuesRun(Element last, Element e) {
+        return last.id.equals(e.parent) && e.id.counter == last.id.counter + 1 && e.id.site.equals(last.id.site)
+                && e.removed == last.removed && e.operation == last.operation && e.permission == last.permission
+                && Objects.equals(e.source, last.source) && e.attributeId.equals(last.attributeId);
+    }
+
+    //apply an operation of any replica. Returns false if it is waiting for other operations.
+    public boolean apply(SyncTextOp op) {
+        if (!integrate(op)) {
+            pending.add(op);
+            return false;
+        }
+        //retry held back operations until none of them becomes ready
+        boolean progress = true;
+        while (progress && !pending.isEmpty()) {
+            progress = false;
+            for (Iterator<SyncTextOp> iterator = pending.iterator(); iterator.hasNext(); ) {
+                if (integrate(iterator.next())) {
+                    iterator.remove();
+                    progress = true;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean integrate(SyncTextOp op) {
+        clock = Math.max(clock, lastCounter(op));
+        switch (op.getType()) {
+            case SyncTextOp.TYPE_INSERT:
+            case SyncTextOp.TYPE_STATE:
+                Element parent = head;
+                if (op.getParentSite() != null) {
+                    parent = elements.get(new Id(op.getParentCounter(), op.getParentSite()));
+                    if (parent == null) {
+                        return false;
+                    }
+                }
+                if (op.getType() == SyncTextOp.TYPE_STATE) {
+                    integrateState(op, parent);
+                } else if (!elements.containsKey(new Id(op.getCounter(), op.getSite()))) {
+                    integrateInsert(op, parent);
+                }
+                return true;
+            case SyncTextOp.TYPE_REMOVE:
+            case SyncTextOp.TYPE_MARK:
+                List<Element> targets = decode(op.getTargets());
+                if (targets == null) {
+                    return false;
+                }
+                Id id = new Id(op.getCounter(), op.getSite());
+                for (Element e : targets) {
+                    if (op.getType() == SyncTextOp.TYPE_REMOVE) {
+                        remove(e);
+                    } else if (e.attributeId.compareTo(id) < 0) {
+                        setAttributes(e, id, op.getOperation(), op.getSource());
+                    }
+                }
+                return true;
+        }
+        return true;    //unknown type, nothing to wait for
+    }
+
+    private void integrateInsert(SyncTextOp op, Element parent) {
+        String text = op.getText() == null ? "" : op.getText();
+        Element left = parent;
+        Element first = null;
+        for (int i = 0; i < text.length(); i++) {
+            Element e = new Element(new Id(op.getCounter() + i, op.getSite()), left == head ? null : left.id,
+                    text.charAt(i), op.getOperation(), op.getSource(), op.getPermission());
+            link(left, e);
+            if (first == null) {
+                first = e;
+            }
+            left = e;
+        }
+        //the characters of an operation are always adjacent, nothing can have been inserted after them yet
+        if (first != null) {
+            rope = rope.insert(offsetOf(first), text, op.getOperation(), op.getSource(), op.getPermission());
+        }
+    }
+
+    //restore characters from a snapshot. Characters this replica has are only brought up to date.
+    private void integrateState(SyncTextOp op, Element parent) {
+        String text = op.getText() == null ? "" : op.getText();
+        Id attributeId = new Id(op.getAttributeCounter(), op.getAttributeSite() == null ? "" : op.getAttributeSite());
+        Element left = parent;
+        for (int i = 0; i < text.length(); i++) {
+            Id id = new Id(op.getCounter() + i, op.getSite());
+            Element e = elements.get(id);
+            if (e == null) {
+                e = new Element(id, left == head ? null : left.id, text.charAt(i), op.getOperation(), op.getSource(),
+                        op.getPermission());
+                e.attributeId = attributeId;
+                e.removed = op.isRemoved();
+                link(left, e);
+                if (!e.removed) {
+                    rope = rope.insert(offsetOf(e), String.valueOf(e.value), e.operation, e.source, e.permission);
+                }
+            } else {
+                if (e.attributeId.compareTo(attributeId) < 0) {
+                    setAttributes(e, attributeId, op.getOperation(), op.getSource());
+                }
+                if (op.isRemoved()) {
+                    remove(e);
+                }
+            }
+            left = e;
+        }
+    }
+
+    //place e after left, ahead of concurrent inserts after the same character with larger ids, together with their
+    //descendants, which always have larger ids still
+    private void link(Element left, Element e) {
+        while (left.next != null && left.next.id.compareTo(e.id) > 0) {
+            left = left.next;
+        }
+        e.next = left.next;
+        left.next = e;
+        elements.put(e.id, e);
+
+        Block block;
+        int index;
+        if (left == head) {
+            if (blocks.isEmpty()) {
+                blocks.add(new Block());
+            }
+            block = blocks.get(0);
+            index = 0;
+        } else {
+            block = left.block;
+            index = block.elements.indexOf(left) + 1;
+        }
+        block.elements.add(index, e);
+        e.block = block;
+        if (!e.removed) {
+            block.visible++;
+            length++;
+        }
+        if (block.elements.size() >= 2 * BLOCK_SIZE) {
+            split(block);
+        }
+    }
+
+    private void split(Block block) {
+        Block second = new Block();
+        List<Element> moved = block.elements.subList(BLOCK_SIZE, block.elements.size());
+        for (Element e : moved) {
+            e.block = second;
+            if (!e.removed) {
+                second.visible++;
+            }
+        }
+        second.elements.addAll(moved);
+        moved.clear();
+        block.visible -= second.visible;
+        blocks.add(blocks.indexOf(block) + 1, second);
+    }
+
+    private SyncTextOp mark(List<Element> range, int operation, String source) {
+        if (range.isEmpty()) {
+            return null;
+        }
+        SyncTextOp op = newOp(SyncTextOp.TYPE_MARK);
+        op.setTargets(encode(range));
+        op.setOperation(operation);
+        op.setSource(source);
+        Id id = new Id(op.getCounter(), op.getSite());
+        for (Element e : range) {
+            setAttributes(e, id, operation, source);
+        }
+        return op;
+    }
+
+    private void setAttributes(Element e, Id id, int operation, String source) {
+        e.attributeId = id;
+        if (e.operation != operation || !Objects.equals(e.source, source)) {
+            e.operation = operation;
+            e.source = source;
+            if (!e.removed) {
+                int offset = offsetOf(e);
+                rope = rope.delete(offset, offset + 1).insert(offset, String.valueOf(e.value), operation, source, e.permission);
+            }
+        }
+    }
+
+    private void remove(Element e) {
+        if (!e.removed) {
+            int offset = offsetOf(e);
+            rope = rope.delete(offset, offset + 1);
+            e.removed = true;
+            e.block.visible--;
+            length--;
+        }
+    }
+
+    private SyncTextOp newOp(int type) {
+        SyncTextOp op = new SyncTextOp();
+        op.setType(type);
+        op.setCounter(++clock);
+        op.setSite(site);
+        return op;
+    }
+
+    private static int lastCounter(SyncTextOp op) {
+        int result = op.getCounter();
+        if ((op.getType() == SyncTextOp.TYPE_INSERT || op.getType() == SyncTextOp.TYPE_STATE)
+                && op.getText() != null && !op.getText().isEmpty()) {
+            result += op.getText().length() - 1;
+        }
+        return op.getType() == SyncTextOp.TYPE_STATE ? Math.max(result, op.getAttributeCounter()) : result;
+    }
+
+    private static void addIfNotNull(List<SyncTextOp> ops, SyncTextOp op) {
+        if (op != null) {
+            ops.add(op);
+        }
+    }
+
+    //visible characters before e
+    private int offsetOf(Element e) {
+        int offset = 0;
+        for (Block block : blocks) {
+            if (block == e.block) {
+                for (Element other : block.elements) {
+                    if (other == e) {
+                        break;
+                    } else if (!other.removed) {
+                        offset++;
+                    }
+                }
+                return offset;
+            }
+            offset += block.visible;
+        }
+        throw new IllegalStateException("character not indexed");
+    }
+
+    private Element visibleAt(int offset) {
+        if (offset < 0) {
+            return null;
+        }
+        for (Block block : blocks) {
+            if (offset >= block.visible) {
+                offset -= block.visible;
+                continue;
+            }
+            for (Element e : block.elements) {
+                if (!e.removed && offset-- == 0) {
+                    return e;
+                }
+            }
+        }
+        return null;
+    }
+
+    private List<Element> visibleRange(int start, int end) {
+        List<Element> result = new ArrayList<>();
+        for (Element e = visibleAt(Math.max(start, 0)); e != null && result.size() < end - Math.max(start, 0); e = e.next) {
+            if (!e.removed) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    //ids of consecutive characters of a site are sent as a single "counter,length,site" range
+    private static List<String> encode(List<Element> range) {
+        List<String> result = new ArrayList<>();
+        Id first = null;
+        int count = 0;
+        for (Element e : range) {
+            if (first != null && e.id.site.equals(first.site) && e.id.counter == first.counter + count) {
+                count++;
+                continue;
+            }
+            if (first != null) {
+                result.add(first.counter + "," + count + "," + first.site);
+            }
+            first = e.id;
+            count = 1;
+        }
+        if (first != null) {
+            result.add(first.counter + "," + count + "," + first.site);
+        }
+        return result;
+    }
+
+    //null if any of the characters isn't known yet
+    private List<Element> decode(List<String> ranges) {
+        List<Element> result = new ArrayList<>();
+        if (ranges == null) {
+            return result;
+        }
+        for (String range : ranges) {
+            String[] parts = range.split(",", 3);
+            int counter = Integer.parseInt(parts[0]);
+            int count = Integer.parseInt(parts[1]);
+            for (int i = 0; i < count; i++) {
+                Element e = elements.get(new Id(counter + i, parts[2]));
+                if (e == null) {
+                    return null;
+                }
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    private static final class Id implements Comparable<Id> {
+        final int counter;
+        final String site;
+
+        Id(int counter, String site) {
+            this.counter = counter;
+            this.site = site;
+        }
+
+        @Override
+        public int compareTo(Id other) {
+            if (counter != other.counter) {
+                return counter < other.counter ? -1 : 1;
+            }
+            return site.compareTo(other.site);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Id)) return false;
+            Id id = (Id) o;
+            return counter == id.counter && site.equals(id.site);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * counter + site.hashCode();
+        }
+    }
+
+    private static final class Element {
+        final Id id;
+        final Id parent;    //character it was inserted after, null for the start
+        final char value;
+        final int permission;
+        int operation;
+        String source;
+        Id attributeId;     //last operation that set the attributes
+        boolean removed;
+        Element next;
+        Block block;
+
+        Element(Id id, Id parent, char value, int operation, String source, int permission) {
+            this.id = id;
+            this.parent = parent;
+            this.value = value;
+            this.operation = operation;
+            this.source = source;
+            this.permission = permission;
+            this.attributeId = id;
+        }
+    }
+
+    //consecutive characters, and how many of them aren't removed
+    private static final class Block {
+        final List<Element> elements = new ArrayList<>();
+        int visible;
+    }
+}
@@ -0,0 +1,373 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import examples.baku.io.permissions.PermissionManager;
+import examples.baku.io.permissions.storage.ChildListener;
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.storage.DataException;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.DataRef;
+import examples.baku.io.permissions.storage.MutableDataNode;
+import examples.baku.io.permissions.storage.TransactionHandler;
+import examples.baku.io.permissions.storage.ValueListener;
+
+/**
+ * Collaborative text kept in a CrdtDocument, as an alternative to SyncText.
+ * Every replica appends its operations to a shared log and applies the log in whatever order it arrives. There is no
+ * shared current version to update, so local edits apply immediately and editors never contend for a transaction.
+ * Edits follow the same suggestion rules as SyncText: without write permission inserts and deletes are suggestions.
+ * Once enough operations are in the log, a replica replaces the ones it has applied with a snapshot of its document.
+ */
+public class CrdtText implements SharedText {
+
+    static final String KEY_OPS = "ops";
+    static final String KEY_STATE = "state";
+
+    //operations in the log before they are compacted into a snapshot
+    private static final int COMPACT_INTERVAL = 256;
+
+    private final CrdtDocument mDocument;
+    private final DataRef mOpsRef;
+    private final DataRef mSnapshotRef;
+    private final DataRef mOutputRef;
+
+    private SyncText.OnTextChangeListener mOnTextChangeListener;
+
+    private String mLocalSource;
+    private int mPermissions;
+    private int mVersion;   //changes applied by this replica
+
+    //log keys of the operations this replica has applied, while they are in the log
+    private final Set<String> mAppliedKeys = new HashSet<>();
+    //snapshot included in the document. A snapshot is only replaced by replicas that have applied it.
+    private String mSnapshotId;
+    private boolean mCompacting;
+    //newest log entry applied, and whether this replica made it
+    private String mNewestKey;
+    private boolean mNewestIsLocal;
+
+    public CrdtText(String local, int permissions, DataRef reference, DataRef output) {
+        if (reference == null) throw new IllegalArgumentException("null reference");
+
+        mLocalSource = local;
+        mPermissions = permissions;
+        mOpsRef = reference.child(KEY_OPS);
+        mSnapshotRef = reference.child(SyncText.KEY_SNAPSHOT);
+        mOutputRef = output;
+        //each instance is its own site, so a device can open the same text twice
+        mDocument = new CrdtDocument(UUID.randomUUID().toString());
+
+        link();
+    }
+
+    @Override
+    public synchronized SyncTextRope getDocument() {
+        return mDocument.toRope();
+    }
+
+    public int getPermissions() {
+        return mPermissions;
+    }
+
+    @Override
+    public void setPermissions(int mPermissions) {
+        this.mPermissions = mPermissions;
+        if (hasWrite()) {
+            acceptSuggestions(mLocalSource);
+        }
+    }
+
+    @Override
+    public void setOnTextChangeListener(SyncText.OnTextChangeListener onTextChangeListener) {
+        this.mOnTextChangeListener = onTextChangeListener;
+    }
+
+    //replace removed characters at offset with inserted, as reported by a TextWatcher
+    public void update(int offset, int removed, String inserted) {
+        publish(edit(offset, removed, inserted));
+    }
+
+    //operations apply to the current document. Remote operations are applied and shown on the thread that reports
+    //edits, so that is the version the edit was made against.
+    @Override
+    public int update(int base, int offset, int removed, String inserted) {
+        return publish(edit(offset, removed, inserted));
+    }
+
+    private synchronized List<SyncTextOp> edit(int offset, int removed, String inserted) {
+        List<SyncTextOp> ops = new ArrayList<>();
+        int end = Math.min(offset + removed, mDocument.length());
+        if (hasWrite()) {
+            add(ops, mDocument.remove(offset, end));
+            add(ops, mDocument.insert(offset, inserted, SyncTextDiff.EQUAL, mLocalSource, mPermissions));
+        } else {
+            //retracted inserts of the source are removed, the rest stays as a deletion suggestion before the insert
+            int length = mDocument.length();
+            ops.addAll(mDocument.suggestDelete(offset, end, mLocalSource));
+            int insertAt = end - (length - mDocument.length());
+            add(ops, mDocument.insert(insertAt, inserted, SyncTextDiff.INSERT, mLocalSource, mPermissions));
+        }
+        return ops;
+    }
+
+    //operations are published as they are made
+    @Override
+    public boolean hasQueuedEdits() {
+        return false;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void acceptSuggestions() {
+        acceptSuggestions(mLocalSource);
+    }
+
+    @Override
+    public void rejectSuggestions() {
+        rejectSuggestions(mLocalSource);
+    }
+
+    @Override
+    public void acceptSuggestions(String source) {
+        List<SyncTextOp> ops;
+        synchronized (this) {
+            ops = mDocument.acceptSuggestions(source);
+        }
+        publish(ops);
+    }
+
+    @Override
+    public void rejectSuggestions(String source) {
+        List<SyncTextOp> ops;
+        synchronized (this) {
+            ops = mDocument.rejectSuggestions(source);
+        }
+        publish(ops);
+    }
+
+    private static void add(List<SyncTextOp> ops, SyncTextOp op) {
+        if (op != null) {
+            ops.add(op);
+        }
+    }
+
+    private boolean hasWrite() {
+        return (mPermissions & PermissionManager.FLAG_WRITE) == PermissionManager.FLAG_WRITE;
+    }
+
+    //push local operations and return the version that includes them
+    private int publish(List<SyncTextOp> ops) {
+        if (ops.isEmpty()) {
+            return -1;
+        }
+        List<DataRef> refs = new ArrayList<>();
+        SyncTextRope document;
+        int version;
+        synchronized (this) {
+            for (int i = 0; i < ops.size(); i++) {
+                DataRef opRef = mOpsRef.push();
+                mAppliedKeys.add(opRef.getKey());
+                refs.add(opRef);
+            }
+            mVersion += ops.size();
+            document = mDocument.toRope();
+            version = mVersion;
+        }
+        for (int i = 0; i < ops.size(); i++) {
+            refs.get(i).setValue(ops.get(i));
+        }
+        notifyListeners(document, version);
+        compactIfDue();
+        return version;
+    }
+
+    private void notifyListeners(SyncTextRope document, int version) {
+        if (mOnTextChangeListener != null) {
+            mOnTextChangeListener.onTextChange(document.getFinalText(), document, version);
+        }
+    }
+
+    public void link() {
+        mSnapshotRef.addValueListener(mSnapshotListener);
+        mOpsRef.addChildListener(mOpListener);
+    }
+
+    @Override
+    public void unlink() {
+        mOpsRef.removeListener(mOpListener);
+        mSnapshotRef.removeListener(mSnapshotListener);
+    }
+
+    //replace the operations this replica has applied with its document, if it includes the latest snapshot
+    private void compactIfDue() {
+        final List<SyncTextOp> state;
+        final List<String> keys;
+        final String previous;
+        synchronized (this) {
+            if (mCompacting || mAppliedKeys.size() < COMPACT_INTERVAL || mDocument.getPendingCount() > 0) {
+                return;
+            }
+            mCompacting = true;
+            state = mDocument.getState();
+            keys = new ArrayList<>(mAppliedKeys);
+            previous = mSnapshotId;
+        }
+        final String id = UUID.randomUUID().toString();
+        final Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put(SyncText.KEY_ID, id);
+        snapshot.put(KEY_STATE, state);
+        mSnapshotRef.runTransaction(new TransactionHandler() {
+            @Override
+            public boolean doTransaction(MutableDataNode currentData) {
+                String latest = currentData.child(SyncText.KEY_ID).getValue(String.class);
+                if (latest == null ? previous == null : latest.equals(previous)) {
+                    currentData.setValue(snapshot);
+                }
+                //otherwise leave it, the value may only be the cached one. onComplete checks which snapshot won.
+                return true;
+            }
+
+            @Override
+            public void onComplete(DataError databaseError, boolean committed, DataNode dataSnapshot) {
+                boolean success = committed && dataSnapshot != null
+                        && id.equals(dataSnapshot.child(SyncText.KEY_ID).getValue(String.class));
+                if (success) {
+                    Map<String, Object> compacted = new HashMap<>();
+                    for (String key : keys) {
+                        compacted.put(key, null);
+                    }
+                    mOpsRef.updateChildren(compacted);
+                }
+                synchronized (CrdtText.this) {
+                    mCompacting = false;
+                }
+            }
+        });
+    }
+
+    private ValueListener mSnapshotListener = new ValueListener() {
+        @Override
+        public void onDataChange(DataNode dataSnapshot) {
+            String id = dataSnapshot.child(SyncText.KEY_ID).getValue(String.class);
+            if (id == null) {
+                return;
+            }
+            List<SyncTextOp> state = new ArrayList<>();
+            try {
+                for (DataNode child : dataSnapshot.child(KEY_STATE).getChildren()) {
+                    state.add(child.getValue(SyncTextOp.class));
+                }
+            } catch (DataException e) {
+                e.printStackTrace();
+                return;
+            }
+            SyncTextRope document;
+            int version;
+            synchronized (CrdtText.this) {
+                if (id.equals(mSnapshotId)) {
+                    return;
+                }
+                SyncTextRope previous = mDocument.toRope();
+                for (SyncTextOp op : state) {
+                    mDocument.apply(op);
+                }
+                mSnapshotId = id;
+                document = mDocument.toRope();
+                if (document == previous) {
+                    return; //e.g. the snapshot of this replica
+                }
+                version = ++mVersion;
+            }
+            notifyListeners(document, version);
+        }
+
+        @Override
+        public void onCancelled(DataError databaseError) {
+
+        }
+    };
+
+    private ChildListener mOpListener = new ChildListener() {
+        @Override
+        public void onChildAdded(DataNode dataSnapshot, String s) {
+            SyncTextOp op;
+            try {
+                op = dataSnapshot.getValue(SyncTextOp.class);
+            } catch (DataException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (op == null) {
+                return;
+            }
+            String key = dataSnapshot.getKey();
+            boolean local = mDocument.getSite().equals(op.getSite());
+            SyncTextRope document = null;
+            int version = 0;
+            String output = null;
+            synchronized (CrdtText.this) {
+                if (!local) {   //local operations were applied when they were made
+                    mAppliedKeys.add(key);
+                    int pending = mDocument.getPendingCount();
+                    boolean applied = mDocument.apply(op);
+                    mVersion += applied ? pending + 1 - mDocument.getPendingCount() : 0;
+                    if (applied) {
+                        document = mDocument.toRope();
+                        version = mVersion;
+                    }
+                }
+                if (mNewestKey == null || key.compareTo(mNewestKey) > 0) {
+                    mNewestKey = key;
+                    mNewestIsLocal = local;
+                }
+                //the replica that made the newest operation writes the output, each time it has merged another one
+                if (mNewestIsLocal && mDocument.getPendingCount() == 0) {
+                    output = mDocument.getFinalText();
+                }
+            }
+            if (document != null) {
+                notifyListeners(document, version);
+            }
+            if (output != null && mOutputRef != null) {
+                mOutputRef.setValue(output);
+            }
+            compactIfDue();
+        }
+
+        @Override
+        public void onChildChanged(DataNode dataSnapshot, String s) {
+
+        }
+
+        @Override
+        public void onChildRemoved(DataNode dataSnapshot) {
+            synchronized (CrdtText.this) {
+                mAppliedKeys.remove(dataSnapshot.getKey());
+            }
+        }
+
+        @Override
+        public void onChildMoved(DataNode dataSnapshot, String s) {
+
+        }
+
+        @Override
+        public void onCancelled(DataError databaseError) {
+
+        }
+    };
+}
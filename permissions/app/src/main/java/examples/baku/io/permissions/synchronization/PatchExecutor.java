@@ -0,0 +1,99 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import android.util.Log;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the work of every open document on one small pool of threads.
+ * Each document gets a Lane, which runs its tasks one at a time and in order, so a document never needs more than one
+ * thread and the number of threads doesn't depend on the number of documents.
+ */
+final class PatchExecutor {
+
+    private static final String TAG = PatchExecutor.class.getSimpleName();
+
+    private static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    //tasks a lane runs before letting other lanes have the thread
+    private static final int MAX_BATCH = 32;
+
+    private static final PatchExecutor sShared = new PatchExecutor(Executors.newFixedThreadPool(THREADS,
+            new ThreadFactoryBuilder().setNameFormat("sync-text-%d").setDaemon(true).build()));
+
+    private final ExecutorService mExecutor;
+
+    private PatchExecutor(ExecutorService executor) {
+        this.mExecutor = executor;
+    }
+
+    static PatchExecutor getShared() {
+        return sShared;
+    }
+
+    Lane newLane() {
+        return new Lane();
+    }
+
+    final class Lane implements Executor, Runnable {
+        //guarded by this
+        private final Queue<Runnable> mTasks = new ArrayDeque<>();
+        private boolean mScheduled;
+        private boolean mShutdown;
+
+        //tasks submitted after shutdown are dropped
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                if (mShutdown) {
+                    return;
+                }
+                mTasks.add(task);
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mExecutor.execute(this);
+        }
+
+        //drop waiting tasks and refuse new ones. A running task completes.
+        synchronized void shutdown() {
+            mShutdown = true;
+            mTasks.clear();
+        }
+
+        synchronized boolean isShutdown() {
+            return mShutdown;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_BATCH; i++) {
+                Runnable task;
+                synchronized (this) {
+                    task = mTasks.poll();
+                    if (task == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "sync task failed", e);
+                }
+            }
+            mExecutor.execute(this);    //more waiting, queue behind the other lanes
+        }
+    }
+}
@@ -0,0 +1,40 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+/**
+ * Text that several devices edit together, as shown and edited by PermissionedTextLayout.
+ * Implemented by SyncText and CrdtText.
+ */
+public interface SharedText {
+
+    //immutable snapshot of the current text runs
+    SyncTextRope getDocument();
+
+    void setPermissions(int permissions);
+
+    void setOnTextChangeListener(SyncText.OnTextChangeListener listener);
+
+    //replace removed characters at offset with inserted, as reported by a TextWatcher. Offsets refer to the version
+    //base that the listener was last given. Returns the version that includes the edit.
+    int update(int base, int offset, int removed, String inserted);
+
+    //true while local edits are on their way to the document, so it doesn't show them yet
+    boolean hasQueuedEdits();
+
+    //ship waiting local edits now
+    void flush();
+
+    //suggestions of the local source
+    void acceptSuggestions();
+
+    void rejectSuggestions();
+
+    void acceptSuggestions(String source);
+
+    void rejectSuggestions(String source);
+
+    void unlink();
+}
@@ -4,57 +4,85 @@
 
 package examples.baku.io.permissions.synchronization;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import com.google.firebase.database.ChildEventListener;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseException;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.GenericTypeIndicator;
-import com.google.firebase.database.MutableData;
-import com.google.firebase.database.Transaction;
-import com.google.firebase.database.ValueEventListener;
-
 import org.bitbucket.cowwoc.diffmatchpatch.DiffMatchPatch;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import examples.baku.io.permissions.PermissionManager;
+import examples.baku.io.permissions.storage.ChildListener;
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.storage.DataException;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.DataQuery;
+import examples.baku.io.permissions.storage.DataRef;
+import examples.baku.io.permissions.storage.MutableDataNode;
+import examples.baku.io.permissions.storage.TransactionHandler;
+import examples.baku.io.permissions.storage.ValueListener;
 
 /**
  * Created by phamilton on 6/24/16.
  */
-public class SyncText {
+public class SyncText implements SharedText {
 
     static final String KEY_CURRENT = "current";
     static final String KEY_TEXT = "value";
     static final String KEY_VERSION = "version";
     static final String KEY_PATCHES = "patches";
+    static final String KEY_PATCH_VERSION = "ver";
     static final String KEY_SUBSCRIBERS = "subscribers";
     static final String KEY_DIFFS = "diffs";
+    static final String KEY_EDIT = "edit";
+    static final String KEY_LOG = "log";
+    static final String KEY_SNAPSHOT = "snapshot";
+    static final String KEY_ID = "id";
 
-    private final GenericTypeIndicator<ArrayList<SyncTextDiff>> diffListType = new GenericTypeIndicator<ArrayList<SyncTextDiff>>() {
-    };
+    //how local edits are shipped, see update(String) and update(int, int, String)
+    public static final int SYNC_PATCHES = 0;   //diff-match-patch patches over the whole text
+    public static final int SYNC_OPS = 1;       //positional operations, transformed against concurrent edits
+
+    public static final long BATCH_DISABLED = -1;   //ship every local edit as it's made
 
-    private LinkedList<SyncTextDiff> diffs = new LinkedList<>();
+    //edits kept for transforming operations made against older versions
+    private static final int MAX_HISTORY = 64;
+    //versions between snapshots of the whole document
+    private static final int SNAPSHOT_INTERVAL = 64;
+
+    private volatile SyncTextRope document = SyncTextRope.EMPTY;
     private int ver;
-    private BlockingQueue<SyncTextPatch> mPatchQueue;
+    //change that produced document, null before the first one
+    private String mDocumentId;
+    //latest version read from the log, without local changes
+    private SyncTextRope mAccepted = SyncTextRope.EMPTY;
+    private int mAcceptedVersion = -1;
+    private String mAcceptedId;
+    private final Map<Integer, Change> mPendingChanges = new HashMap<>();
+    private DataQuery mLogQuery;
+    private DataQuery mPatchQuery;
+    //patches made from versions that weren't accepted here yet, in arrival order
+    private final LinkedList<SyncTextPatch> mWaitingPatches = new LinkedList<>();
+    private final int mSyncMode;
+    //accepted edits by version, without gaps. Guarded by itself.
+    private final LinkedList<Edit> mHistory = new LinkedList<>();
+    //runs everything that changes the document, one task at a time
+    private PatchExecutor.Lane mLane;
 
     private DiffMatchPatch diffMatchPatch = new DiffMatchPatch();
 
-    private DatabaseReference mSyncRef;
-    private DatabaseReference mPatchesRef;
-    private DatabaseReference mOutputRef;
-
-    private PatchConsumer mPatchConsumer;
+    private DataRef mSyncRef;
+    private DataRef mPatchesRef;
+    private DataRef mOutputRef;
 
     private OnTextChangeListener mOnTextChangeListener;
 
@@ -62,10 +90,41 @@ public class SyncText {
     private String mLocalSource;
     private int mPermissions;
 
+    private long mBatchWindow = BATCH_DISABLED;
+    private int mBatchSize = 1;
+    private Handler mBatchHandler;
+    //local edits waiting to be shipped, guarded by this. Either a patch from mPendingBase to mPendingText, or an
+    //operation without id.
+    private int mPendingEdits;
+    private SyncTextRope mPendingDocument;
+    private String mPendingBase;
+    private String mPendingText;
+    private int mPendingVer;
+    private SyncTextPatch mPendingOperation;
+
+    //optimistic updates, confined to the lane. The document is the accepted version with the local edits on top.
+    private volatile boolean mOptimistic;
+    private final LinkedList<LocalEdit> mLocalEdits = new LinkedList<>();
+    //change committing the first mCommitting local edits, null when none is in flight
+    private String mCommitId;
+    private int mCommitting;
+    //unlink() was called, the lane stops once the local edits are settled
+    private boolean mUnlinking;
+    //counts every change of the document shown to listeners, local edits refer to it
+    private int mLayerVersion;
+    private final LinkedList<Edit> mLayerHistory = new LinkedList<>();
+    //local edits handed to the lane but not applied yet
+    private final AtomicInteger mQueuedEdits = new AtomicInteger();
+
+
+    public SyncText(String local, int permissions, DataRef reference, DataRef output) {
+        this(local, permissions, reference, output, SYNC_PATCHES);
+    }
 
-    public SyncText(String local, int permissions, DatabaseReference reference, DatabaseReference output) {
+    public SyncText(String local, int permissions, DataRef reference, DataRef output, int syncMode) {
         if (reference == null) throw new IllegalArgumentException("null reference");
 
+        mSyncMode = syncMode;
         mLocalSource = local;
         mPermissions = permissions;
         mSyncRef = reference;
@@ -73,50 +132,95 @@ public class SyncText {
 
         mInstanceId = UUID.randomUUID().toString();
 
-        mPatchQueue = new LinkedBlockingQueue<>();
-        mPatchConsumer = new PatchConsumer(mPatchQueue);
-
-        new Thread(mPatchConsumer).start();
-
         link();
     }
 
 
-    public LinkedList<SyncTextDiff> getDiffs() {
-        return diffs;
+    //immutable snapshot of the current text runs
+    public SyncTextRope getDocument() {
+        return document;
     }
 
     public int getPermissions() {
         return mPermissions;
     }
 
+    public int getSyncMode() {
+        return mSyncMode;
+    }
+
     public void setPermissions(int mPermissions) {
+        flush();    //waiting edits were made with the previous permissions
         this.mPermissions = mPermissions;
         if ((mPermissions & PermissionManager.FLAG_WRITE) == PermissionManager.FLAG_WRITE) {
             acceptSuggestions(mLocalSource);
         }
     }
 
-    public static String getFinalText(LinkedList<SyncTextDiff> diffs) {
-        String result = "";
-        for (SyncTextDiff diff : diffs) {
-            if (diff.operation == SyncTextDiff.EQUAL) {
-                result += diff.getText();
-            }
+    public void setOnTextChangeListener(OnTextChangeListener onTextChangeListener) {
+        this.mOnTextChangeListener = onTextChangeListener;
+    }
+
+    //show local operations right away instead of after the server accepts them. Changes of other sources that are
+    //accepted first are applied under the local edits, and edits the server refuses are rolled back. Listeners then
+    //get versions of the shown document rather than accepted versions. Only for SYNC_OPS, and chosen before the first
+    //edit.
+    public void setOptimistic(boolean optimistic) {
+        if (optimistic && mSyncMode != SYNC_OPS) {
+            throw new IllegalStateException("optimistic updates need SYNC_OPS");
         }
-        return result;
+        mOptimistic = optimistic;
     }
 
-    public void setOnTextChangeListener(OnTextChangeListener onTextChangeListener) {
-        this.mOnTextChangeListener = onTextChangeListener;
+    public boolean isOptimistic() {
+        return mOptimistic;
+    }
+
+    //true while local edits are on their way to the document, so it doesn't show them yet
+    public boolean hasQueuedEdits() {
+        return mQueuedEdits.get() > 0;
+    }
+
+    //coalesce local edits into one patch or operation, shipped once no edit is made for the given window (in
+    //milliseconds) or once maxEdits are waiting. See BATCH_DISABLED and flush().
+    public void setBatchWindow(long millis, int maxEdits) {
+        mBatchWindow = millis;
+        mBatchSize = Math.max(maxEdits, 1);
+        if (millis < 0) {
+            flush();
+        } else if (mBatchHandler == null) {
+            mBatchHandler = new Handler(Looper.getMainLooper());
+        }
+    }
+
+    public long getBatchWindow() {
+        return mBatchWindow;
     }
 
     public int update(String newText, int ver) {
         if (mPatchesRef == null) {
             throw new RuntimeException("database connection hasn't been initialized");
         }
+        if (mBatchWindow < 0) {
+            return sendPatch(document.getText(), newText, ver);
+        }
+        synchronized (this) {
+            if (mPendingOperation != null || mPendingText != null && mPendingDocument != document) {
+                flush();    //a remote change was applied, later edits are made against it
+            }
+            if (mPendingText == null) {
+                mPendingDocument = document;
+                mPendingBase = document.getText();
+            }
+            mPendingText = newText;
+            mPendingVer = ver;
+            batchEdit();
+        }
+        return ver;
+    }
 
-        LinkedList<DiffMatchPatch.Patch> patches = diffMatchPatch.patchMake(fromDiffs(this.diffs), newText);
+    private int sendPatch(String base, String newText, int ver) {
+        LinkedList<DiffMatchPatch.Patch> patches = diffMatchPatch.patchMake(base, newText);
 
         if (patches.size() > 0) {
             String patchString = diffMatchPatch.patchToText(patches);
@@ -137,140 +241,590 @@ public class SyncText {
         return update(newText, ver + 1);
     }
 
-    private LinkedList<SyncTextDiff> toDiffs(String text) {
-        LinkedList<SyncTextDiff> diffs = new LinkedList<>();
-        diffs.add(new SyncTextDiff(text, SyncTextDiff.EQUAL, mLocalSource, mPermissions));
-        return diffs;
+    //ship a single edit of the document text, as reported by a TextWatcher: removed characters at offset are
+    //replaced with inserted. Offsets refer to version base, plus the local edits made since. The cost doesn't depend
+    //on the length of the document.
+    public int update(final int base, final int offset, final int removed, final String inserted) {
+        if (mPatchesRef == null) {
+            throw new RuntimeException("database connection hasn't been initialized");
+        }
+        if (removed == 0 && inserted.isEmpty()) {
+            return -1;
+        }
+        if (mOptimistic) {
+            if (mLane.isShutdown()) {
+                return -1;  //unlinked
+            }
+            final int permissions = mPermissions;
+            mQueuedEdits.incrementAndGet();
+            mLane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mQueuedEdits.decrementAndGet(); //before listeners hear of it
+                    applyLocal(base, offset, removed, inserted, permissions);
+                }
+            });
+            return base + 1;
+        }
+        if (mBatchWindow < 0) {
+            return sendOperation(newOperation(base, offset, removed, inserted));
+        }
+        synchronized (this) {
+            if (mPendingText != null || mPendingOperation != null
+                    && (mPendingOperation.getBase() != base || !merge(mPendingOperation, offset, removed, inserted))) {
+                flush();
+            }
+            if (mPendingOperation == null) {
+                mPendingOperation = newOperation(base, offset, removed, inserted);
+            }
+            batchEdit();
+        }
+        return base + 1;
+    }
+
+    private SyncTextPatch newOperation(int base, int offset, int removed, String inserted) {
+        SyncTextPatch patch = new SyncTextPatch();
+        patch.setVer(base + 1);
+        patch.setBase(base);
+        patch.setOffset(offset);
+        patch.setRemoved(removed);
+        patch.setInserted(inserted);
+        if (mLocalSource != null) {
+            patch.setSource(mLocalSource);
+        }
+        patch.setPermissions(mPermissions);
+        return patch;
+    }
+
+    private int sendOperation(SyncTextPatch patch) {
+        DataRef patchRef = mPatchesRef.push();
+        patch.setId(patchRef.getKey());
+        patchRef.setValue(patch);
+        return patch.getVer();
+    }
+
+    //fold an edit made right after the pending operation into it, when the two touch. Returns false otherwise.
+    static boolean merge(SyncTextPatch pending, int offset, int removed, String inserted) {
+        int start = pending.getOffset();
+        String text = pending.getInserted();
+        int end = start + text.length();    //the pending insert, in the text the edit was made against
+        if (offset > end || offset + removed < start) {
+            return false;
+        }
+        //characters next to the pending insert that the edit removes were in the original text
+        int before = Math.max(start - offset, 0);
+        int after = Math.max(offset + removed - end, 0);
+        String result = text.substring(0, Math.max(offset - start, 0)) + inserted
+                + text.substring(Math.min(offset + removed - start, text.length()));
+        pending.setOffset(start - before);
+        pending.setRemoved(pending.getRemoved() + before + after);
+        pending.setInserted(result);
+        return true;
+    }
+
+    //called with the lock held
+    private void batchEdit() {
+        if (++mPendingEdits >= mBatchSize) {
+            flush();
+        } else if (mBatchHandler != null) {
+            mBatchHandler.removeCallbacks(mFlushEdits);
+            mBatchHandler.postDelayed(mFlushEdits, Math.max(mBatchWindow, 0));
+        }
+    }
+
+    //ship waiting local edits now, e.g. when the editor loses focus
+    public synchronized void flush() {
+        if (mBatchHandler != null) {
+            mBatchHandler.removeCallbacks(mFlushEdits);
+        }
+        if (mPendingText != null) {
+            sendPatch(mPendingBase, mPendingText, mPendingVer);
+        } else if (mPendingOperation != null) {
+            sendOperation(mPendingOperation);
+        }
+        mPendingEdits = 0;
+        mPendingDocument = null;
+        mPendingBase = null;
+        mPendingText = null;
+        mPendingOperation = null;
     }
 
-    //TODO: this method currently waits for server confirmation to notify listeners. Ideally, it should notify immediately and revert on failure
-    private void updateCurrent(final int ver, final LinkedList<SyncTextDiff> diffs) {
-        final String text = getFinalText(diffs);
+    private final Runnable mFlushEdits = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private SyncTextRope toDocument(String text) {
+        return SyncTextRope.EMPTY.insert(0, text, SyncTextDiff.EQUAL, mLocalSource, mPermissions);
+    }
+
+    private void updateCurrent(final int ver, final SyncTextRope document) {
+        updateCurrent(ver, document, null);
+    }
+
+    //accept document as version ver, made from the current document. Listeners are notified once the version is
+    //committed. With optimistic updates, see setOptimistic(), the change is made from the accepted version instead
+    //and the document follows when the change arrives through the log.
+    private void updateCurrent(final int ver, final SyncTextRope document, final Edit edit) {
+        if (mOptimistic) {
+            commit(Change.between(ver, UUID.randomUUID().toString(), mAccepted, document, edit), mAcceptedId, document, null);
+            return;
+        }
+        final Change change = Change.between(ver, UUID.randomUUID().toString(), ver == 0 ? SyncTextRope.EMPTY : this.document, document, edit);
+        String baseId = mDocumentId;
         this.ver = ver;
-        this.diffs = diffs;
-        mSyncRef.child(KEY_CURRENT).removeEventListener(mCurrentValueListener);
-        mSyncRef.child(KEY_CURRENT).runTransaction(new Transaction.Handler() {
+        this.document = document;
+        mDocumentId = change.id;
+        recordEdit(ver, edit);
+        commit(change, baseId, document, new CommitCallback() {
             @Override
-            public Transaction.Result doTransaction(MutableData currentData) {
-                if (currentData.getValue() == null) {
-                    currentData.child(KEY_TEXT).setValue(text);
-                    currentData.child(KEY_VERSION).setValue(ver);
-                    currentData.child(KEY_DIFFS).setValue(diffs);
-
+            public void onComplete(DataError error, boolean success) {
+                if (success) {
+                    notifyListeners(document, ver);
                 } else {
-                    int latest = currentData.child(KEY_VERSION).getValue(Integer.class);
-                    if (latest > ver) {
-                        return Transaction.abort();
+                    clearHistory();   //the recorded edit wasn't accepted
+                    restoreAccepted();
+                }
+            }
+        });
+    }
+
+    private interface CommitCallback {
+        //called on the lane
+        void onComplete(DataError error, boolean success);
+    }
+
+    //write change as the version after baseId. Only the change is written: to current, where the transaction orders
+    //versions, and to the log that subscribers stream.
+    private void commit(final Change change, final String baseId, final SyncTextRope document, final CommitCallback callback) {
+        final int ver = change.version;
+        final Object[] previous = new Object[1];
+        mSyncRef.child(KEY_CURRENT).runTransaction(new TransactionHandler() {
+            @Override
+            public boolean doTransaction(MutableDataNode currentData) {
+                //the first attempt may run against a stale local cache, so a mismatch leaves the data as it is instead
+                //of aborting. The server then runs the handler again with its own value if the cache was off.
+                Object value = currentData.getValue();
+                if (value != null) {
+                    //the change only applies to the version it was made from
+                    Integer latest = currentData.child(KEY_VERSION).getValue(Integer.class);
+                    String latestId = currentData.child(KEY_ID).getValue(String.class);
+                    if (latest == null || latest != ver - 1 || !Objects.equals(latestId, baseId)) {
+                        return true;
                     }
-                    currentData.child(KEY_TEXT).setValue(text);
-                    currentData.child(KEY_VERSION).setValue(ver);
-                    currentData.child(KEY_DIFFS).setValue(diffs);
+                } else if (baseId != null) {
+                    return true;
                 }
-                return Transaction.success(currentData);
+                previous[0] = value;
+                currentData.setValue(change.toValue());
+                return true;
             }
 
             @Override
-            public void onComplete(DatabaseError databaseError, boolean success, DataSnapshot dataSnapshot) {
+            public void onComplete(final DataError databaseError, boolean committed, DataNode dataSnapshot) {
+                //committed unchanged data doesn't accept the change, only the one with its id does
+                final boolean success = committed && dataSnapshot != null
+                        && change.id.equals(dataSnapshot.child(KEY_ID).getValue(String.class));
                 if (success) {
-                    notifyListeners(diffs, ver);
+                    Map<String, Object> entries = new HashMap<>();
+                    entries.put(logKey(ver), change.toValue());
+                    if (previous[0] != null) {    //in case its writer didn't get to log it
+                        entries.put(logKey(ver - 1), previous[0]);
+                    }
+                    mSyncRef.child(KEY_LOG).updateChildren(entries);
+                    if (ver % SNAPSHOT_INTERVAL == 0) {
+                        updateSnapshot(ver, change.id, document);
+                    }
+                }
+                if (callback != null) {
+                    mLane.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onComplete(databaseError, success);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    //write the whole document, so subscribers can start from it, and drop the log entries it makes unnecessary.
+    //One interval of entries is kept for subscribers that read an older snapshot.
+    private void updateSnapshot(final int ver, String id, SyncTextRope document) {
+        final Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put(KEY_VERSION, ver);
+        snapshot.put(KEY_ID, id);
+        snapshot.put(KEY_TEXT, document.getFinalText());
+        snapshot.put(KEY_DIFFS, document.toDiffs());
+        mSyncRef.child(KEY_SNAPSHOT).runTransaction(new TransactionHandler() {
+            @Override
+            public boolean doTransaction(MutableDataNode currentData) {
+                Integer latest = currentData.child(KEY_VERSION).getValue(Integer.class);
+                if (latest != null && latest >= ver) {
+                    return false;
+                }
+                currentData.setValue(snapshot);
+                return true;
+            }
+
+            @Override
+            public void onComplete(DataError databaseError, boolean success, DataNode dataSnapshot) {
+                if (success && ver >= 2 * SNAPSHOT_INTERVAL) {
+                    Map<String, Object> compacted = new HashMap<>();
+                    for (int v = ver - 2 * SNAPSHOT_INTERVAL; v <= ver - SNAPSHOT_INTERVAL; v++) {
+                        compacted.put(logKey(v), null);
+                    }
+                    mSyncRef.child(KEY_LOG).updateChildren(compacted);
+                }
+                if (success && ver >= SNAPSHOT_INTERVAL) {
+                    //patches no subscriber took, made from versions nothing can transform against anymore
+                    mPatchesRef.orderByChild(KEY_PATCH_VERSION).endAt(ver - SNAPSHOT_INTERVAL)
+                            .addSingleValueListener(mStalePatchListener);
                 }
-                mSyncRef.child(KEY_CURRENT).addValueEventListener(mCurrentValueListener);
             }
         });
     }
 
-    private void notifyListeners(LinkedList<SyncTextDiff> diffs, int ver) {
-        String text = getFinalText(diffs);
+    private ValueListener mStalePatchListener = new ValueListener() {
+        @Override
+        public void onDataChange(DataNode dataSnapshot) {
+            Map<String, Object> stale = new HashMap<>();
+            for (DataNode child : dataSnapshot.getChildren()) {
+                stale.put(child.getKey(), null);
+            }
+            if (!stale.isEmpty()) {
+                mPatchesRef.updateChildren(stale);
+            }
+        }
+
+        @Override
+        public void onCancelled(DataError databaseError) {
+
+        }
+    };
+
+    static String logKey(int version) {
+        return String.valueOf(version);
+    }
+
+    private static SyncTextRope readDiffs(DataNode node) {
+        List<SyncTextDiff> result = new ArrayList<>();
+        for (DataNode child : node.getChildren()) {
+            result.add(child.getValue(SyncTextDiff.class));
+        }
+        return SyncTextRope.fromDiffs(result);
+    }
+
+    private void notifyListeners(SyncTextRope document, int ver) {
+        String text = document.getFinalText();
         if (mOnTextChangeListener != null) {
-            mOnTextChangeListener.onTextChange(text, diffs, ver);
+            mOnTextChangeListener.onTextChange(text, document, ver);
         }
-        if (mOutputRef != null) {  //pass successful change to output location
+        if (mOutputRef != null && !mOptimistic) {  //pass successful change to output location
             mOutputRef.setValue(text);
         }
     }
 
+    //optimistic documents show local edits, so the output gets the accepted text instead
+    private void writeAccepted() {
+        if (mOutputRef != null) {
+            mOutputRef.setValue(mAccepted.getFinalText());
+        }
+    }
+
     public void link() {
+        mLane = PatchExecutor.getShared().newLane();
 
         mSyncRef.child(KEY_SUBSCRIBERS).child(mInstanceId).setValue(0);
 
         mPatchesRef = mSyncRef.child(KEY_PATCHES);
         if (mOutputRef != null) {
-            mOutputRef.addListenerForSingleValueEvent(pullCurrentOutput);
+            mOutputRef.addSingleValueListener(pullCurrentOutput);
         } else {
-            mSyncRef.child(KEY_CURRENT).addListenerForSingleValueEvent(mInitValueListener);
+            mSyncRef.child(KEY_CURRENT).addSingleValueListener(mInitValueListener);
         }
     }
 
-    private ValueEventListener mInitValueListener = new ValueEventListener() {
+    private ValueListener mInitValueListener = new ValueListener() {
         @Override
-        public void onDataChange(DataSnapshot dataSnapshot) {
+        public void onDataChange(DataNode dataSnapshot) {
             if (dataSnapshot.exists()) {
-                if (dataSnapshot.hasChild(KEY_DIFFS)) {
-                    diffs = new LinkedList<SyncTextDiff>(dataSnapshot.child(KEY_DIFFS).getValue(diffListType));
-                }
-                ver = dataSnapshot.child(KEY_VERSION).getValue(Integer.class);
+                mSyncRef.child(KEY_SNAPSHOT).addSingleValueListener(mSnapshotListener);
             } else {  //version 0, empty string
-                updateCurrent(0, new LinkedList<>(diffs));
+                mLane.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        SyncTextRope initial = document;
+                        document = SyncTextRope.EMPTY;
+                        updateCurrent(0, initial);
+                        startLog();
+                    }
+                });
             }
-            notifyListeners(diffs, ver);
+        }
+
+        @Override
+        public void onCancelled(DataError databaseError) {
+
+        }
+    };
 
-//                mPatchesRef.orderByChild(KEY_VERSION).startAt(ver).addChildEventListener(mPatchListener);
-            mPatchesRef.addChildEventListener(mPatchListener);
-            mSyncRef.child(KEY_CURRENT).addValueEventListener(mCurrentValueListener);
+    private ValueListener mSnapshotListener = new ValueListener() {
+        @Override
+        public void onDataChange(final DataNode dataSnapshot) {
+            mLane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (dataSnapshot.exists()) {
+                        mAccepted = readDiffs(dataSnapshot.child(KEY_DIFFS));
+                        mAcceptedVersion = dataSnapshot.child(KEY_VERSION).getValue(Integer.class);
+                        mAcceptedId = dataSnapshot.child(KEY_ID).getValue(String.class);
+                    }
+                    restoreAccepted();
+                    startLog();
+                }
+            });
         }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(DataError databaseError) {
 
         }
     };
 
-    private ValueEventListener pullCurrentOutput = new ValueEventListener() {
+    //stream the changes after the accepted version, and the patches made from it or later. Older patches can't be
+    //applied: operations are only transformed against the versions in the log after the accepted one.
+    private void startLog() {
+        mLogQuery = mSyncRef.child(KEY_LOG).orderByChild(KEY_VERSION).startAt(mAcceptedVersion + 1);
+        mLogQuery.addChildListener(mLogListener);
+        mPatchQuery = mPatchesRef.orderByChild(KEY_PATCH_VERSION).startAt(mAcceptedVersion + 1);
+        mPatchQuery.addChildListener(mPatchListener);
+    }
+
+    private ValueListener pullCurrentOutput = new ValueListener() {
         @Override
-        public void onDataChange(DataSnapshot dataSnapshot) {
+        public void onDataChange(DataNode dataSnapshot) {
             if (dataSnapshot.exists()) {
                 String atOutput = dataSnapshot.getValue(String.class);
                 if (atOutput != null) {
-                    diffs = toDiffs(atOutput);
+                    document = toDocument(atOutput);
                 }
             }
-            mSyncRef.child(KEY_CURRENT).addListenerForSingleValueEvent(mInitValueListener);
+            mSyncRef.child(KEY_CURRENT).addSingleValueListener(mInitValueListener);
         }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(DataError databaseError) {
 
         }
     };
 
-    private ValueEventListener mCurrentValueListener = new ValueEventListener() {
+    private ChildListener mLogListener = new ChildListener() {
         @Override
-        public void onDataChange(DataSnapshot dataSnapshot) {
-            if (dataSnapshot.exists()) {
-                int version = dataSnapshot.child(KEY_VERSION).getValue(Integer.class);
-                if (dataSnapshot.hasChild(KEY_DIFFS)) {
-                    ver = version;
-                    diffs = new LinkedList<SyncTextDiff>(dataSnapshot.child(KEY_DIFFS).getValue(diffListType));
-                    notifyListeners(diffs, ver);
+        public void onChildAdded(DataNode dataSnapshot, String s) {
+            final Change change = Change.fromSnapshot(dataSnapshot);
+            mLane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (change.version <= mAcceptedVersion) {
+                        return;
+                    }
+                    //entries of different writers can arrive out of order
+                    mPendingChanges.put(change.version, change);
+                    for (Change next; (next = mPendingChanges.remove(mAcceptedVersion + 1)) != null; ) {
+                        accept(next);
+                    }
+                    processWaitingPatches();
                 }
-            }
+            });
+        }
+
+        @Override
+        public void onChildChanged(DataNode dataSnapshot, String s) {
+
+        }
+
+        @Override
+        public void onChildRemoved(DataNode dataSnapshot) {
+
         }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onChildMoved(DataNode dataSnapshot, String s) {
+
+        }
+
+        @Override
+        public void onCancelled(DataError databaseError) {
 
         }
     };
 
-    private ChildEventListener mPatchListener = new ChildEventListener() {
+    //apply the next accepted change. The document follows unless it already holds local changes after it.
+    private void accept(Change change) {
+        mAccepted = change.apply(mAccepted);
+        mAcceptedVersion = change.version;
+        mAcceptedId = change.id;
+        recordEdit(change.version, change.edit);
+        if (mOptimistic || !mLocalEdits.isEmpty()) {
+            rebaseLocal(change);
+            return;
+        }
+        if (change.version > ver || change.version == ver && !change.id.equals(mDocumentId)) {
+            restoreAccepted();
+        }
+    }
+
+    //drop local changes that weren't accepted
+    private void restoreAccepted() {
+        if (mAcceptedVersion < 0) {
+            return;
+        }
+        ver = mAcceptedVersion;
+        mDocumentId = mAcceptedId;
+        if (mOptimistic || !mLocalEdits.isEmpty()) {
+            rollBack();
+            writeAccepted();
+            return;
+        }
+        document = mAccepted;
+        notifyListeners(document, ver);
+    }
+
+    //document that changes are made from. Optimistic documents show local edits that aren't accepted yet.
+    private SyncTextRope baseDocument() {
+        return mOptimistic ? mAccepted : document;
+    }
+
+    //apply a local operation to the shown document, and commit it once the changes before it are accepted
+    private void applyLocal(int base, int offset, int removed, String inserted, int permissions) {
+        int start = offset;
+        int end = offset + removed;
+        if (base < mLayerVersion) {
+            //move the operation past the changes the editor hadn't shown yet. Its own edits are in its offsets.
+            if (mLayerHistory.isEmpty() || mLayerHistory.getFirst().version > base + 1) {
+                notifyListeners(document, mLayerVersion);   //too old to place, the editor catches up instead
+                return;
+            }
+            for (Edit edit : mLayerHistory) {
+                if (edit.version > base && !edit.source.equals(mInstanceId)) {
+                    start = edit.transform(start);
+                    end = Math.max(start, edit.transform(end));
+                }
+            }
+        }
+        start = Math.min(start, document.length());
+        end = Math.min(end, document.length());
+        LocalEdit local = new LocalEdit(start, end, inserted, permissions);
+        SyncTextRope result = local.apply(document, mLocalSource);
+        mLocalEdits.add(local);
+        updateLayer(result, new Edit(mLayerVersion + 1, null, mInstanceId, start, end - start, local.length));
+        commitLocal();
+    }
+
+    //commit the local edits as one change from the accepted version. One commit is in flight at a time, the edits
+    //made meanwhile go with the next one.
+    private void commitLocal() {
+        if (mCommitId != null || mLocalEdits.isEmpty() || mAcceptedVersion < 0) {
+            return;
+        }
+        final String id = UUID.randomUUID().toString();
+        final int base = mAcceptedVersion;
+        mCommitId = id;
+        mCommitting = mLocalEdits.size();
+        Change change = Change.between(base + 1, id, mAccepted, document, null);
+        //other subscribers transform operations against the edit
+        Edit edit = new Edit(base + 1, id, mLocalSource, change.start, change.removed, change.insertedLength());
+        change = new Change(change.version, id, edit, change.start, change.removed, change.runs);
+        commit(change, mAcceptedId, document, new CommitCallback() {
+            @Override
+            public void onComplete(DataError error, boolean success) {
+                if (success || !id.equals(mCommitId)) {
+                    return; //accepted through the log, or already settled
+                }
+                mCommitId = null;
+                if (error != null) {
+                    rollBack();
+                } else if (mAcceptedVersion > base) {
+                    commitLocal();  //made from an old version, commit again from the current one
+                }
+                //otherwise the change it lost to is on its way through the log, accepting it commits again
+            }
+        });
+    }
+
+    //keep the local edits on top of the next accepted change
+    private void rebaseLocal(Change change) {
+        ver = mAcceptedVersion;
+        mDocumentId = mAcceptedId;
+        writeAccepted();
+        if (change.id.equals(mCommitId)) {
+            for (int i = 0; i < mCommitting; i++) {
+                mLocalEdits.removeFirst();
+            }
+            mCommitId = null;
+            commitLocal();
+            finishUnlink();
+            return; //already shown
+        }
+        //move each local edit past the change, and the change past the local edit for the next one
+        Edit remote = new Edit(change.version, change.id, null, change.start, change.removed, change.insertedLength());
+        SyncTextRope result = mAccepted;
+        for (LocalEdit local : mLocalEdits) {
+            Edit applied = new Edit(0, null, null, local.start, local.end - local.start, local.length);
+            int start = Math.min(remote.transform(local.start), result.length());
+            int end = Math.min(Math.max(start, remote.transform(local.end)), result.length());
+            int remoteStart = applied.transformAfter(remote.offset);
+            int remoteEnd = Math.max(remoteStart, applied.transform(remote.offset + remote.removed));
+            remote = new Edit(remote.version, remote.id, null, remoteStart, remoteEnd - remoteStart, remote.inserted);
+            local.start = start;
+            local.end = end;
+            result = local.apply(result, mLocalSource);
+        }
+        showLayer(result);
+        commitLocal();
+    }
+
+    //drop the local edits and show the accepted document
+    private void rollBack() {
+        mLocalEdits.clear();
+        mCommitId = null;
+        showLayer(mAccepted);
+        finishUnlink();
+    }
+
+    //show a document that isn't made by a local edit
+    private void showLayer(SyncTextRope result) {
+        Change change = Change.between(0, null, document, result, null);
+        updateLayer(result, new Edit(mLayerVersion + 1, null, null, change.start, change.removed, change.insertedLength()));
+    }
+
+    private void updateLayer(SyncTextRope result, Edit edit) {
+        mLayerVersion++;
+        mLayerHistory.add(edit);
+        if (mLayerHistory.size() > MAX_HISTORY) {
+            mLayerHistory.removeFirst();
+        }
+        document = result;
+        notifyListeners(result, mLayerVersion);
+    }
+
+    private ChildListener mPatchListener = new ChildListener() {
         @Override
-        public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+        public void onChildAdded(DataNode dataSnapshot, String s) {
             try {
-                SyncTextPatch patch = dataSnapshot.getValue(SyncTextPatch.class);
+                final SyncTextPatch patch = dataSnapshot.getValue(SyncTextPatch.class);
                 if (patch != null) {
-                    mPatchQueue.add(patch);
+                    mLane.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            processPatch(patch);
+                        }
+                    });
                 }
-            } catch (DatabaseException e) {
+            } catch (DataException e) {
                 e.printStackTrace();
             }
 
@@ -278,186 +832,389 @@ public class SyncText {
         }
 
         @Override
-        public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+        public void onChildChanged(DataNode dataSnapshot, String s) {
 
         }
 
         @Override
-        public void onChildRemoved(DataSnapshot dataSnapshot) {
+        public void onChildRemoved(DataNode dataSnapshot) {
 
         }
 
         @Override
-        public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+        public void onChildMoved(DataNode dataSnapshot, String s) {
 
         }
 
         @Override
-        public void onCancelled(DatabaseError databaseError) {
+        public void onCancelled(DataError databaseError) {
 
         }
     };
 
+    //stop syncing. Local edits that reach the lane are still committed: the log is followed until they are accepted or
+    //rolled back, then the lane shuts down.
     public void unlink() {
-        mSyncRef.child(KEY_PATCHES).removeEventListener(mPatchListener);
+        flush();
+        if (mPatchQuery != null) {
+            mPatchQuery.removeListener(mPatchListener);
+        }
         mSyncRef.child(KEY_SUBSCRIBERS).child(mInstanceId).removeValue();
+        mLane.execute(new Runnable() {
+            @Override
+            public void run() {
+                mUnlinking = true;  //edits queued before now have been applied
+                finishUnlink();
+            }
+        });
     }
 
-    public interface OnTextChangeListener {
-        void onTextChange(String finalText, LinkedList<SyncTextDiff> diffs, int ver);
+    private void finishUnlink() {
+        if (!mUnlinking) {
+            return;
+        }
+        if (!mLocalEdits.isEmpty() && mAcceptedVersion >= 0) {
+            commitLocal();  //called again once they settle
+            return;
+        }
+        if (mLogQuery != null) {
+            mLogQuery.removeListener(mLogListener);
+        }
+        mLane.shutdown();   //the lane holds no thread
+        mQueuedEdits.set(0);
     }
 
-    private class PatchConsumer implements Runnable {
-        private final BlockingQueue<SyncTextPatch> queue;
+    //an accepted edit: the range [offset, offset + removed) of the previous version became inserted characters long
+    private static class Edit {
+        final int version;
+        final String id;    //of the operation
+        final String source;
+        final int offset;
+        final int removed;
+        final int inserted;
+
+        Edit(int version, String id, String source, int offset, int removed, int inserted) {
+            this.version = version;
+            this.id = id == null ? "" : id;
+            this.source = source == null ? "" : source;
+            this.offset = offset;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
 
-        PatchConsumer(BlockingQueue q) {
-            queue = q;
+        static Edit fromSnapshot(int version, DataNode snapshot) {
+            return new Edit(version,
+                    snapshot.child("id").getValue(String.class),
+                    snapshot.child("source").getValue(String.class),
+                    snapshot.child("offset").getValue(Integer.class),
+                    snapshot.child("removed").getValue(Integer.class),
+                    snapshot.child("inserted").getValue(Integer.class));
         }
 
-        public void run() {
-            try {
-                while (true) {
-                    consume(queue.take());
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        Map<String, Object> toValue() {
+            Map<String, Object> result = new HashMap<>();
+            result.put("id", id);
+            result.put("source", source);
+            result.put("offset", offset);
+            result.put("removed", removed);
+            result.put("inserted", inserted);
+            return result;
+        }
+
+        //position in the next version of a position in the previous one. Positions inside the edited range move past it.
+        int transform(int position) {
+            if (position <= offset) {
+                return position;
+            } else if (position >= offset + removed) {
+                return position + inserted - removed;
             }
+            return offset + inserted;
         }
 
-        void consume(SyncTextPatch patch) {
-            processPatch(patch);
+        //same as transform, except a position at the start of the edit also moves past it
+        int transformAfter(int position) {
+            return position == offset ? offset + inserted : transform(position);
+        }
+    }
+
+    //a local operation on top of the accepted document, after the local edits before it: [start, end) became length
+    //characters
+    private static class LocalEdit {
+        int start;
+        int end;
+        int length;
+        final String inserted;
+        final int permissions;
+
+        LocalEdit(int start, int end, String inserted, int permissions) {
+            this.start = start;
+            this.end = end;
+            this.inserted = inserted;
+            this.permissions = permissions;
+        }
+
+        SyncTextRope apply(SyncTextRope previous, String source) {
+            SyncTextRope result = applyOperation(previous, start, end, inserted, source, permissions);
+            length = result.length() - previous.length() + end - start;
+            return result;
         }
     }
 
-    private static String fromDiffs(List<SyncTextDiff> diffs) {
-        String result = "";
-        for (SyncTextDiff diff : diffs) {
-            result += diff.getText();
+    //an accepted version, as written to current and the log: the range [start, start + removed) of the previous
+    //document was replaced with runs
+    private static class Change {
+        final int version;
+        final String id;
+        final Edit edit;
+        final int start;
+        final int removed;
+        final List<SyncTextDiff> runs;
+
+        Change(int version, String id, Edit edit, int start, int removed, List<SyncTextDiff> runs) {
+            this.version = version;
+            this.id = id;
+            this.edit = edit;
+            this.start = start;
+            this.removed = removed;
+            this.runs = runs;
+        }
+
+        //smallest change from previous to next, found by trimming their common head and tail
+        static Change between(int version, String id, SyncTextRope previous, SyncTextRope next, Edit edit) {
+            int head = SyncTextRope.commonHead(previous, next, SyncTextRope.SAME_SOURCE);
+            int maxTail = Math.min(previous.length(), next.length()) - head;
+            int tail = SyncTextRope.commonTail(previous, next, maxTail, SyncTextRope.SAME_SOURCE);
+            SyncTextRope replacement = next.delete(next.length() - tail, next.length()).delete(0, head);
+            return new Change(version, id, edit, head, previous.length() - head - tail, replacement.toDiffs());
+        }
+
+        int insertedLength() {
+            int result = 0;
+            for (SyncTextDiff run : runs) {
+                result += run.length();
+            }
+            return result;
+        }
+
+        SyncTextRope apply(SyncTextRope document) {
+            SyncTextRope result = document.delete(start, Math.min(start + removed, document.length()));
+            int position = start;
+            for (SyncTextDiff run : runs) {
+                result = result.insert(position, run.text, run.operation, run.source, run.permission);
+                position += run.length();
+            }
+            return result;
+        }
+
+        static Change fromSnapshot(DataNode snapshot) {
+            int version = snapshot.child(KEY_VERSION).getValue(Integer.class);
+            DataNode edit = snapshot.child(KEY_EDIT);
+            List<SyncTextDiff> runs = new ArrayList<>();
+            for (DataNode child : snapshot.child("runs").getChildren()) {
+                runs.add(child.getValue(SyncTextDiff.class));
+            }
+            Integer start = snapshot.child("start").getValue(Integer.class);
+            Integer removed = snapshot.child("removed").getValue(Integer.class);
+            return new Change(version,
+                    snapshot.child(KEY_ID).getValue(String.class),
+                    edit.exists() ? Edit.fromSnapshot(version, edit) : null,
+                    start == null ? 0 : start,
+                    removed == null ? 0 : removed,
+                    runs);
+        }
+
+        Map<String, Object> toValue() {
+            Map<String, Object> result = new HashMap<>();
+            result.put(KEY_VERSION, version);
+            result.put(KEY_ID, id);
+            //lets other subscribers transform operations against this version
+            result.put(KEY_EDIT, edit == null ? null : edit.toValue());
+            result.put("start", start);
+            result.put("removed", removed);
+            result.put("runs", runs);
+            return result;
         }
-        return result;
+    }
+
+    public interface OnTextChangeListener {
+        void onTextChange(String finalText, SyncTextRope document, int ver);
     }
 
     boolean hasWrite(SyncTextPatch patch) {
         return (patch.getPermissions() & PermissionManager.FLAG_WRITE) == PermissionManager.FLAG_WRITE;
     }
 
+    //edit is null when the change of the version is unknown
+    private void recordEdit(int version, Edit edit) {
+        synchronized (mHistory) {
+            if (!mHistory.isEmpty() && version <= mHistory.getLast().version) {
+                return; //already recorded
+            }
+            if (edit == null || !mHistory.isEmpty() && version != mHistory.getLast().version + 1) {
+                mHistory.clear();   //older operations can't be transformed across this version
+            }
+            if (edit != null) {
+                mHistory.add(edit);
+                if (mHistory.size() > MAX_HISTORY) {
+                    mHistory.removeFirst();
+                }
+            }
+        }
+    }
+
+    private void clearHistory() {
+        synchronized (mHistory) {
+            mHistory.clear();
+        }
+    }
+
+    //apply an operation, transformed against the edits of other sources accepted after its base version
+    void processOperation(SyncTextPatch patch) {
+        SyncTextRope previous = baseDocument();
+        String source = patch.getSource();
+        String inserted = patch.getInserted() == null ? "" : patch.getInserted();
+        int start = patch.getOffset();
+        int end = start + patch.getRemoved();
+        if (patch.getBase() < this.ver) {
+            synchronized (mHistory) {
+                if (mHistory.isEmpty() || mHistory.getFirst().version > patch.getBase() + 1
+                        || mHistory.getLast().version < this.ver) {
+                    return; //concurrent edits aren't known
+                }
+                for (Edit edit : mHistory) {
+                    if (edit.id.equals(patch.getId())) {
+                        return; //already applied by another subscriber
+                    }
+                }
+                for (Edit edit : mHistory) {
+                    if (edit.version > patch.getBase() && !edit.source.equals(source)) {
+                        start = edit.transform(start);
+                        end = Math.max(start, edit.transform(end));
+                    }
+                }
+            }
+        }
+        start = Math.min(start, previous.length());
+        end = Math.min(end, previous.length());
+
+        SyncTextRope result = applyOperation(previous, start, end, inserted, source, patch.getPermissions());
+        int length = result.length() - previous.length() + end - start;
+        updateCurrent(this.ver + 1, result, new Edit(this.ver + 1, patch.getId(), source, start, end - start, length));
+    }
+
+    //replace [start, end) of previous with inserted, as text with write permission and as suggestions otherwise
+    private static SyncTextRope applyOperation(SyncTextRope previous, int start, int end, String inserted, String source, int permissions) {
+        if ((permissions & PermissionManager.FLAG_WRITE) == PermissionManager.FLAG_WRITE) {
+            return previous.delete(start, end).insert(start, inserted, SyncTextDiff.EQUAL, source, permissions);
+        }
+        //retracted inserts of the source are removed, the rest stays as a deletion suggestion before the insert
+        SyncTextRope result = previous.suggestDelete(start, end, source);
+        int insertAt = end - (previous.length() - result.length());
+        return result.insert(insertAt, inserted, SyncTextDiff.INSERT, source, permissions);
+    }
+
+    //version a patch or operation was made from
+    private static int baseOf(SyncTextPatch patch) {
+        return patch.getPatch() == null ? patch.getBase() : patch.getVer() - 1;
+    }
+
+    //hold a patch made from a version the log hasn't delivered yet
+    private void waitForBase(SyncTextPatch patch) {
+        mWaitingPatches.add(patch);
+        if (mWaitingPatches.size() > MAX_HISTORY) {
+            mWaitingPatches.removeFirst();
+        }
+    }
+
+    private void processWaitingPatches() {
+        List<SyncTextPatch> ready = new ArrayList<>();
+        for (Iterator<SyncTextPatch> iterator = mWaitingPatches.iterator(); iterator.hasNext(); ) {
+            SyncTextPatch patch = iterator.next();
+            if (baseOf(patch) <= ver) {
+                iterator.remove();
+                ready.add(patch);
+            }
+        }
+        for (SyncTextPatch patch : ready) {
+            processPatch(patch);
+        }
+    }
+
     //TODO: bug when duplicate letter patterns in the text. The diff algorithm doesn't take source into account.
-    //TODO: this method doesn't handle delete operations on diffs with different sources (e.g. deleting another sources suggestion), these operations are currently ignored
     void processPatch(SyncTextPatch patch) {
+        if (baseOf(patch) > this.ver) {
+            waitForBase(patch);
+            return;
+        }
+        if (patch.getPatch() == null) {
+            processOperation(patch);
+            return;
+        }
         int v = patch.getVer();
         if (this.ver >= v) {  //ignore patches for previous versions
             return;
         }
 
-        String previous = fromDiffs(this.diffs);
+        SyncTextRope previous = baseDocument();
         String source = patch.getSource();
         LinkedList<DiffMatchPatch.Patch> patches = new LinkedList<>(diffMatchPatch.patchFromText(patch.getPatch()));
-        Object[] patchResults = diffMatchPatch.patchApply(patches, previous);
+        Object[] patchResults = diffMatchPatch.patchApply(patches, previous.getText());
 
         if (patchResults == null) {   //return if failed to apply patch
             return;
         }
 
         String patched = (String) patchResults[0];
-        LinkedList<DiffMatchPatch.Diff> diffs = diffMatchPatch.diffMain(previous, patched);
-        LinkedList<SyncTextDiff> result = new LinkedList<>();
-        ListIterator<SyncTextDiff> previousIterator = new LinkedList<>(this.diffs).listIterator();
-        SyncTextDiff previousDiff = null;
-        SyncTextDiff last = null;
-
-        int length;
+        LinkedList<DiffMatchPatch.Diff> diffs = diffMatchPatch.diffMain(previous.getText(), patched);
+        SyncTextRope result = previous;
+        int position = 0;   //offset in result
 
         for (DiffMatchPatch.Diff current : diffs) {
-            int operation = current.operation.ordinal();
-            String value = current.text;
-
-            if (previousDiff == null && previousIterator.hasNext()) {
-                previousDiff = previousIterator.next();
-            }
-
-            switch (operation) {
+            int length = current.text.length();
+            switch (current.operation.ordinal()) {
                 case SyncTextDiff.EQUAL:
-                    length = value.length();
-                    while (previousDiff.length() <= length) {
-                        result.add(previousDiff);
-                        length -= previousDiff.length();
-                        if (previousIterator.hasNext()) {
-                            previousDiff = previousIterator.next();
-                        }
-                    }
-                    if (length > 0) {
-                        SyncTextDiff splitDiff = previousDiff.truncate(length);
-                        result.add(previousDiff);
-                        previousDiff = splitDiff;
-                    }
+                    position += length;
                     break;
                 case SyncTextDiff.INSERT:
-                    last = result.peekLast();
-                    if (last != null && last.compatible(operation, source) && !hasWrite(patch)) {
-                        last.text += value;
-                    } else if (hasWrite(patch)) {
-                        result.add(new SyncTextDiff(current.text, SyncTextDiff.EQUAL, source, patch.getPermissions()));
+                    if (hasWrite(patch)) {
+                        result = result.insert(position, current.text, SyncTextDiff.EQUAL, source, patch.getPermissions());
                     } else {
-                        result.add(new SyncTextDiff(current.text, operation, source, patch.getPermissions()));
+                        result = result.insert(position, current.text, SyncTextDiff.INSERT, source, patch.getPermissions());
                     }
+                    position += length;
                     break;
                 case SyncTextDiff.DELETE:
-                    length = value.length();
-                    while (previousDiff.length() <= length) {
-                        if (!hasWrite(patch) && (!source.equals(previousDiff.source) || previousDiff.operation != SyncTextDiff.INSERT)) {
-                            previousDiff.setSource(source);
-                            previousDiff.setOperation(operation);
-                            result.add(previousDiff);
-                        }
-                        length -= previousDiff.length();
-                        if (previousIterator.hasNext()) {
-                            previousDiff = previousIterator.next();
-                        }
-                    }
-                    if (length > 0) {
-                        if (!hasWrite(patch) && (!source.equals(previousDiff.source) || previousDiff.operation != SyncTextDiff.INSERT)) {
-                            SyncTextDiff splitDiff = previousDiff.truncate(length);
-                            previousDiff.setSource(source);
-                            previousDiff.setOperation(operation);
-                            result.add(previousDiff);
-                            previousDiff = splitDiff;
-                        } else {
-                            previousDiff.text = previousDiff.text.substring(0, length);
-                        }
+                    if (hasWrite(patch)) {
+                        result = result.delete(position, position + length);
+                    } else {
+                        //retracted inserts of the source are removed, the rest stays as a deletion suggestion
+                        int before = result.length();
+                        result = result.suggestDelete(position, position + length, source);
+                        position += length - (before - result.length());
                     }
                     break;
             }
         }
 
-        //merge compatible diffs
-        reduceDiffs(result);
-
-        updateCurrent(v, result);
+        updateCurrent(this.ver + 1, result);  //versions are consecutive in the log
 
     }
 
-    static void reduceDiffs(LinkedList<SyncTextDiff> diffs) {
-        if (!diffs.isEmpty()) {
-            Iterator<SyncTextDiff> iterator = diffs.iterator();
-            SyncTextDiff neighbor = iterator.next();
-            while (iterator.hasNext()) {
-                SyncTextDiff diff = iterator.next();
-                if (neighbor.compatible(diff)) {
-                    neighbor.text += diff.text;
-                    iterator.remove();
-                } else {
-                    neighbor = diff;
-                }
-            }
-        }
-    }
-
     public void acceptSuggestions() {
         acceptSuggestions(mLocalSource);
     }
 
-    public void acceptSuggestions(String source) {
-        LinkedList<SyncTextDiff> result = new LinkedList<>(diffs);
+    public void acceptSuggestions(final String source) {
+        mLane.execute(new Runnable() {
+            @Override
+            public void run() {
+                applyAcceptSuggestions(source);
+            }
+        });
+    }
+
+    private void applyAcceptSuggestions(String source) {
+        LinkedList<SyncTextDiff> result = baseDocument().toDiffs();
         boolean change = false;
         for (Iterator<SyncTextDiff> iterator = result.iterator(); iterator.hasNext(); ) {
             SyncTextDiff diff = iterator.next();
@@ -475,7 +1232,7 @@ public class SyncText {
             }
         }
         if (change) {
-            updateCurrent(ver + 1, result);
+            updateCurrent(ver + 1, SyncTextRope.fromDiffs(result));
         }
     }
 
@@ -483,8 +1240,17 @@ public class SyncText {
         rejectSuggestions(mLocalSource);
     }
 
-    public void rejectSuggestions(String source) {
-        LinkedList<SyncTextDiff> result = new LinkedList<>(diffs);
+    public void rejectSuggestions(final String source) {
+        mLane.execute(new Runnable() {
+            @Override
+            public void run() {
+                applyRejectSuggestions(source);
+            }
+        });
+    }
+
+    private void applyRejectSuggestions(String source) {
+        LinkedList<SyncTextDiff> result = baseDocument().toDiffs();
         for (Iterator<SyncTextDiff> iterator = result.iterator(); iterator.hasNext(); ) {
             SyncTextDiff diff = iterator.next();
             if (diff.source.equals(source)) {
@@ -498,7 +1264,7 @@ public class SyncText {
                 }
             }
         }
-        updateCurrent(ver + 1, result);
+        updateCurrent(ver + 1, SyncTextRope.fromDiffs(result));
     }
 
 }
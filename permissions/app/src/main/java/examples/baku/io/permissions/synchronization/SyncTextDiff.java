@@ -8,6 +8,11 @@ import org.bitbucket.cowwoc.diffmatchpatch.DiffMatchPatch;
 
 import java.util.Objects;
 
+import examples.baku.io.permissions.storage.DataCodec;
+import examples.baku.io.permissions.storage.DataCodecs;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.FieldCodec;
+
 /**
  * Created by phamilton on 8/5/16.
  */
@@ -111,5 +116,33 @@ public class SyncTextDiff {
         return result;
     }
 
+    public static final DataCodec<SyncTextDiff> CODEC = new FieldCodec<SyncTextDiff>() {
+        @Override
+        protected SyncTextDiff create() {
+            return new SyncTextDiff();
+        }
 
+        @Override
+        protected boolean decode(SyncTextDiff result, String key, DataNode child) {
+            switch (key) {
+                case "text":
+                    result.setText(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "operation":
+                    result.setOperation(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "source":
+                    result.setSource(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "permission":
+                    result.setPermission(DataCodecs.asInt(child.getValue()));
+                    return true;
+            }
+            return false;
+        }
+    };
+
+    static {
+        DataCodecs.register(SyncTextDiff.class, CODEC);
+    }
 }
@@ -0,0 +1,210 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import examples.baku.io.permissions.storage.DataCodec;
+import examples.baku.io.permissions.storage.DataCodecs;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.FieldCodec;
+
+/**
+ * Operation on a CrdtDocument. Ids are lamport timestamps (counter, site).
+ * Inserts add text after the parent character, giving its characters consecutive counters. Removes and marks target
+ * ranges of characters, encoded as "counter,length,site".
+ * States restore characters from a snapshot of the log: an insert that also carries the id of the last mark of its
+ * characters and whether they were removed.
+ */
+public class SyncTextOp {
+
+    public static final int TYPE_INSERT = 0;
+    public static final int TYPE_REMOVE = 1;
+    public static final int TYPE_MARK = 2;  //set the operation and source of characters
+    public static final int TYPE_STATE = 3;
+
+    private int type;
+    private int counter;
+    private String site;
+    private int parentCounter;
+    private String parentSite;  //null when inserted at the start
+    private String text;
+    private int operation;
+    private String source;
+    private int permission;
+    private List<String> targets;
+    private int attributeCounter;
+    private String attributeSite;
+    private boolean removed;
+
+    public SyncTextOp() {
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public void setCounter(int counter) {
+        this.counter = counter;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public void setSite(String site) {
+        this.site = site;
+    }
+
+    public int getParentCounter() {
+        return parentCounter;
+    }
+
+    public void setParentCounter(int parentCounter) {
+        this.parentCounter = parentCounter;
+    }
+
+    public String getParentSite() {
+        return parentSite;
+    }
+
+    public void setParentSite(String parentSite) {
+        this.parentSite = parentSite;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    public int getOperation() {
+        return operation;
+    }
+
+    public void setOperation(int operation) {
+        this.operation = operation;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public int getPermission() {
+        return permission;
+    }
+
+    public void setPermission(int permission) {
+        this.permission = permission;
+    }
+
+    public List<String> getTargets() {
+        return targets;
+    }
+
+    public void setTargets(List<String> targets) {
+        this.targets = targets;
+    }
+
+    public int getAttributeCounter() {
+        return attributeCounter;
+    }
+
+    public void setAttributeCounter(int attributeCounter) {
+        this.attributeCounter = attributeCounter;
+    }
+
+    public String getAttributeSite() {
+        return attributeSite;
+    }
+
+    public void setAttributeSite(String attributeSite) {
+        this.attributeSite = attributeSite;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(boolean removed) {
+        this.removed = removed;
+    }
+
+    public static final DataCodec<SyncTextOp> CODEC = new FieldCodec<SyncTextOp>() {
+        @Override
+        protected SyncTextOp create() {
+            return new SyncTextOp();
+        }
+
+        @Override
+        protected boolean decode(SyncTextOp result, String key, DataNode child) {
+            switch (key) {
+                case "type":
+                    result.setType(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "counter":
+                    result.setCounter(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "site":
+                    result.setSite(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "parentCounter":
+                    result.setParentCounter(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "parentSite":
+                    result.setParentSite(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "text":
+                    result.setText(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "operation":
+                    result.setOperation(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "source":
+                    result.setSource(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "permission":
+                    result.setPermission(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "targets":
+                    List<String> targets = new ArrayList<>();
+                    for (DataNode target : child.getChildren()) {
+                        targets.add(DataCodecs.asString(target.getValue()));
+                    }
+                    result.setTargets(targets);
+                    return true;
+                case "attributeCounter":
+                    result.setAttributeCounter(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "attributeSite":
+                    result.setAttributeSite(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "removed":
+                    result.setRemoved(DataCodecs.asBoolean(child.getValue()));
+                    return true;
+            }
+            return false;
+        }
+    };
+
+    static {
+        DataCodecs.register(SyncTextOp.class, CODEC);
+    }
+}
@@ -6,14 +6,26 @@ package examples.baku.io.permissions.synchronization;
 
 import java.util.concurrent.BlockingQueue;
 
+import examples.baku.io.permissions.storage.DataCodec;
+import examples.baku.io.permissions.storage.DataCodecs;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.FieldCodec;
+
 /**
  * Created by phamilton on 6/24/16.
+ * Carries either a diff-match-patch patch, or a single positional operation (see SyncText.SYNC_OPS) that replaces
+ * removed characters at offset with inserted, against version base.
  */
 public class SyncTextPatch {
+    private String id;
     private int ver;
     private String patch;
     private String source;
     private int permissions;
+    private int base;
+    private int offset;
+    private int removed;
+    private String inserted;
 
     public int getPermissions() {
         return permissions;
@@ -26,6 +38,14 @@ public class SyncTextPatch {
     public SyncTextPatch() {
     }
 
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
     public int getVer() {
         return ver;
     }
@@ -49,5 +69,82 @@ public class SyncTextPatch {
     public void setSource(String source) {
         this.source = source;
     }
-}
 
+    //last version seen by the source when the operation was made
+    public int getBase() {
+        return base;
+    }
+
+    public void setBase(int base) {
+        this.base = base;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(int removed) {
+        this.removed = removed;
+    }
+
+    public String getInserted() {
+        return inserted;
+    }
+
+    public void setInserted(String inserted) {
+        this.inserted = inserted;
+    }
+
+    public static final DataCodec<SyncTextPatch> CODEC = new FieldCodec<SyncTextPatch>() {
+        @Override
+        protected SyncTextPatch create() {
+            return new SyncTextPatch();
+        }
+
+        @Override
+        protected boolean decode(SyncTextPatch result, String key, DataNode child) {
+            switch (key) {
+                case "id":
+                    result.setId(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "ver":
+                    result.setVer(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "patch":
+                    result.setPatch(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "source":
+                    result.setSource(DataCodecs.asString(child.getValue()));
+                    return true;
+                case "permissions":
+                    result.setPermissions(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "base":
+                    result.setBase(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "offset":
+                    result.setOffset(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "removed":
+                    result.setRemoved(DataCodecs.asInt(child.getValue()));
+                    return true;
+                case "inserted":
+                    result.setInserted(DataCodecs.asString(child.getValue()));
+                    return true;
+            }
+            return false;
+        }
+    };
+
+    static {
+        DataCodecs.register(SyncTextPatch.class, CODEC);
+    }
+}
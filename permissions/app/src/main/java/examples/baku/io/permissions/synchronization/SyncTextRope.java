@@ -0,0 +1,400 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import com.google.common.collect.UnmodifiableIterator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Immutable rope of attributed text runs (text, operation, source and permission).
+ * Runs are kept in a randomized balanced tree indexed by character offset, so positional inserts and deletes cost
+ * O(log n) and return a new version that shares every untouched node with the previous one. Adjacent compatible
+ * runs are always merged. The full and final texts are materialized once per version.
+ * Offsets count the characters of every run, including deleted suggestions, like the text that patches are made against.
+ */
+public final class SyncTextRope implements Iterable<SyncTextDiff> {
+
+    public static final SyncTextRope EMPTY = new SyncTextRope(null);
+
+    private final Node root;
+    //materialized on first use, racing threads compute the same value
+    private volatile String text;
+    private volatile String finalText;
+
+    private SyncTextRope(Node root) {
+        this.root = root;
+    }
+
+    public static SyncTextRope fromDiffs(Iterable<SyncTextDiff> diffs) {
+        List<Node> runs = new ArrayList<>();
+        for (SyncTextDiff diff : diffs) {
+            if (diff.length() == 0) {
+                continue;
+            }
+            Node last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (last != null && last.compatible(diff.operation, diff.source)) {
+                runs.set(runs.size() - 1, last.leaf(last.text + diff.text));
+            } else {
+                runs.add(new Node(diff.text, diff.operation, diff.source, diff.permission, null, null));
+            }
+        }
+        return new SyncTextRope(build(runs, 0, runs.size()));
+    }
+
+    //balanced tree of runs[start, end)
+    private static Node build(List<Node> runs, int start, int end) {
+        if (start == end) {
+            return null;
+        }
+        int middle = (start + end) >>> 1;
+        return runs.get(middle).with(build(runs, start, middle), build(runs, middle + 1, end));
+    }
+
+    //number of characters, including deleted suggestions
+    public int length() {
+        return root == null ? 0 : root.length;
+    }
+
+    public int runCount() {
+        return root == null ? 0 : root.count;
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    //text of every run, the base of outgoing and incoming patches
+    public String getText() {
+        if (text == null) {
+            StringBuilder result = new StringBuilder(length());
+            for (Iterator<Node> iterator = nodes(); iterator.hasNext(); ) {
+                result.append(iterator.next().text);
+            }
+            text = result.toString();
+        }
+        return text;
+    }
+
+    //text without pending suggestions
+    public String getFinalText() {
+        if (finalText == null) {
+            StringBuilder result = new StringBuilder();
+            for (Iterator<Node> iterator = nodes(); iterator.hasNext(); ) {
+                Node node = iterator.next();
+                if (node.operation == SyncTextDiff.EQUAL) {
+                    result.append(node.text);
+                }
+            }
+            finalText = result.toString();
+        }
+        return finalText;
+    }
+
+    //copy of the run containing the character at offset, or null if the offset is out of bounds
+    public SyncTextDiff runAt(int offset) {
+        if (offset < 0) {
+            return null;
+        }
+        Node node = root;
+        while (node != null) {
+            int leftLength = length(node.left);
+            if (offset < leftLength) {
+                node = node.left;
+            } else if (offset < leftLength + node.text.length()) {
+                return node.toDiff();
+            } else {
+                offset -= leftLength + node.text.length();
+                node = node.right;
+            }
+        }
+        return null;
+    }
+
+    public SyncTextRope insert(int offset, String text, int operation, String source, int permission) {
+        if (text == null || text.isEmpty()) {
+            return this;
+        }
+        Node[] parts = split(root, offset);
+        Node run = new Node(text, operation, source, permission, null, null);
+        return new SyncTextRope(join(join(parts[0], run), parts[1]));
+    }
+
+    public SyncTextRope delete(int start, int end) {
+        if (start >= end) {
+            return this;
+        }
+        Node[] right = split(root, end);
+        Node[] left = split(right[0], start);
+        return new SyncTextRope(join(left[0], right[1]));
+    }
+
+    //suggest deleting [start, end) on behalf of source. Its own pending inserts are removed, other runs are marked
+    //as deleted by source.
+    public SyncTextRope suggestDelete(int start, int end, String source) {
+        if (start >= end) {
+            return this;
+        }
+        Node[] right = split(root, end);
+        Node[] left = split(right[0], start);
+        List<SyncTextDiff> marked = new ArrayList<>();
+        for (Iterator<Node> iterator = new NodeIterator(left[1], false); iterator.hasNext(); ) {
+            Node node = iterator.next();
+            if (node.operation != SyncTextDiff.INSERT || !Objects.equals(source, node.source)) {
+                marked.add(new SyncTextDiff(node.text, SyncTextDiff.DELETE, source, node.permission));
+            }
+        }
+        return new SyncTextRope(join(join(left[0], fromDiffs(marked).root), right[1]));
+    }
+
+    @Override
+    public Iterator<SyncTextDiff> iterator() {
+        return diffs(new NodeIterator(root, false));
+    }
+
+    //runs from last to first. Only the visited runs are copied.
+    public Iterator<SyncTextDiff> descendingIterator() {
+        return diffs(new NodeIterator(root, true));
+    }
+
+    private static Iterator<SyncTextDiff> diffs(final Iterator<Node> nodes) {
+        return new UnmodifiableIterator<SyncTextDiff>() {
+            @Override
+            public boolean hasNext() {
+                return nodes.hasNext();
+            }
+
+            @Override
+            public SyncTextDiff next() {
+                return nodes.next().toDiff();
+            }
+        };
+    }
+
+    //decides whether characters of two runs are the same if their text matches
+    public interface RunComparison {
+        boolean sameAttributes(SyncTextDiff a, SyncTextDiff b);
+    }
+
+    //same operation and source, see SyncTextDiff.compatible
+    public static final RunComparison SAME_SOURCE = new RunComparison() {
+        @Override
+        public boolean sameAttributes(SyncTextDiff a, SyncTextDiff b) {
+            return a.compatible(b);
+        }
+    };
+
+    public static final RunComparison SAME_OPERATION = new RunComparison() {
+        @Override
+        public boolean sameAttributes(SyncTextDiff a, SyncTextDiff b) {
+            return a.operation == b.operation;
+        }
+    };
+
+    //number of leading characters that a and b have in common
+    public static int commonHead(SyncTextRope a, SyncTextRope b, RunComparison comparison) {
+        return commonLength(a.iterator(), b.iterator(), false, Math.min(a.length(), b.length()), comparison);
+    }
+
+    //number of trailing characters that a and b have in common, up to max. Only the compared runs are visited.
+    public static int commonTail(SyncTextRope a, SyncTextRope b, int max, RunComparison comparison) {
+        return commonLength(a.descendingIterator(), b.descendingIterator(), true, max, comparison);
+    }
+
+    private static int commonLength(Iterator<SyncTextDiff> a, Iterator<SyncTextDiff> b, boolean reverse, int max,
+                                    RunComparison comparison) {
+        SyncTextDiff runA = null;
+        SyncTextDiff runB = null;
+        int offsetA = 0;
+        int offsetB = 0;
+        int result = 0;
+        while (result < max) {
+            if (runA == null || offsetA == runA.length()) {
+                if (!a.hasNext()) break;
+                runA = a.next();
+                offsetA = 0;
+                continue;
+            }
+            if (runB == null || offsetB == runB.length()) {
+                if (!b.hasNext()) break;
+                runB = b.next();
+                offsetB = 0;
+                continue;
+            }
+            char charA = runA.text.charAt(reverse ? runA.length() - 1 - offsetA : offsetA);
+            char charB = runB.text.charAt(reverse ? runB.length() - 1 - offsetB : offsetB);
+            if (charA != charB || !comparison.sameAttributes(runA, runB)) {
+                break;
+            }
+            offsetA++;
+            offsetB++;
+            result++;
+        }
+        return result;
+    }
+
+    //copies of the runs, in the form they are stored in
+    public LinkedList<SyncTextDiff> toDiffs() {
+        LinkedList<SyncTextDiff> result = new LinkedList<>();
+        for (SyncTextDiff diff : this) {
+            result.add(diff);
+        }
+        return result;
+    }
+
+    private Iterator<Node> nodes() {
+        return new NodeIterator(root, false);
+    }
+
+    private static int length(Node node) {
+        return node == null ? 0 : node.length;
+    }
+
+    private static int count(Node node) {
+        return node == null ? 0 : node.count;
+    }
+
+    //split into the characters before offset and the rest. A run spanning offset is cut in two.
+    private static Node[] split(Node node, int offset) {
+        if (node == null) {
+            return new Node[2];
+        }
+        int leftLength = length(node.left);
+        int runEnd = leftLength + node.text.length();
+        if (offset <= leftLength) {
+            Node[] parts = split(node.left, offset);
+            parts[1] = node.with(parts[1], node.right);
+            return parts;
+        } else if (offset >= runEnd) {
+            Node[] parts = split(node.right, offset - runEnd);
+            parts[0] = node.with(node.left, parts[0]);
+            return parts;
+        }
+        int cut = offset - leftLength;
+        Node head = node.leaf(node.text.substring(0, cut));
+        Node tail = node.leaf(node.text.substring(cut));
+        return new Node[]{merge(node.left, head), merge(tail, node.right)};
+    }
+
+    //concatenate, choosing roots with probability proportional to the number of runs on each side
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        }
+        if (ThreadLocalRandom.current().nextInt(a.count + b.count) < a.count) {
+            return a.with(a.left, merge(a.right, b));
+        }
+        return b.with(merge(a, b.left), b.right);
+    }
+
+    //concatenate, merging the runs that meet at the boundary when they are compatible
+    private static Node join(Node a, Node b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        Node last = last(a);
+        Node first = first(b);
+        if (!last.compatible(first.operation, first.source)) {
+            return merge(a, b);
+        }
+        Node head = split(a, a.length - last.text.length())[0];
+        Node tail = split(b, first.text.length())[1];
+        Node run = last.leaf(last.text + first.text);
+        return merge(merge(head, run), tail);
+    }
+
+    private static Node first(Node node) {
+        while (node.left != null) {
+            node = node.left;
+        }
+        return node;
+    }
+
+    private static Node last(Node node) {
+        while (node.right != null) {
+            node = node.right;
+        }
+        return node;
+    }
+
+    private static final class Node {
+        final String text;
+        final int operation;
+        final String source;
+        final int permission;
+        final Node left;
+        final Node right;
+        final int length;   //characters in subtree
+        final int count;    //runs in subtree
+
+        Node(String text, int operation, String source, int permission, Node left, Node right) {
+            this.text = text;
+            this.operation = operation;
+            this.source = source;
+            this.permission = permission;
+            this.left = left;
+            this.right = right;
+            this.length = SyncTextRope.length(left) + text.length() + SyncTextRope.length(right);
+            this.count = SyncTextRope.count(left) + 1 + SyncTextRope.count(right);
+        }
+
+        Node with(Node left, Node right) {
+            return left == this.left && right == this.right ? this : new Node(text, operation, source, permission, left, right);
+        }
+
+        //childless run with the same attributes
+        Node leaf(String text) {
+            return new Node(text, operation, source, permission, null, null);
+        }
+
+        //same rules as SyncTextDiff.compatible
+        boolean compatible(int operation, String source) {
+            return this.operation == operation && Objects.equals(this.source, source);
+        }
+
+        SyncTextDiff toDiff() {
+            return new SyncTextDiff(text, operation, source, permission);
+        }
+    }
+
+    //in order traversal, or reverse order
+    private static class NodeIterator extends UnmodifiableIterator<Node> {
+        private final Deque<Node> stack = new ArrayDeque<>();
+        private final boolean reverse;
+
+        NodeIterator(Node root, boolean reverse) {
+            this.reverse = reverse;
+            push(root);
+        }
+
+        private void push(Node node) {
+            while (node != null) {
+                stack.push(node);
+                node = reverse ? node.right : node.left;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public Node next() {
+            Node result = stack.pop();
+            push(reverse ? result.left : result.right);
+            return result;
+        }
+    }
+}
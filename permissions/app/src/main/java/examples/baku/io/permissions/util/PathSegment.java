@@ -0,0 +1,39 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.util;
+
+/**
+ * Path segment interned by PathSegments. There is one instance per segment while any tree holds it, so segments are
+ * compared by identity, and ordered by id.
+ */
+public final class PathSegment implements Comparable<PathSegment> {
+
+    private final String name;
+    private final int id;
+
+    PathSegment(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    //unique among the segments in use, assigned in interning order
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public int compareTo(PathSegment other) {
+        return id < other.id ? -1 : id == other.id ? 0 : 1;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
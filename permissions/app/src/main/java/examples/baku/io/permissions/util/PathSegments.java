@@ -0,0 +1,145 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Intern table for path segments ('a', 'b' and 'c' in "a/b/c").
+ * Segments are interned as PathSegments so that paths can be matched against trie nodes without substring
+ * allocation. The table holds segments weakly: trees keep the segments they use, and segments no tree uses any more,
+ * e.g. of deleted messages, are collected. Lookups are lock free, interning is synchronized.
+ */
+public final class PathSegments {
+
+    private static final Object lock = new Object();
+    private static final ReferenceQueue<PathSegment> collected = new ReferenceQueue<>();
+    private static volatile Entry[] table = new Entry[128];
+    private static int count;   //entries in table, including collected ones
+    private static int dead;    //collected entries still in table
+    private static int nextId;
+
+    private PathSegments() {
+    }
+
+    //return segment path[start, end), or null if it isn't interned
+    public static PathSegment find(CharSequence path, int start, int end) {
+        Entry[] table = PathSegments.table;
+        int hash = hash(path, start, end);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            Entry entry = table[slot];
+            if (entry == null) {
+                return null;
+            }
+            if (entry.hash == hash) {
+                PathSegment segment = entry.get();
+                if (segment != null && matches(segment.getName(), path, start, end)) {
+                    return segment;
+                }
+            }
+        }
+    }
+
+    public static PathSegment find(CharSequence segment) {
+        return find(segment, 0, segment.length());
+    }
+
+    public static PathSegment intern(String path, int start, int end) {
+        PathSegment segment = find(path, start, end);
+        if (segment != null) {
+            return segment;
+        }
+        synchronized (lock) {
+            segment = find(path, start, end);
+            if (segment != null) {
+                return segment;
+            }
+            while (collected.poll() != null) {
+                dead++;
+            }
+            Entry[] table = PathSegments.table;
+            if ((count + 1) * 2 > table.length || dead * 4 > count) {
+                table = rebuild(table);
+            }
+            segment = new PathSegment(path.substring(start, end), nextId++);
+            insert(table, new Entry(segment, hash(path, start, end)));
+            count++;
+            PathSegments.table = table;
+            return segment;
+        }
+    }
+
+    public static PathSegment intern(String segment) {
+        return intern(segment, 0, segment.length());
+    }
+
+    //copy the entries still in use into a new table, so readers of the current one are unaffected
+    private static Entry[] rebuild(Entry[] table) {
+        int live = 0;
+        for (Entry entry : table) {
+            if (entry != null && entry.get() != null) {
+                live++;
+            }
+        }
+        int size = table.length;
+        while ((live + 1) * 2 > size) {
+            size *= 2;
+        }
+        while (size > 128 && (live + 1) * 8 < size) {
+            size /= 2;
+        }
+        Entry[] result = new Entry[size];
+        count = 0;
+        for (Entry entry : table) {
+            if (entry != null && entry.get() != null) {
+                insert(result, entry);
+                count++;
+            }
+        }
+        dead = 0;
+        return result;
+    }
+
+    private static void insert(Entry[] table, Entry entry) {
+        int mask = table.length - 1;
+        int slot = entry.hash & mask;
+        while (table[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = entry;
+    }
+
+    //same as String.hashCode() for the region
+    private static int hash(CharSequence path, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + path.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String segment, CharSequence path, int start, int end) {
+        if (segment.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (segment.charAt(i) != path.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Entry extends WeakReference<PathSegment> {
+        final int hash;
+
+        Entry(PathSegment segment, int hash) {
+            super(segment, collected);
+            this.hash = hash;
+        }
+    }
+}
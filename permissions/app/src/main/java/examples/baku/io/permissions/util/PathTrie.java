@@ -0,0 +1,343 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Trie of '/' delimited paths, keyed by interned path segments.
+ * The root node represents the null path. Lookups walk the path in place and don't allocate.
+ */
+public class PathTrie<V> {
+
+    private final Node<V> root = new Node<>(null, null, null);
+    private int size;
+
+    public Node<V> getRoot() {
+        return root;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public V get(String path) {
+        Node<V> node = find(path);
+        return node == null ? null : node.value;
+    }
+
+    public boolean containsKey(String path) {
+        Node<V> node = find(path);
+        return node != null && node.value != null;
+    }
+
+    public V put(String path, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null value");
+        }
+        Node<V> node = root;
+        if (path != null) {
+            int length = path.length();
+            int start = 0;
+            while (start <= length) {
+                int end = path.indexOf('/', start);
+                if (end == -1) {
+                    end = length;
+                }
+                PathSegment segment = PathSegments.intern(path, start, end);
+                Node<V> child = node.child(segment);
+                if (child == null) {
+                    child = node.addChild(segment, end == length ? path : path.substring(0, end));
+                }
+                node = child;
+                start = end + 1;
+            }
+        }
+        V previous = node.value;
+        node.value = value;
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    public V remove(String path) {
+        Node<V> node = find(path);
+        if (node == null || node.value == null) {
+            return null;
+        }
+        V previous = node.value;
+        node.value = null;
+        size--;
+        prune(node);
+        return previous;
+    }
+
+    //remove the value at path and every value below it
+    public void removeAll(String path) {
+        Node<V> node = find(path);
+        if (node == null) {
+            return;
+        }
+        size -= node.count();
+        node.clear();
+        prune(node);
+    }
+
+    public void clear() {
+        root.clear();
+        size = 0;
+    }
+
+    //return the node at path, whether or not it holds a value
+    public Node<V> find(CharSequence path) {
+        Node<V> node = root;
+        if (path == null) {
+            return node;
+        }
+        int length = path.length();
+        int start = 0;
+        while (node != null && start <= length) {
+            int end = indexOf(path, '/', start);
+            PathSegment segment = PathSegments.find(path, start, end);
+            if (segment == null) {
+                return null;
+            }
+            node = node.child(segment);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    //return the deepest node holding a value at or above path
+    public Node<V> nearest(CharSequence path) {
+        Node<V> node = root;
+        Node<V> result = root.value != null ? root : null;
+        if (path == null) {
+            return result;
+        }
+        int length = path.length();
+        int start = 0;
+        while (start <= length) {
+            int end = indexOf(path, '/', start);
+            PathSegment segment = PathSegments.find(path, start, end);
+            if (segment == null || (node = node.child(segment)) == null) {
+                break;
+            }
+            if (node.value != null) {
+                result = node;
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+
+    public V nearestValue(CharSequence path) {
+        Node<V> node = nearest(path);
+        return node == null ? null : node.value;
+    }
+
+    public Set<String> keySet() {
+        Set<String> result = new HashSet<>();
+        for (Node<V> node : root.nodes()) {
+            result.add(node.path);
+        }
+        return result;
+    }
+
+    public Collection<V> values() {
+        List<V> result = new ArrayList<>();
+        for (Node<V> node : root.nodes()) {
+            result.add(node.value);
+        }
+        return result;
+    }
+
+    //drop empty leaf nodes on the way up
+    private void prune(Node<V> node) {
+        while (node.parent != null && node.value == null && node.childCount == 0) {
+            node.parent.removeChild(node.segment);
+            node = node.parent;
+        }
+    }
+
+    private static int indexOf(CharSequence path, char c, int start) {
+        int length = path.length();
+        for (int i = start; i < length; i++) {
+            if (path.charAt(i) == c) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    public static class Node<V> {
+        final Node<V> parent;
+        final PathSegment segment;
+        final String path;
+        V value;
+
+        //open addressing table of children, keyed by segment id. Children hold their segments, so ids stay unique.
+        private int[] childSegments;
+        private Node<V>[] children;
+        private int childCount;
+
+        Node(Node<V> parent, PathSegment segment, String path) {
+            this.parent = parent;
+            this.segment = segment;
+            this.path = path;
+        }
+
+        public Node<V> getParent() {
+            return parent;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getKey() {
+            return segment == null ? null : segment.getName();
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public int getChildCount() {
+            return childCount;
+        }
+
+        public Node<V> child(PathSegment segment) {
+            if (childCount == 0) {
+                return null;
+            }
+            int id = segment.getId();
+            int mask = childSegments.length - 1;
+            for (int slot = id & mask; ; slot = (slot + 1) & mask) {
+                Node<V> child = children[slot];
+                if (child == null || childSegments[slot] == id) {
+                    return child;
+                }
+            }
+        }
+
+        public Node<V> child(CharSequence key) {
+            PathSegment segment = PathSegments.find(key);
+            return segment == null ? null : child(segment);
+        }
+
+        public List<Node<V>> children() {
+            List<Node<V>> result = new ArrayList<>(childCount);
+            if (children != null) {
+                for (Node<V> child : children) {
+                    if (child != null) {
+                        result.add(child);
+                    }
+                }
+            }
+            return result;
+        }
+
+        //all nodes holding a value in this subtree, including this node
+        public List<Node<V>> nodes() {
+            List<Node<V>> result = new ArrayList<>();
+            List<Node<V>> stack = new ArrayList<>();
+            stack.add(this);
+            while (!stack.isEmpty()) {
+                Node<V> node = stack.remove(stack.size() - 1);
+                if (node.value != null) {
+                    result.add(node);
+                }
+                if (node.children != null) {
+                    for (Node<V> child : node.children) {
+                        if (child != null) {
+                            stack.add(child);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        int count() {
+            return nodes().size();
+        }
+
+        void clear() {
+            value = null;
+            childSegments = null;
+            children = null;
+            childCount = 0;
+        }
+
+        //generic arrays can't be created, children only ever holds Node<V>
+        @SuppressWarnings("unchecked")
+        Node<V> addChild(PathSegment segment, String path) {
+            if (children == null) {
+                childSegments = new int[4];
+                children = (Node<V>[]) new Node<?>[4];
+            } else if ((childCount + 1) * 2 > children.length) {
+                resize(children.length * 2);
+            }
+            Node<V> child = new Node<>(this, segment, path);
+            insert(child);
+            childCount++;
+            return child;
+        }
+
+        void removeChild(PathSegment segment) {
+            Node<V>[] previous = children;
+            childCount = 0;
+            children = null;
+            childSegments = null;
+            if (previous == null) {
+                return;
+            }
+            for (Node<V> child : previous) {
+                if (child != null && child.segment != segment) {
+                    if (children == null) {
+                        resize(previous.length);
+                    }
+                    insert(child);
+                    childCount++;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")    //see addChild
+        private void resize(int size) {
+            Node<V>[] previous = children;
+            childSegments = new int[size];
+            children = (Node<V>[]) new Node<?>[size];
+            if (previous != null) {
+                for (Node<V> child : previous) {
+                    if (child != null) {
+                        insert(child);
+                    }
+                }
+            }
+        }
+
+        private void insert(Node<V> child) {
+            int mask = children.length - 1;
+            int id = child.segment.getId();
+            int slot = id & mask;
+            while (children[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            children[slot] = child;
+            childSegments[slot] = id;
+        }
+    }
+}
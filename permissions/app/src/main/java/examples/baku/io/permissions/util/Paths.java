@@ -0,0 +1,36 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.util;
+
+import java.util.Set;
+
+/**
+ * Path helpers without Android dependencies, so that they can be used off-device.
+ */
+public final class Paths {
+
+    private Paths() {
+    }
+
+    //path keys are separated by '/' delimiter: a/b/c/...
+    public static String getNearestCommonAncestor(String path, Set<String> ancestors) {
+        if (path == null || ancestors.contains(path)) {
+            return path;
+        }
+        if (path.startsWith("/")) {
+            throw new IllegalArgumentException("Path can't start with /");
+        }
+        String subpath = path;
+        int index;
+        while ((index = subpath.lastIndexOf("/")) != -1) {
+            subpath = subpath.substring(0, index);
+            if (ancestors.contains(subpath)) {
+                return subpath;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,132 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashed timer wheel. Keys are hashed into slots by their deadline tick, so scheduling and cancelling are O(1) and
+ * advancing only visits the slots of the elapsed ticks. Deadlines more than one rotation away stay in their slot
+ * until a later pass. Not thread safe, the wheel doesn't keep time itself: callers advance it to the current time.
+ */
+public class TimerWheel<K> {
+
+    private final long mTickMillis;
+    private final Map<K, Long>[] mSlots;
+    private final int mMask;
+    //<key, slot> for cancellation
+    private final Map<K, Integer> mScheduled = new HashMap<>();
+    private long mLastTick = -1;
+
+    //generic arrays can't be created, the slots only ever hold Map<K, Long>
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMillis, int slotCount) {
+        if (tickMillis <= 0 || Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("tick must be positive and slot count a power of 2");
+        }
+        mTickMillis = tickMillis;
+        mSlots = (Map<K, Long>[]) new Map<?, ?>[slotCount];
+        mMask = slotCount - 1;
+    }
+
+    public long getTickMillis() {
+        return mTickMillis;
+    }
+
+    public int size() {
+        return mScheduled.size();
+    }
+
+    public boolean isEmpty() {
+        return mScheduled.isEmpty();
+    }
+
+    //schedule key to expire at deadline (in milliseconds), replacing any previous deadline
+    public void schedule(K key, long deadline) {
+        cancel(key);
+        //past deadlines go in the current slot, which the next advance visits first
+        int slot = (int) Math.max(deadline / mTickMillis, mLastTick) & mMask;
+        if (mSlots[slot] == null) {
+            mSlots[slot] = new HashMap<>();
+        }
+        mSlots[slot].put(key, deadline);
+        mScheduled.put(key, slot);
+    }
+
+    public boolean cancel(K key) {
+        Integer slot = mScheduled.remove(key);
+        if (slot == null) {
+            return false;
+        }
+        mSlots[slot].remove(key);
+        return true;
+    }
+
+    //earliest scheduled deadline, or Long.MAX_VALUE if the wheel is empty. Visits the slots of the next rotation in
+    //order, and only looks at every key if all deadlines are further away.
+    public long nextDeadline() {
+        long result = Long.MAX_VALUE;
+        if (mScheduled.isEmpty()) {
+            return result;
+        }
+        if (mLastTick >= 0) {
+            for (long t = mLastTick; t <= mLastTick + mMask; t++) {
+                Map<K, Long> slot = mSlots[(int) t & mMask];
+                if (slot == null) {
+                    continue;
+                }
+                for (long deadline : slot.values()) {
+                    //past deadlines are in the slot of the last tick
+                    if (Math.max(deadline / mTickMillis, mLastTick) == t) {
+                        result = Math.min(result, deadline);
+                    }
+                }
+                if (result != Long.MAX_VALUE) {
+                    return result;
+                }
+            }
+        }
+        for (Map<K, Long> slot : mSlots) {
+            if (slot != null) {
+                for (long deadline : slot.values()) {
+                    result = Math.min(result, deadline);
+                }
+            }
+        }
+        return result;
+    }
+
+    //remove and return the keys whose deadline is at or before now
+    public List<K> advance(long now) {
+        List<K> result = new ArrayList<>();
+        long tick = now / mTickMillis;
+        if (mScheduled.isEmpty()) {
+            mLastTick = tick;
+            return result;
+        }
+        //a full rotation visits every slot
+        long first = mLastTick < 0 || tick - mLastTick > mMask ? tick - mMask : mLastTick;
+        for (long t = first; t <= tick; t++) {
+            Map<K, Long> slot = mSlots[(int) t & mMask];
+            if (slot == null || slot.isEmpty()) {
+                continue;
+            }
+            for (Iterator<Map.Entry<K, Long>> iterator = slot.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<K, Long> entry = iterator.next();
+                if (entry.getValue() <= now) {
+                    iterator.remove();
+                    mScheduled.remove(entry.getKey());
+                    result.add(entry.getKey());
+                }
+            }
+        }
+        mLastTick = tick;
+        return result;
+    }
+}
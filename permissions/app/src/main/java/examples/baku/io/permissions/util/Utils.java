@@ -48,22 +48,7 @@ public class Utils {
 
     //path keys are separated by '/' delimiter: a/b/c/...
     public static String getNearestCommonAncestor(String path, Set<String> ancestors) {
-        if (path == null || ancestors.contains(path)) {
-            return path;
-        }
-        if (path.startsWith("/")) {
-            throw new IllegalArgumentException("Path can't start with /");
-        }
-        String subpath = path;
-        int index;
-        while ((index = subpath.lastIndexOf("/")) != -1) {
-            subpath = subpath.substring(0, index);
-            if (ancestors.contains(subpath)) {
-                return subpath;
-            }
-        }
-
-        return null;
+        return Paths.getNearestCommonAncestor(path, ancestors);
     }
 
     public static String getFileName(Context context, Uri uri) {
@@ -0,0 +1,110 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import examples.baku.io.permissions.storage.MemoryStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BlessingTest {
+
+    private PermissionManager mOwner;
+    private PermissionManager mTarget;
+
+    @Before
+    public void setUp() {
+        MemoryStore store = new MemoryStore();
+        mOwner = new PermissionManager(store.getReference(), "A");
+        mOwner.getRootBlessing().setPermissions("documents/A", PermissionManager.FLAG_ROOT);
+        mTarget = new PermissionManager(store.getReference(), "X");
+    }
+
+    @Test
+    public void editorWritesBelowRevokedPath() {
+        Blessing blessing = mOwner.bless("X")
+                .setPermissions("documents/A/a", PermissionManager.FLAG_READ)
+                .setPermissions("documents/A/a/old", PermissionManager.FLAG_WRITE);
+
+        blessing.edit()
+                .revokePermissions("documents/A/a")
+                .setPermissions("documents/A/a/b", PermissionManager.FLAG_WRITE)
+                .setPermissions("documents/A/a/c", PermissionManager.FLAG_WRITE)
+                .clearPermissions("documents/A/a/c")
+                .commit();
+
+        PersistentPermissionTree rules = mTarget.getPermissionSnapshot();
+        assertFalse(rules.contains("documents/A/a/old"));
+        assertFalse(rules.contains("documents/A/a/c"));
+        assertEquals(PermissionManager.FLAG_WRITE, mTarget.getPermissions("documents/A/a/b"));
+        assertEquals(0, mTarget.getPermissions("documents/A/a"));
+    }
+
+    @Test
+    public void editorAppliesNothingBeforeCommit() {
+        Blessing blessing = mOwner.bless("X").setPermissions("documents/A/a", PermissionManager.FLAG_READ);
+
+        Blessing.Editor editor = blessing.edit().revokePermissions("documents/A/a");
+        assertEquals(PermissionManager.FLAG_READ, mTarget.getPermissions("documents/A/a"));
+        assertSame(blessing, editor.commit());
+        assertEquals(0, mTarget.getPermissions("documents/A/a"));
+    }
+
+    @Test
+    public void retargetingReachesDescendants() {
+        Blessing child = mOwner.bless("X");
+        Blessing grandchild = child.bless("Y");
+        assertTrue(grandchild.isDescendantOf("X"));
+
+        child.setTarget("Z");
+        assertTrue(grandchild.isDescendantOf("Z"));
+        assertFalse(grandchild.isDescendantOf("X"));
+    }
+
+    @Test
+    public void childSyncAppliesRuleEvents() {
+        MemoryStore store = new MemoryStore();
+        PermissionManager owner = new PermissionManager(store.getReference(), "A", Blessing.SYNC_CHILDREN);
+        owner.getRootBlessing().setPermissions("documents/A", PermissionManager.FLAG_ROOT);
+        PermissionManager target = new PermissionManager(store.getReference(), "X", Blessing.SYNC_CHILDREN);
+
+        Blessing blessing = owner.bless("X")
+                .setPermissions("documents/A/a", PermissionManager.FLAG_READ)
+                .setPermissions("documents/A/a/b", PermissionManager.FLAG_WRITE);
+        assertEquals(PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE, target.getPermissions("documents/A/a/b"));
+
+        blessing.setPermissions("documents/A/a", PermissionManager.FLAG_WRITE);
+        assertEquals(PermissionManager.FLAG_WRITE, target.getPermissions("documents/A/a"));
+
+        blessing.revokePermissions("documents/A/a");
+        assertEquals(0, target.getPermissions("documents/A/a/b"));
+    }
+
+    @Test
+    public void cachedPermissionsFollowAncestorTrees() {
+        Blessing.PermissionTree root = new Blessing.PermissionTree();
+        Blessing.PermissionTree parent = new Blessing.PermissionTree();
+        Blessing.PermissionTree tree = new Blessing.PermissionTree();
+        parent.setParentTree(root);
+        tree.setParentTree(parent);
+        root.add("a").setPermissions(PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE);
+        root.invalidate();
+        parent.add("a").setPermissions(PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE);
+        parent.invalidate();
+        tree.add("a").setPermissions(PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE);
+        tree.invalidate();
+        assertEquals(PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE, tree.getPermissions("a/b"));
+
+        //only the root tree changes, nothing tells the others
+        root.get("a").setPermissions(PermissionManager.FLAG_READ);
+        root.invalidate();
+        assertEquals(PermissionManager.FLAG_READ, tree.getPermissions("a/b"));
+    }
+}
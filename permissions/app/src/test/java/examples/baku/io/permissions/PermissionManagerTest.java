@@ -0,0 +1,149 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.storage.MemoryStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionManagerTest {
+
+    private MemoryStore mStore;
+    private PermissionManager mOwnerA;
+    private PermissionManager mOwnerB;
+    private PermissionManager mTarget;
+
+    @Before
+    public void setUp() {
+        mStore = new MemoryStore();
+        mOwnerA = new PermissionManager(mStore.getReference(), "A");
+        mOwnerA.getRootBlessing().setPermissions("documents/A", PermissionManager.FLAG_ROOT);
+        mOwnerB = new PermissionManager(mStore.getReference(), "B");
+        mOwnerB.getRootBlessing().setPermissions("documents/A/x", PermissionManager.FLAG_ROOT);
+        mTarget = new PermissionManager(mStore.getReference(), "X");
+    }
+
+    @Test
+    public void blessedRulesAreMerged() {
+        mOwnerA.bless("X").setPermissions("documents/A", PermissionManager.FLAG_READ);
+        mOwnerB.bless("X").setPermissions("documents/A/x/y", PermissionManager.FLAG_WRITE);
+
+        assertEquals(PermissionManager.FLAG_READ, mTarget.getPermissions("documents/A/x"));
+        assertEquals(PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE,
+                mTarget.getPermissions("documents/A/x/y/z"));
+    }
+
+    @Test
+    public void revokingRuleKeepsDeeperRulesOfOtherBlessings() {
+        Blessing fromA = mOwnerA.bless("X").setPermissions("documents/A", PermissionManager.FLAG_READ);
+        mOwnerB.bless("X").setPermissions("documents/A/x/y", PermissionManager.FLAG_WRITE);
+
+        fromA.revokePermissions("documents/A");
+        assertEquals(0, mTarget.getPermissions("documents/A/x"));
+        assertEquals(PermissionManager.FLAG_WRITE, mTarget.getPermissions("documents/A/x/y"));
+        assertTrue(mTarget.getPermissionSnapshot().contains("documents/A/x/y"));
+    }
+
+    @Test
+    public void rulesWithoutPermissionsOutliveRulesBelowThem() {
+        PermissionManager ownerC = new PermissionManager(mStore.getReference(), "C");
+        ownerC.getRootBlessing().setPermissions("documents/A/x/y", PermissionManager.FLAG_ROOT);
+        ownerC.bless("X").setPermissions("documents/A/x/y", 0);
+        Blessing fromB = mOwnerB.bless("X").setPermissions("documents/A/x/y/z", PermissionManager.FLAG_WRITE);
+
+        fromB.revokePermissions("documents/A/x/y/z");
+        assertTrue(mTarget.getPermissionSnapshot().contains("documents/A/x/y"));
+        assertFalse(mTarget.getPermissionSnapshot().contains("documents/A/x/y/z"));
+    }
+
+    @Test
+    public void permissionListenerFollowsRemovedRule() {
+        Blessing fromA = mOwnerA.bless("X").setPermissions("documents/A", PermissionManager.FLAG_READ);
+        Blessing fromB = mOwnerB.bless("X").setPermissions("documents/A/x", PermissionManager.FLAG_WRITE);
+        final int[] last = {-1};
+        mTarget.addPermissionEventListener("documents/A/x/y", new PermissionManager.OnPermissionChangeListener() {
+            @Override
+            public void onPermissionChange(int current) {
+                last[0] = current;
+            }
+
+            @Override
+            public void onCancelled(DataError databaseError) {
+            }
+        });
+        assertEquals(PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE, last[0]);
+
+        fromB.revokePermissions("documents/A/x");
+        assertEquals(PermissionManager.FLAG_READ, last[0]);
+        fromA.revokePermissions("documents/A");
+        assertEquals(0, last[0]);
+    }
+
+    //ids of the requests a manager currently holds under path
+    private static Set<String> watchRequests(PermissionManager manager, String path) {
+        final Set<String> result = new HashSet<>();
+        manager.addOnRequestListener(path, new PermissionManager.OnRequestListener() {
+            @Override
+            public boolean onRequest(PermissionRequest request, Blessing blessing) {
+                result.add(request.getId());
+                return true;
+            }
+
+            @Override
+            public void onRequestRemoved(PermissionRequest request, Blessing blessing) {
+                result.remove(request.getId());
+            }
+        });
+        return result;
+    }
+
+    //MemoryStore resolves server timestamps to the current time, so old requests are written as plain data
+    private void putRequest(String id, long timeStamp, long timeout, Long expiresAt) {
+        Map<String, Object> request = new HashMap<>();
+        request.put("id", id);
+        request.put("path", "documents/A/x");
+        request.put("source", "X");
+        request.put("timeStamp", timeStamp);
+        if (timeout > 0) {
+            request.put("timeout", timeout);
+        }
+        if (expiresAt != null) {
+            request.put(PermissionRequest.KEY_EXPIRES_AT, expiresAt);
+        }
+        mStore.getReference(PermissionManager.KEY_REQUESTS + "/" + id).setValue(request);
+    }
+
+    @Test
+    public void requestsWithoutTimeoutDontAge() {
+        Set<String> requests = watchRequests(mOwnerA, "documents/A/x");
+        putRequest("old", 1000, 0, null);
+        putRequest("expired", 1000, 5000, 6000L);
+
+        assertTrue(requests.contains("old"));
+        assertFalse(requests.contains("expired"));
+    }
+
+    @Test
+    public void requestStaysLoadedWhenItGainsTimeout() {
+        Set<String> requests = watchRequests(mOwnerA, "documents/A/x");
+        PermissionRequest.Builder builder = mTarget.request("documents/A/x", "group");
+        String id = builder.udpate().getId();
+        assertTrue(requests.contains(id));
+
+        builder.setTimeout(60 * 1000).udpate();
+        assertTrue(requests.contains(id));
+    }
+}
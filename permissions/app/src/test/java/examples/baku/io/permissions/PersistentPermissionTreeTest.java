@@ -0,0 +1,119 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PersistentPermissionTreeTest {
+
+    private static final int READ = PermissionManager.FLAG_READ;
+    private static final int WRITE = PermissionManager.FLAG_WRITE;
+
+    @Test
+    public void permissionsAreInherited() {
+        PersistentPermissionTree tree = PersistentPermissionTree.EMPTY
+                .setPermissions("a", READ)
+                .setPermissions("a/b/c", WRITE);
+
+        assertEquals(READ, tree.getPermissions("a/b"));
+        assertEquals(READ | WRITE, tree.getPermissions("a/b/c/d"));
+        assertEquals(0, tree.getPermissions("x"));
+        assertEquals(WRITE, tree.getOwnPermissions("a/b/c"));
+        assertEquals("a/b/c", tree.getNearest("a/b/c/d"));
+        assertEquals(new HashSet<>(Arrays.asList(null, "a", "a/b", "a/b/c")), tree.keySet());
+    }
+
+    @Test
+    public void versionsAreImmutable() {
+        PersistentPermissionTree first = PersistentPermissionTree.EMPTY.setPermissions("a", READ);
+        PersistentPermissionTree second = first.setPermissions("a", WRITE);
+
+        assertEquals(READ, first.getPermissions("a"));
+        assertEquals(WRITE, second.getPermissions("a"));
+        assertSame(second, second.setPermissions("a", WRITE));
+        assertSame(second, second.remove("missing/path"));
+    }
+
+    @Test
+    public void removeDropsSubtreeAndPlaceholders() {
+        PersistentPermissionTree tree = PersistentPermissionTree.EMPTY
+                .setPermissions("a/b/c", WRITE)
+                .setPermissions("a/b/c/d", READ);
+
+        PersistentPermissionTree removed = tree.remove("a/b/c");
+        assertFalse(removed.contains("a/b/c/d"));
+        assertFalse(removed.contains("a"));  //only a placeholder for the removed rule
+        assertEquals(Collections.<String>singleton(null), removed.keySet());
+    }
+
+    @Test
+    public void removeRuleKeepsRulesBelow() {
+        PersistentPermissionTree tree = PersistentPermissionTree.EMPTY
+                .setPermissions("a", READ)
+                .setPermissions("a/b", WRITE)
+                .setPermissions("a/b/c", READ);
+
+        PersistentPermissionTree removed = tree.removeRule("a/b");
+        assertEquals(READ, removed.getPermissions("a/b"));
+        assertEquals(0, removed.getOwnPermissions("a/b"));
+        assertEquals(READ, removed.getPermissions("a/b/c"));
+        assertTrue(removed.contains("a/b/c"));
+
+        PersistentPermissionTree leaf = removed.removeRule("a/b/c");
+        assertFalse(leaf.contains("a/b"));
+        assertTrue(leaf.contains("a"));
+    }
+
+    @Test
+    public void mergeUnitesPermissions() {
+        PersistentPermissionTree a = PersistentPermissionTree.EMPTY.setPermissions("x", READ);
+        PersistentPermissionTree b = PersistentPermissionTree.EMPTY
+                .setPermissions("x", WRITE)
+                .setPermissions("y/z", READ);
+
+        PersistentPermissionTree merged = a.merge(b);
+        assertEquals(READ | WRITE, merged.getPermissions("x"));
+        assertEquals(READ, merged.getPermissions("y/z"));
+        assertSame(b, PersistentPermissionTree.EMPTY.merge(b));
+        assertSame(merged, merged.merge(a));
+    }
+
+    @Test
+    public void diffReportsRulesAndPermissionChanges() {
+        PersistentPermissionTree previous = PersistentPermissionTree.EMPTY
+                .setPermissions("a", READ)
+                .setPermissions("a/b", WRITE)
+                .setPermissions("c", READ);
+        PersistentPermissionTree current = previous
+                .remove("a/b")
+                .setPermissions("c", READ | WRITE)
+                .setPermissions("d", READ);
+
+        PersistentPermissionTree.Diff diff = PersistentPermissionTree.diff(previous, current);
+        assertEquals(Collections.singletonList("d"), diff.added);
+        assertEquals(Collections.singletonList("a/b"), diff.removed);
+        assertEquals(new HashSet<>(Arrays.asList("a/b", "c", "d")), new HashSet<>(diff.changed));
+        assertTrue(PersistentPermissionTree.diff(current, current).isEmpty());
+    }
+
+    @Test
+    public void diffFollowsInheritedChanges() {
+        PersistentPermissionTree previous = PersistentPermissionTree.EMPTY.setPermissions("a/b", READ);
+        PersistentPermissionTree current = previous.setPermissions("a", WRITE);
+
+        PersistentPermissionTree.Diff diff = PersistentPermissionTree.diff(previous, current);
+        assertTrue(diff.added.isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList("a", "a/b")), new HashSet<>(diff.changed));
+    }
+}
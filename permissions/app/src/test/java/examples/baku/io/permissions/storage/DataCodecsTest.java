@@ -0,0 +1,85 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import examples.baku.io.permissions.synchronization.SyncTextDiff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class DataCodecsTest {
+
+    private MemoryStore store;
+
+    @Before
+    public void setUp() {
+        store = new MemoryStore();
+    }
+
+    //MemoryStore delivers single value events before returning
+    private DataNode read(String path) {
+        final DataNode[] result = new DataNode[1];
+        store.getReference(path).addSingleValueListener(new ValueListener() {
+            @Override
+            public void onDataChange(DataNode dataSnapshot) {
+                result[0] = dataSnapshot;
+            }
+
+            @Override
+            public void onCancelled(DataError databaseError) {
+
+            }
+        });
+        return result[0];
+    }
+
+    private <T> void assertFails(String path, Class<T> type) {
+        try {
+            read(path).getValue(type);
+            fail("decoded " + path + " as " + type.getSimpleName());
+        } catch (DataException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void decodesFields() {
+        store.getReference("diff").setValue(new SyncTextDiff("abc", SyncTextDiff.INSERT, "a", 4));
+
+        SyncTextDiff diff = read("diff").getValue(SyncTextDiff.class);
+        assertEquals("abc", diff.getText());
+        assertEquals(SyncTextDiff.INSERT, diff.getOperation());
+        assertEquals("a", diff.getSource());
+        assertEquals(4, diff.getPermission());
+    }
+
+    @Test
+    public void wrongTypesFail() {
+        Map<String, Object> diff = new HashMap<>();
+        diff.put("operation", "insert");
+        store.getReference("diff").setValue(diff);
+        store.getReference("flag").setValue(1);
+
+        assertFails("diff", SyncTextDiff.class);
+        assertFails("flag", Boolean.class);
+        assertFails("diff/operation", Integer.class);
+    }
+
+    @Test
+    public void unknownFieldsFail() {
+        Map<String, Object> diff = new HashMap<>();
+        diff.put("text", "abc");
+        diff.put("style", "bold");
+        store.getReference("diff").setValue(diff);
+
+        assertFails("diff", SyncTextDiff.class);
+    }
+}
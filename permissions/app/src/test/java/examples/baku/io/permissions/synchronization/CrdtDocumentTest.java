@@ -0,0 +1,164 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CrdtDocumentTest {
+
+    private static String runs(CrdtDocument document) {
+        StringBuilder result = new StringBuilder();
+        for (SyncTextDiff diff : document.toRope()) {
+            result.append('[').append(diff.text).append('|').append(diff.operation).append('|').append(diff.source).append(']');
+        }
+        return result.toString();
+    }
+
+    //random edits of a replica, returning the operations it made
+    private static List<SyncTextOp> edit(CrdtDocument document, Random random, String source) {
+        int length = document.length();
+        List<SyncTextOp> ops = new ArrayList<>();
+        int kind = random.nextInt(5);
+        if (kind < 2 || length == 0) {
+            ops.add(document.insert(random.nextInt(length + 1), "ab".substring(0, 1 + random.nextInt(2)),
+                    kind == 0 ? SyncTextDiff.INSERT : SyncTextDiff.EQUAL, source, 0));
+        } else if (kind == 2) {
+            int start = random.nextInt(length);
+            SyncTextOp op = document.remove(start, Math.min(length, start + 1 + random.nextInt(3)));
+            if (op != null) {
+                ops.add(op);
+            }
+        } else if (kind == 3) {
+            int start = random.nextInt(length);
+            ops.addAll(document.suggestDelete(start, Math.min(length, start + 1 + random.nextInt(3)), source));
+        } else {
+            ops.addAll(random.nextBoolean() ? document.acceptSuggestions(source) : document.rejectSuggestions(source));
+        }
+        return ops;
+    }
+
+    @Test
+    public void replicasConvergeInAnyOrder() {
+        Random random = new Random(7);
+        for (int round = 0; round < 100; round++) {
+            CrdtDocument[] replicas = {new CrdtDocument("s0"), new CrdtDocument("s1"), new CrdtDocument("s2")};
+            List<SyncTextOp> log = new ArrayList<>();
+            List<List<SyncTextOp>> seen = new ArrayList<>();
+            for (int i = 0; i < replicas.length; i++) {
+                seen.add(new ArrayList<SyncTextOp>());
+            }
+            for (int step = 0; step < 60; step++) {
+                int i = random.nextInt(replicas.length);
+                for (SyncTextOp op : log) {
+                    if (!op.getSite().equals("s" + i) && random.nextInt(3) == 0 && !seen.get(i).contains(op)) {
+                        replicas[i].apply(op);
+                        seen.get(i).add(op);
+                    }
+                }
+                log.addAll(edit(replicas[i], random, "src" + i));
+            }
+            for (int i = 0; i < replicas.length; i++) {
+                List<SyncTextOp> rest = new ArrayList<>();
+                for (SyncTextOp op : log) {
+                    if (!op.getSite().equals("s" + i) && !seen.get(i).contains(op)) {
+                        rest.add(op);
+                    }
+                }
+                Collections.shuffle(rest, random);
+                for (SyncTextOp op : rest) {
+                    replicas[i].apply(op);
+                }
+                assertEquals(0, replicas[i].getPendingCount());
+            }
+            assertEquals(runs(replicas[0]), runs(replicas[1]));
+            assertEquals(runs(replicas[0]), runs(replicas[2]));
+        }
+    }
+
+    @Test
+    public void stateReplacesAppliedOperations() {
+        Random random = new Random(11);
+        for (int round = 0; round < 50; round++) {
+            CrdtDocument a = new CrdtDocument("a");
+            CrdtDocument b = new CrdtDocument("b");
+            CrdtDocument lagging = new CrdtDocument("c");
+            List<SyncTextOp> fromA = new ArrayList<>();
+            List<SyncTextOp> fromB = new ArrayList<>();
+            for (int step = 0; step < 40; step++) {
+                fromA.addAll(edit(a, random, "a"));
+                fromB.addAll(edit(b, random, "b"));
+            }
+            for (SyncTextOp op : fromB) {
+                a.apply(op);
+            }
+            //a snapshot of a replaces the log, b's later edits are still in it
+            List<SyncTextOp> state = a.getState();
+            List<SyncTextOp> later = new ArrayList<>();
+            for (int step = 0; step < 10; step++) {
+                later.addAll(edit(b, random, "b"));
+            }
+            for (SyncTextOp op : fromA) {
+                b.apply(op);
+            }
+            for (SyncTextOp op : later) {
+                a.apply(op);
+            }
+
+            CrdtDocument joined = new CrdtDocument("d");
+            for (SyncTextOp op : state) {
+                joined.apply(op);
+            }
+            for (SyncTextOp op : later) {
+                joined.apply(op);
+            }
+            //a replica that saw part of the log before it was compacted
+            for (SyncTextOp op : fromA.subList(0, fromA.size() / 2)) {
+                lagging.apply(op);
+            }
+            for (SyncTextOp op : later) {
+                lagging.apply(op);
+            }
+            for (SyncTextOp op : state) {
+                lagging.apply(op);
+            }
+
+            assertEquals(runs(a), runs(b));
+            assertEquals(runs(a), runs(joined));
+            assertEquals(runs(a), runs(lagging));
+            assertEquals(a.length(), joined.length());
+            assertEquals(0, joined.getPendingCount() + lagging.getPendingCount());
+        }
+    }
+
+    @Test
+    public void offsetsFollowLongDocuments() {
+        Random random = new Random(3);
+        CrdtDocument document = new CrdtDocument("a");
+        StringBuilder expected = new StringBuilder();
+        for (int step = 0; step < 3000; step++) {
+            int length = expected.length();
+            if (length > 0 && random.nextInt(3) == 0) {
+                int start = random.nextInt(length);
+                int end = Math.min(length, start + 1 + random.nextInt(4));
+                document.remove(start, end);
+                expected.delete(start, end);
+            } else {
+                int offset = random.nextInt(length + 1);
+                String text = Integer.toString(step);
+                document.insert(offset, text, SyncTextDiff.EQUAL, "a", 0);
+                expected.insert(offset, text);
+            }
+        }
+        assertEquals(expected.toString(), document.toRope().getText());
+        assertEquals(expected.length(), document.length());
+    }
+}
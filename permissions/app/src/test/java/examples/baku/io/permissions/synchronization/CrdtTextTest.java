@@ -0,0 +1,87 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import examples.baku.io.permissions.PermissionManager;
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.DataRef;
+import examples.baku.io.permissions.storage.MemoryStore;
+import examples.baku.io.permissions.storage.ValueListener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CrdtTextTest {
+
+    private static final int EDIT = PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE;
+
+    private MemoryStore store;
+
+    @Before
+    public void setUp() {
+        store = new MemoryStore();
+    }
+
+    //MemoryStore delivers single value events before returning
+    private static DataNode read(DataRef ref) {
+        final DataNode[] result = new DataNode[1];
+        ref.addSingleValueListener(new ValueListener() {
+            @Override
+            public void onDataChange(DataNode dataSnapshot) {
+                result[0] = dataSnapshot;
+            }
+
+            @Override
+            public void onCancelled(DataError databaseError) {
+
+            }
+        });
+        return result[0];
+    }
+
+    private static String text(SharedText text) {
+        return text.getDocument().getFinalText();
+    }
+
+    @Test
+    public void outputFollowsMergedText() {
+        DataRef output = store.getReference("output");
+        CrdtText a = new CrdtText("a", EDIT, store.getReference("text"), output);
+        CrdtText b = new CrdtText("b", EDIT, store.getReference("text"), output);
+        a.update(0, 0, 0, "world");
+        b.update(0, 0, 0, "hello ");
+        a.update(0, 11, 0, "!");
+
+        assertEquals("hello world!", text(b));
+        assertEquals(text(b), read(output).getValue(String.class));
+    }
+
+    @Test
+    public void logIsCompactedIntoSnapshot() {
+        CrdtText a = new CrdtText("a", EDIT, store.getReference("text"), null);
+        CrdtText b = new CrdtText("b", EDIT, store.getReference("text"), null);
+        for (int i = 0; i < 600; i++) {
+            (i % 2 == 0 ? a : b).update(0, 0, 0, String.valueOf((char) ('a' + i % 26)));
+        }
+        b.update(0, 0, 3, "");
+
+        int logged = 0;
+        for (DataNode ignored : read(store.getReference("text/" + CrdtText.KEY_OPS)).getChildren()) {
+            logged++;
+        }
+        assertTrue(logged < 300);
+        assertEquals(597, text(a).length());
+        assertEquals(text(a), text(b));
+
+        CrdtText c = new CrdtText("c", EDIT, store.getReference("text"), null);
+        assertEquals(text(a), text(c));
+        c.update(0, 5, 0, "x");
+        assertEquals(text(c), text(a));
+    }
+}
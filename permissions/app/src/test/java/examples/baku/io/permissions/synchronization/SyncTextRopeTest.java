@@ -0,0 +1,58 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SyncTextRopeTest {
+
+    private static SyncTextRope rope(int runs) {
+        SyncTextRope result = SyncTextRope.EMPTY;
+        for (int i = 0; i < runs; i++) {
+            //alternating sources keep the runs from merging
+            result = result.insert(result.length(), "run" + i, SyncTextDiff.INSERT, i % 2 == 0 ? "a" : "b", 0);
+        }
+        return result;
+    }
+
+    private static List<String> texts(Iterator<SyncTextDiff> iterator) {
+        List<String> result = new ArrayList<>();
+        while (iterator.hasNext()) {
+            result.add(iterator.next().text);
+        }
+        return result;
+    }
+
+    @Test
+    public void descendingIteratorReversesRuns() {
+        for (int runs = 0; runs < 40; runs++) {
+            SyncTextRope rope = rope(runs);
+            List<String> expected = texts(rope.iterator());
+            Collections.reverse(expected);
+            assertEquals(expected, texts(rope.descendingIterator()));
+            assertEquals(runs, expected.size());
+        }
+    }
+
+    @Test
+    public void commonLengthsUseComparison() {
+        SyncTextRope a = SyncTextRope.EMPTY.insert(0, "hello world", SyncTextDiff.EQUAL, null, 0);
+        SyncTextRope b = a.delete(5, 6).insert(5, "_", SyncTextDiff.INSERT, "b", 0);
+        SyncTextRope c = b.delete(5, 6).insert(5, "_", SyncTextDiff.INSERT, "c", 0);
+
+        assertEquals(5, SyncTextRope.commonHead(a, b, SyncTextRope.SAME_SOURCE));
+        assertEquals(5, SyncTextRope.commonTail(a, b, 6, SyncTextRope.SAME_SOURCE));
+        assertEquals(3, SyncTextRope.commonTail(a, b, 3, SyncTextRope.SAME_SOURCE));
+        assertEquals(5, SyncTextRope.commonHead(b, c, SyncTextRope.SAME_SOURCE));
+        assertEquals(11, SyncTextRope.commonHead(b, c, SyncTextRope.SAME_OPERATION));
+    }
+}
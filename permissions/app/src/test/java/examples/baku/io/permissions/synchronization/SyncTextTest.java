@@ -0,0 +1,164 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import examples.baku.io.permissions.PermissionManager;
+import examples.baku.io.permissions.storage.MemoryStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SyncTextTest {
+
+    private static final int EDIT = PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE;
+    private static final long TIMEOUT = 10000;
+
+    private MemoryStore store;
+    private final List<SyncText> texts = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        store = new MemoryStore();
+    }
+
+    @After
+    public void tearDown() {
+        for (SyncText text : texts) {
+            text.unlink();
+        }
+    }
+
+    //remembers the version last shown, the base of the next edit
+    private static class Shown implements SyncText.OnTextChangeListener {
+        volatile int version;
+
+        @Override
+        public void onTextChange(String currentText, SyncTextRope diffs, int ver) {
+            version = Math.max(version, ver);
+        }
+    }
+
+    private SyncText open(String source, Shown shown) {
+        SyncText text = new SyncText(source, EDIT, store.getReference("text"), null, SyncText.SYNC_OPS);
+        text.setOnTextChangeListener(shown);
+        texts.add(text);
+        return text;
+    }
+
+    private static void awaitText(SyncText text, String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!expected.equals(text.getDocument().getFinalText())) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected <" + expected + "> but was <" + text.getDocument().getFinalText() + ">");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitSame(SyncText a, SyncText b) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!a.getDocument().getFinalText().equals(b.getDocument().getFinalText()) || a.hasQueuedEdits()
+                || b.hasQueuedEdits()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("<" + a.getDocument().getFinalText() + "> and <" + b.getDocument().getFinalText() + "> differ");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static SyncTextPatch insert(int offset, String inserted) {
+        SyncTextPatch patch = new SyncTextPatch();
+        patch.setOffset(offset);
+        patch.setInserted(inserted);
+        return patch;
+    }
+
+    @Test
+    public void mergeFoldsTouchingEdits() {
+        SyncTextPatch patch = insert(2, "abc");
+        assertTrue(SyncText.merge(patch, 5, 0, "d"));   //typing on
+        assertEquals("abcd", patch.getInserted());
+        assertTrue(SyncText.merge(patch, 5, 1, ""));    //backspace
+        assertEquals("abc", patch.getInserted());
+        assertTrue(SyncText.merge(patch, 1, 2, "x"));   //over the start of the insert
+        assertEquals(1, patch.getOffset());
+        assertEquals(1, patch.getRemoved());
+        assertEquals("xbc", patch.getInserted());
+    }
+
+    @Test
+    public void mergeRejectsDistantEdits() {
+        SyncTextPatch patch = insert(2, "abc");
+        assertFalse(SyncText.merge(patch, 6, 0, "d"));
+        assertFalse(SyncText.merge(patch, 0, 1, ""));
+        assertEquals("abc", patch.getInserted());
+    }
+
+    @Test
+    public void concurrentOperationsAreTransformed() throws InterruptedException {
+        Shown shownA = new Shown();
+        Shown shownB = new Shown();
+        SyncText a = open("a", shownA);
+        SyncText b = open("b", shownB);
+        a.update(shownA.version, 0, 0, "hello world");
+        awaitText(b, "hello world");
+
+        //both edit the same version
+        int base = shownA.version;
+        a.update(base, 0, 5, "HELLO");
+        b.update(base, 11, 0, "!");
+        awaitText(a, "HELLO world!");
+        awaitText(b, "HELLO world!");
+    }
+
+    @Test
+    public void randomEditsConverge() throws InterruptedException {
+        Shown shownA = new Shown();
+        Shown shownB = new Shown();
+        SyncText a = open("a", shownA);
+        SyncText b = open("b", shownB);
+        Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            boolean first = random.nextBoolean();
+            SyncText text = first ? a : b;
+            int base = first ? shownA.version : shownB.version;
+            int length = text.getDocument().length();
+            int offset = random.nextInt(length + 1);
+            int removed = random.nextInt(3) == 0 ? Math.min(2, length - offset) : 0;
+            text.update(base, offset, removed, String.valueOf((char) ('a' + random.nextInt(26))));
+            if (i % 10 == 0) {
+                awaitSame(a, b);
+            }
+        }
+        awaitSame(a, b);
+    }
+
+    @Test
+    public void lateJoinerCatchesUpFromLog() throws InterruptedException {
+        Shown shown = new Shown();
+        SyncText a = open("a", shown);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 150; i++) {   //past a snapshot, so the joiner starts from it and reads the rest of the log
+            String typed = String.valueOf((char) ('a' + i % 26));
+            a.update(shown.version, expected.length(), 0, typed);
+            expected.append(typed);
+            awaitText(a, expected.toString());
+        }
+
+        SyncText late = open("late", new Shown());
+        awaitText(late, expected.toString());
+        assertEquals(a.getDocument().length(), late.getDocument().length());
+    }
+}
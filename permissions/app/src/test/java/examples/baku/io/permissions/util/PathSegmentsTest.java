@@ -0,0 +1,46 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.util;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PathSegmentsTest {
+
+    private static void collect(WeakReference<?> reference) throws InterruptedException {
+        for (int i = 0; i < 100 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void segmentsAreInternedOnce() {
+        PathSegment segment = PathSegments.intern("documents/a/b", 12, 13);
+        assertSame(segment, PathSegments.intern("b"));
+        assertSame(segment, PathSegments.find("a/b", 2, 3));
+        assertEquals("b", segment.getName());
+    }
+
+    @Test
+    public void unusedSegmentsAreCollected() throws InterruptedException {
+        PathTrie<String> trie = new PathTrie<>();
+        trie.put("kept/segment", "value");
+        WeakReference<PathSegment> unused = new WeakReference<>(PathSegments.intern("unused-segment"));
+        collect(unused);
+
+        assertNull(PathSegments.find("unused-segment"));
+        assertEquals("value", trie.get("kept/segment"));
+        for (int i = 0; i < 1000; i++) {    //interning rebuilds the table without collected segments
+            PathSegments.intern("segment" + i);
+        }
+        assertEquals("value", trie.get("kept/segment"));
+    }
+}
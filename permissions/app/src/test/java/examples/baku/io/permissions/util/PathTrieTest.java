@@ -0,0 +1,90 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PathTrieTest {
+
+    @Test
+    public void putAndGet() {
+        PathTrie<String> trie = new PathTrie<>();
+        assertNull(trie.put("a/b/c", "abc"));
+        assertEquals("abc", trie.put("a/b/c", "ABC"));
+        trie.put(null, "root");
+
+        assertEquals("ABC", trie.get("a/b/c"));
+        assertEquals("root", trie.get(null));
+        assertNull(trie.get("a/b"));
+        assertFalse(trie.containsKey("a/b"));
+        assertNull(trie.get("a/b/never-interned"));
+        assertEquals(2, trie.size());
+        assertEquals(new HashSet<>(Arrays.asList(null, "a/b/c")), trie.keySet());
+    }
+
+    @Test
+    public void nearestValueAtOrAbovePath() {
+        PathTrie<String> trie = new PathTrie<>();
+        trie.put("a", "a");
+        trie.put("a/b/c", "abc");
+
+        assertEquals("a", trie.nearestValue("a/b"));
+        assertEquals("abc", trie.nearestValue("a/b/c/d"));
+        assertEquals("a", trie.nearestValue("a/x/c"));
+        assertNull(trie.nearestValue("b"));
+        assertEquals("a/b/c", trie.nearest(new StringBuilder("a/b/c/d")).getPath());
+    }
+
+    @Test
+    public void removePrunesEmptyNodes() {
+        PathTrie<String> trie = new PathTrie<>();
+        trie.put("a/b/c", "abc");
+        trie.put("a/d", "ad");
+
+        assertEquals("abc", trie.remove("a/b/c"));
+        assertNull(trie.remove("a/b/c"));
+        assertNull(trie.find("a/b"));
+        assertEquals(1, trie.getRoot().child("a").getChildCount());
+        assertEquals(1, trie.size());
+    }
+
+    @Test
+    public void removeAllDropsSubtree() {
+        PathTrie<String> trie = new PathTrie<>();
+        trie.put("a", "a");
+        trie.put("a/b", "ab");
+        trie.put("a/b/c", "abc");
+        trie.put("d", "d");
+
+        trie.removeAll("a");
+        assertEquals(1, trie.size());
+        assertNull(trie.find("a"));
+        assertEquals("d", trie.get("d"));
+        assertTrue(trie.values().contains("d"));
+    }
+
+    @Test
+    public void manyChildren() {
+        PathTrie<Integer> trie = new PathTrie<>();
+        for (int i = 0; i < 100; i++) {
+            trie.put("p/" + i, i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            trie.remove("p/" + i);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), trie.get("p/" + i));
+        }
+        assertEquals(50, trie.getRoot().child("p").getChildCount());
+    }
+}
@@ -0,0 +1,102 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    @Test
+    public void keysExpireAtTheirDeadline() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8);
+        wheel.advance(1000);
+        wheel.schedule("a", 1025);
+        wheel.schedule("b", 1050);
+
+        assertTrue(wheel.advance(1020).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(1025));
+        assertEquals(Collections.singletonList("b"), wheel.advance(1055));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void deadlinesBeyondARotationWait() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8);
+        wheel.advance(0);
+        wheel.schedule("late", 500);    //several rotations of 80ms away
+
+        for (long now = 10; now < 500; now += 10) {
+            assertTrue(wheel.advance(now).isEmpty());
+        }
+        assertEquals(Collections.singletonList("late"), wheel.advance(500));
+    }
+
+    @Test
+    public void cancelAndReschedule() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8);
+        wheel.advance(0);
+        wheel.schedule("a", 20);
+        wheel.schedule("b", 20);
+        assertTrue(wheel.cancel("a"));
+        assertFalse(wheel.cancel("a"));
+        wheel.schedule("b", 60);
+
+        assertTrue(wheel.advance(30).isEmpty());
+        assertEquals(1, wheel.size());
+        assertEquals(Collections.singletonList("b"), wheel.advance(60));
+    }
+
+    @Test
+    public void pastDeadlinesExpireOnNextAdvance() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8);
+        wheel.advance(1000);
+        wheel.schedule("past", 10);
+
+        List<String> expired = wheel.advance(1000);
+        assertEquals(Arrays.asList("past"), expired);
+    }
+
+    @Test
+    public void longGapsVisitEverySlot() {
+        TimerWheel<Integer> wheel = new TimerWheel<>(10, 8);
+        wheel.advance(0);
+        for (int i = 0; i < 8; i++) {
+            wheel.schedule(i, 10 * i + 5);
+        }
+        assertEquals(8, wheel.advance(10000).size());
+    }
+
+    @Test
+    public void nextDeadlineIsTheEarliest() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 8);
+        assertEquals(Long.MAX_VALUE, wheel.nextDeadline());
+        wheel.advance(1000);
+        wheel.schedule("late", 1500);   //beyond a rotation
+        assertEquals(1500, wheel.nextDeadline());
+        wheel.schedule("b", 1047);
+        wheel.schedule("a", 1043);
+        assertEquals(1043, wheel.nextDeadline());
+        wheel.schedule("past", 10);
+        assertEquals(10, wheel.nextDeadline());
+
+        wheel.advance(1045);
+        assertEquals(1047, wheel.nextDeadline());
+        wheel.advance(1050);
+        assertEquals(1500, wheel.nextDeadline());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void slotCountMustBePowerOfTwo() {
+        new TimerWheel<String>(10, 6);
+    }
+}
@@ -0,0 +1,74 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.storage.DataNode;
+import examples.baku.io.permissions.storage.DataRef;
+import examples.baku.io.permissions.storage.MemoryStore;
+import examples.baku.io.permissions.storage.ValueListener;
+
+/**
+ * Workload generators shared by the benchmarks.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    //rules for a complete tree with fanOut children per node, e.g. n0/n1/n0 for depth 3.
+    //every node has a rule, cycling through the permission flags by depth
+    static Map<String, Object> rules(int depth, int fanOut) {
+        Map<String, Object> node = new HashMap<>();
+        node.put(PermissionManager.KEY_PERMISSIONS, 1 << (depth % 3));
+        if (depth > 0) {
+            for (int i = 0; i < fanOut; i++) {
+                node.put("n" + i, rules(depth - 1, fanOut));
+            }
+        }
+        return node;
+    }
+
+    static List<String> leafPaths(String prefix, int depth, int fanOut) {
+        List<String> result = new ArrayList<>();
+        addPaths(result, prefix, depth, fanOut);
+        return result;
+    }
+
+    private static void addPaths(List<String> result, String prefix, int depth, int fanOut) {
+        if (depth == 0) {
+            result.add(prefix);
+            return;
+        }
+        for (int i = 0; i < fanOut; i++) {
+            String child = "n" + i;
+            addPaths(result, prefix == null ? child : prefix + "/" + child, depth - 1, fanOut);
+        }
+    }
+
+    //snapshot of value, as delivered by a data store
+    static DataNode snapshot(Object value) {
+        DataRef ref = new MemoryStore().getReference("snapshot");
+        ref.setValue(value);
+        final DataNode[] result = new DataNode[1];
+        ref.addSingleValueListener(new ValueListener() {  //memory store listeners are called synchronously
+            @Override
+            public void onDataChange(DataNode node) {
+                result[0] = node;
+            }
+
+            @Override
+            public void onCancelled(DataError error) {
+                throw error.toException();
+            }
+        });
+        return result[0];
+    }
+}
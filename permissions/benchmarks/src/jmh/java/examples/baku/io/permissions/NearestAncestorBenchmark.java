@@ -0,0 +1,88 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import examples.baku.io.permissions.util.PathTrie;
+import examples.baku.io.permissions.util.Paths;
+
+/**
+ * Nearest rule lookup: the substring scan over a set of rule paths against the path trie.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NearestAncestorBenchmark {
+
+    private static final int FAN_OUT = 4;
+    private static final int LOOKUPS = 1024;
+
+    @Param({"4", "8"})
+    int depth;
+
+    @Param({"16", "256", "4096"})
+    int rules;
+
+    private Set<String> ruleSet;
+    private PathTrie<String> ruleTrie;
+    private String[] paths;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        ruleSet = new HashSet<>();
+        ruleTrie = new PathTrie<>();
+        while (ruleSet.size() < rules) {
+            String path = randomPath(random, 1 + random.nextInt(depth));
+            ruleSet.add(path);
+            ruleTrie.put(path, path);
+        }
+        //lookups at full depth, below (or beside) the rules
+        paths = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            paths[i] = randomPath(random, depth + 2);
+        }
+    }
+
+    private static String randomPath(Random random, int depth) {
+        StringBuilder result = new StringBuilder("documents");
+        for (int i = 0; i < depth; i++) {
+            result.append("/n").append(random.nextInt(FAN_OUT));
+        }
+        return result.toString();
+    }
+
+    private String nextPath() {
+        if (next == paths.length) {
+            next = 0;
+        }
+        return paths[next++];
+    }
+
+    @Benchmark
+    public String linearScan() {
+        return Paths.getNearestCommonAncestor(nextPath(), ruleSet);
+    }
+
+    @Benchmark
+    public PathTrie.Node<String> trie() {
+        return ruleTrie.nearest(nextPath());
+    }
+}
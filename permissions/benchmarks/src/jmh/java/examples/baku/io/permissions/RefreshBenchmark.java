@@ -0,0 +1,110 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import examples.baku.io.permissions.storage.DataError;
+import examples.baku.io.permissions.storage.MemoryStore;
+
+/**
+ * Permission refreshes of a device receiving blessings from several other devices.
+ * Each granting device delegates through chainLength blessings before reaching the target,
+ * and the target has listeners spread over the granted documents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RefreshBenchmark {
+
+    private static final String TARGET = "target";
+    private static final int MESSAGES = 16;
+
+    @Param({"1", "8", "32"})
+    int blessings;
+
+    @Param({"1", "3"})
+    int chainLength;
+
+    @Param({"0", "16", "256"})
+    int listeners;
+
+    //Blessing.SYNC_SNAPSHOT or Blessing.SYNC_CHILDREN
+    @Param({"0", "1"})
+    int syncMode;
+
+    private PermissionManager target;
+    private Blessing updatedBlessing;
+    private String updatedPath;
+    private boolean toggle;
+
+    private final PermissionManager.OnPermissionChangeListener listener = new PermissionManager.OnPermissionChangeListener() {
+        @Override
+        public void onPermissionChange(int current) {
+        }
+
+        @Override
+        public void onCancelled(DataError dataError) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryStore store = new MemoryStore();
+        for (int i = 0; i < blessings; i++) {
+            String device = "device" + i;
+            String documents = "documents/" + device;
+            PermissionManager source = new PermissionManager(store.getReference(), device, syncMode);
+            source.getRootBlessing().setPermissions(documents, PermissionManager.FLAG_ROOT);
+
+            Blessing blessing = source.getRootBlessing();
+            for (int c = 1; c < chainLength; c++) {
+                blessing = blessing.bless(device + "_delegate" + c);
+                blessing.setPermissions(documents, PermissionManager.FLAG_READ | PermissionManager.FLAG_WRITE);
+            }
+            blessing = blessing.bless(TARGET);
+            Blessing.Editor editor = blessing.edit().setPermissions(documents + "/messages", PermissionManager.FLAG_READ);
+            for (int m = 0; m < MESSAGES; m += 2) {
+                editor.setPermissions(documents + "/messages/m" + m, PermissionManager.FLAG_WRITE);
+            }
+            editor.commit();
+            if (i == 0) {
+                updatedBlessing = blessing;
+                updatedPath = documents + "/messages/m1";
+            }
+        }
+
+        target = new PermissionManager(store.getReference(), TARGET, syncMode);
+        for (int l = 0; l < listeners; l++) {
+            String path = "documents/device" + (l % blessings) + "/messages/m" + (l % MESSAGES) + "/l" + l;
+            target.addPermissionEventListener(path, listener);
+        }
+    }
+
+    //full reconcile of every received blessing
+    @Benchmark
+    public Set<String> refreshAll() {
+        return target.refreshPermissions();
+    }
+
+    //a single rule change, from the blessing write to the listener notifications
+    @Benchmark
+    public int updateRule() {
+        toggle = !toggle;
+        updatedBlessing.setPermissions(updatedPath, toggle ? PermissionManager.FLAG_WRITE : PermissionManager.FLAG_SUGGEST);
+        return target.getPermissions(updatedPath);
+    }
+}
@@ -0,0 +1,101 @@
+// Copyright 2016 The Vanadium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file.
+
+package examples.baku.io.permissions.synchronization;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One keystroke on a document with many suggestion runs: insert a character and materialize the text.
+ * The list model splits a run and concatenates every run, the rope edits one path and builds the text once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SyncTextBenchmark {
+
+    private static final int RUN_LENGTH = 8;
+    private static final int KEYSTROKES = 1024;
+
+    @Param({"16", "256", "4096"})
+    int runs;
+
+    private LinkedList<SyncTextDiff> diffs;
+    private SyncTextRope rope;
+    private int[] offsets;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        diffs = new LinkedList<>();
+        for (int i = 0; i < runs; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < RUN_LENGTH; j++) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+            //alternate sources so that neighbouring runs don't merge
+            diffs.add(new SyncTextDiff(text.toString(), random.nextInt(3), "source" + (i % 2), 4));
+        }
+        rope = SyncTextRope.fromDiffs(diffs);
+        offsets = new int[KEYSTROKES];
+        for (int i = 0; i < KEYSTROKES; i++) {
+            offsets[i] = random.nextInt(runs * RUN_LENGTH);
+        }
+    }
+
+    private int nextOffset() {
+        if (next == offsets.length) {
+            next = 0;
+        }
+        return offsets[next++];
+    }
+
+    @Benchmark
+    public String listInsert() {
+        int offset = nextOffset();
+        LinkedList<SyncTextDiff> result = new LinkedList<>();
+        for (SyncTextDiff diff : diffs) {
+            result.add(new SyncTextDiff(diff));
+        }
+        for (ListIterator<SyncTextDiff> iterator = result.listIterator(); iterator.hasNext(); ) {
+            SyncTextDiff diff = iterator.next();
+            if (offset <= diff.length()) {
+                SyncTextDiff tail = diff.truncate(offset);
+                iterator.add(new SyncTextDiff("x", SyncTextDiff.INSERT, "keyboard", 4));
+                iterator.add(tail);
+                break;
+            }
+            offset -= diff.length();
+        }
+        String text = "";
+        for (SyncTextDiff diff : result) {
+            text += diff.getText();
+        }
+        return text;
+    }
+
+    @Benchmark
+    public String ropeInsert() {
+        return rope.insert(nextOffset(), "x", SyncTextDiff.INSERT, "keyboard", 4).getText();
+    }
+
+    @Benchmark
+    public SyncTextDiff ropeRunAt() {
+        return rope.runAt(nextOffset());
+    }
+}